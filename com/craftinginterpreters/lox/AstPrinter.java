@@ -1,51 +1,216 @@
 package com.craftinginterpreters.lox;
 
-class AstPrinter implements Expr.Visitor<String> {
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// The visitor methods write straight into `out` instead of returning a
+// String for every node, so printing is a single pass over the tree and
+// linear in the size of the output, however deep the tree is.
+class AstPrinter implements Expr.Visitor<Void> {
+    // Past this nesting depth printing switches to printIteratively().
+    private static final int MAX_RECURSION = 500;
+    private int depth = 0;
+    private Appendable out;
+
     String print(Expr expr) {
-        return expr.accept(this);
+        StringBuilder builder = new StringBuilder();
+        print(expr, builder);
+        return builder.toString();
+    }
+
+    // Streams the tree into `out` (a StringBuilder, a BufferedWriter for a
+    // file or socket, ...). An IOException from `out` is rethrown as an
+    // UncheckedIOException, since the visitor methods can't throw it.
+    void print(Expr expr, Appendable out) {
+        Appendable saved = this.out;
+        this.out = out;
+        try {
+            write(expr);
+        } finally {
+            this.out = saved;
+        }
+    }
+
+    private void write(Expr expr) {
+        if (depth >= MAX_RECURSION) {
+            printIteratively(expr);
+            return;
+        }
+
+        depth++;
+        try {
+            expr.accept(this);
+        } finally {
+            depth--;
+        }
+    }
+
+    private void append(String text) {
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     // TODO: ch06 challenge 02 - Revisit this once we know how if statements work
     // and are represented in a syntax tree
     @Override
-    public String visitTernaryExpr(Expr.Ternary expr) {
-        return parenthesize("ternary", expr.predicate,
-                            expr.if_true, expr.if_false);
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        parenthesize("ternary", expr.predicate,
+                     expr.if_true, expr.if_false);
+        return null;
     }
 
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return parenthesize(expr.operator.lexeme,
-                            expr.left, expr.right);
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        parenthesize(expr.operator.lexeme,
+                     expr.left, expr.right);
+        return null;
     }
     
     @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return parenthesize("group", expr.expression);
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        parenthesize("group", expr.expression);
+        return null;
     }
 
     @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        append(expr.value == null ? "nil" : expr.value.toString());
+        return null;
     }
 
     @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return parenthesize(expr.operator.lexeme, expr.right);
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        parenthesize(expr.operator.lexeme, expr.right);
+        return null;
     }
 
-    private String parenthesize(String name, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        append(expr.name.lexeme);
+        return null;
+    }
 
-        builder.append("(").append(name);
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        parenthesize("= " + expr.name.lexeme, expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        if (expr.initializer == null) {
+            parenthesize("var " + expr.name.lexeme);
+        } else {
+            parenthesize("var " + expr.name.lexeme, expr.initializer);
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitSequenceExpr(Expr.Sequence expr) {
+        parenthesize("comma", expr.expressions.toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        // The elements, then the count if there is one.
+        parenthesize(expr.count == null ? "array" : "fill",
+                     ExprWalker.children(expr).toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        parenthesize("call " + expr.name.lexeme, expr.arguments.toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitDeferredExpr(Expr.Deferred expr) {
+        append("(deferred " + Parser.text(expr) + ")");
+        return null;
+    }
+
+    private void parenthesize(String name, Expr... exprs) {
+        append("(");
+        append(name);
         for (Expr expr : exprs) {
-            builder.append(" ");
-            builder.append(expr.accept(this));
+            append(" ");
+            write(expr);
         }
-        builder.append(")");
+        append(")");
+    }
 
-        return builder.toString();
+    // Same output as the visitor methods, but with an explicit stack of
+    // "things still to print" (either a piece of text or a node), so that
+    // very deep trees don't overflow the Java stack.
+    private void printIteratively(Expr root) {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            Object item = stack.pop();
+            if (item instanceof String) {
+                append((String)item);
+                continue;
+            }
+
+            Expr expr = (Expr)item;
+            String name;
+            Expr[] children;
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                name = binary.operator.lexeme;
+                children = new Expr[] { binary.left, binary.right };
+            } else if (expr instanceof Expr.Grouping) {
+                name = "group";
+                children = new Expr[] { ((Expr.Grouping)expr).expression };
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                name = unary.operator.lexeme;
+                children = new Expr[] { unary.right };
+            } else if (expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary)expr;
+                name = "ternary";
+                children = new Expr[] { ternary.predicate, ternary.if_true, ternary.if_false };
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                name = "= " + assign.name.lexeme;
+                children = new Expr[] { assign.value };
+            } else if (expr instanceof Expr.Var) {
+                Expr.Var var = (Expr.Var)expr;
+                name = "var " + var.name.lexeme;
+                children = var.initializer == null ? new Expr[0]
+                                                   : new Expr[] { var.initializer };
+            } else if (expr instanceof Expr.Sequence) {
+                name = "comma";
+                children = ((Expr.Sequence)expr).expressions.toArray(new Expr[0]);
+            } else if (expr instanceof Expr.ArrayLiteral) {
+                Expr.ArrayLiteral array = (Expr.ArrayLiteral)expr;
+                name = array.count == null ? "array" : "fill";
+                children = ExprWalker.children(array).toArray(new Expr[0]);
+            } else if (expr instanceof Expr.Call) {
+                name = "call " + ((Expr.Call)expr).name.lexeme;
+                children = ((Expr.Call)expr).arguments.toArray(new Expr[0]);
+            } else {
+                expr.accept(this);
+                continue;
+            }
+
+            // Pushed backwards, so they come off the stack in order.
+            stack.push(")");
+            for (int i = children.length - 1; i >= 0; i--) {
+                stack.push(children[i]);
+                stack.push(" ");
+            }
+            stack.push("(" + name);
+        }
     }
 
 
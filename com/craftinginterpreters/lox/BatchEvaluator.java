@@ -0,0 +1,523 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// Evaluates one expression over many rows at once. Every variable in the
+// expression reads from the `double[]` input column with the same name,
+// and instead of walking the tree once per row we walk it once per block of
+// rows: every node turns whole columns of its children into a column of its
+// own, using ColumnKernels for the inner loops.
+//
+// Only the number/boolean subset of the language is supported: number and
+// boolean literals, variables, grouping, unary - and !, + - * /, the
+// comparisons, == and !=, and ?:. Anything else (strings, nil, var, =, the
+// comma operator) throws an IllegalArgumentException up front.
+//
+// Rows fail independently. When the interpreter would throw a RuntimeError
+// for a row (dividing by zero, or an operand of the wrong type), the row's
+// bit is set in the error bitmap that evaluate() returns and its result is
+// NaN. Like the interpreter, only the branch a ternary picks can fail a row.
+class BatchEvaluator {
+    // Rows per block. All the per-node columns are this long, so they stay
+    // in cache while the tree is walked. Must be a multiple of 64, so that
+    // error bitmaps of blocks line up with whole words.
+    private static final int BLOCK = 4096;
+
+    private final ColumnKernels kernels;
+
+    BatchEvaluator(ColumnKernels kernels) {
+        this.kernels = kernels;
+    }
+
+    // With the kernels ColumnKernels.select() picks.
+    static BatchEvaluator create() {
+        return new BatchEvaluator(ColumnKernels.select());
+    }
+
+    String kernelName() {
+        return kernels.getClass().getSimpleName();
+    }
+
+    // One node of the expression, with its column for the current block.
+    // Exactly one of `numbers`/`booleans` is set, depending on the node's
+    // type. `failed` means every row fails (an operand type error that
+    // doesn't depend on the data, like -true).
+    private static class Column {
+        final Expr expr;
+        final Column[] children;
+        final double[] numbers;
+        final boolean[] booleans;
+        final long[] errors = new long[BLOCK / 64];
+        final double[] input;
+        final boolean failed;
+
+        Column(Expr expr, Column[] children, boolean isBoolean,
+               double[] input, boolean failed) {
+            this.expr = expr;
+            this.children = children;
+            this.numbers = isBoolean ? null : new double[BLOCK];
+            this.booleans = isBoolean ? new boolean[BLOCK] : null;
+            this.input = input;
+            this.failed = failed;
+        }
+
+        boolean isBoolean() {
+            return booleans != null;
+        }
+    }
+
+    // Fills `result` (which must be at least `rows` long) with the value of
+    // `expr` for every row. Booleans are stored as 1 and 0. Returns the
+    // error bitmap: bit (i % 64) of word (i / 64) is set when row i failed.
+    long[] evaluate(Expr expr, Map<String, double[]> inputs, double[] result, int rows) {
+        if (result.length < rows) {
+            throw new IllegalArgumentException("Result column has " + result.length +
+                " rows, need " + rows + ".");
+        }
+        for (Map.Entry<String, double[]> input : inputs.entrySet()) {
+            if (input.getValue().length < rows) {
+                throw new IllegalArgumentException("Column '" + input.getKey() +
+                    "' has " + input.getValue().length + " rows, need " + rows + ".");
+            }
+        }
+
+        List<Column> program = compile(expr, inputs);
+        Column root = program.get(program.size() - 1);
+        long[] errors = new long[(rows + 63) / 64];
+
+        for (int start = 0; start < rows; start += BLOCK) {
+            int n = Math.min(BLOCK, rows - start);
+            for (Column column : program) run(column, start, n);
+
+            if (root.isBoolean()) {
+                for (int i = 0; i < n; i++) result[start + i] = root.booleans[i] ? 1 : 0;
+            } else {
+                System.arraycopy(root.numbers, 0, result, start, n);
+            }
+            int words = (n + 63) / 64;
+            for (int w = 0; w < words; w++) {
+                long bits = root.errors[w];
+                if (w == words - 1 && (n & 63) != 0) bits &= -1L >>> (64 - (n & 63));
+                if (bits == 0) continue;
+                errors[start / 64 + w] |= bits;
+                for (long left = bits; left != 0; left &= left - 1) {
+                    result[start + w * 64 + Long.numberOfTrailingZeros(left)] = Double.NaN;
+                }
+            }
+        }
+        return errors;
+    }
+
+    static boolean failed(long[] errors, int row) {
+        return (errors[row >>> 6] & (1L << row)) != 0;
+    }
+
+    // Turns the tree into its columns in post-order, so running them in list
+    // order always has the children ready before their parent.
+    private List<Column> compile(Expr expr, Map<String, double[]> inputs) {
+        List<Column> program = new ArrayList<>();
+        Map<Expr, Column> columns = new IdentityHashMap<>();
+        ExprWalker.postOrder(expr, node -> {
+            List<Expr> children = ExprWalker.children(node);
+            Column[] operands = new Column[children.size()];
+            for (int i = 0; i < operands.length; i++) {
+                operands[i] = columns.remove(children.get(i));
+            }
+            Column column = columnFor(node, operands, inputs);
+            columns.put(node, column);
+            program.add(column);
+        });
+
+        // Literals never change, so fill them in once.
+        for (Column column : program) {
+            if (!(column.expr instanceof Expr.Literal)) continue;
+            Object value = ((Expr.Literal)column.expr).value;
+            if (column.isBoolean()) {
+                Arrays.fill(column.booleans, (boolean)value);
+            } else {
+                Arrays.fill(column.numbers, (double)value);
+            }
+        }
+        return program;
+    }
+
+    private Column columnFor(Expr node, Column[] operands, Map<String, double[]> inputs) {
+        if (node instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)node).value;
+            if (value instanceof Double) return new Column(node, operands, false, null, false);
+            if (value instanceof Boolean) return new Column(node, operands, true, null, false);
+            throw unsupported(node, value == null ? "nil" : "string literals");
+        }
+
+        if (node instanceof Expr.Variable) {
+            String name = ((Expr.Variable)node).name.lexeme;
+            double[] input = inputs.get(name);
+            if (input == null) {
+                throw new IllegalArgumentException("No input column for '" + name + "'.");
+            }
+            return new Column(node, operands, false, input, false);
+        }
+
+        if (node instanceof Expr.Grouping) {
+            return new Column(node, operands, operands[0].isBoolean(), null, false);
+        }
+
+        if (node instanceof Expr.Unary) {
+            if (((Expr.Unary)node).operator.type == BANG) {
+                return new Column(node, operands, true, null, false);
+            }
+            return new Column(node, operands, false, null, operands[0].isBoolean());
+        }
+
+        if (node instanceof Expr.Binary) {
+            boolean booleans = operands[0].isBoolean() || operands[1].isBoolean();
+            switch (((Expr.Binary)node).operator.type) {
+                case EQUAL_EQUAL:
+                case BANG_EQUAL:
+                    return new Column(node, operands, true, null, false);
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                    return new Column(node, operands, true, null, booleans);
+                default:
+                    return new Column(node, operands, false, null, booleans);
+            }
+        }
+
+        if (node instanceof Expr.Ternary) {
+            if (operands[1].isBoolean() != operands[2].isBoolean()) {
+                throw unsupported(node, "a ternary whose branches have different types");
+            }
+            return new Column(node, operands, operands[1].isBoolean(), null, false);
+        }
+
+        throw unsupported(node, node.getClass().getSimpleName());
+    }
+
+    private static IllegalArgumentException unsupported(Expr node, String what) {
+        return new IllegalArgumentException("Batch evaluation doesn't support " + what + ".");
+    }
+
+    // Computes one node's column for rows [start, start + n).
+    private void run(Column column, int start, int n) {
+        Expr node = column.expr;
+        Column[] operands = column.children;
+        long[] errors = column.errors;
+        Arrays.fill(errors, 0);
+
+        if (column.failed) {
+            if (column.isBoolean()) {
+                Arrays.fill(column.booleans, false);
+            } else {
+                Arrays.fill(column.numbers, Double.NaN);
+            }
+            Arrays.fill(errors, -1L);
+            return;
+        }
+
+        if (node instanceof Expr.Literal) return;
+
+        if (node instanceof Expr.Variable) {
+            System.arraycopy(column.input, start, column.numbers, 0, n);
+            return;
+        }
+
+        if (node instanceof Expr.Grouping) {
+            Column inner = operands[0];
+            if (column.isBoolean()) {
+                System.arraycopy(inner.booleans, 0, column.booleans, 0, n);
+            } else {
+                System.arraycopy(inner.numbers, 0, column.numbers, 0, n);
+            }
+            System.arraycopy(inner.errors, 0, errors, 0, errors.length);
+            return;
+        }
+
+        if (node instanceof Expr.Unary) {
+            Column right = operands[0];
+            if (column.isBoolean()) {
+                // Numbers are always truthy, so !number is always false.
+                for (int i = 0; i < n; i++) {
+                    column.booleans[i] = right.isBoolean() && !right.booleans[i];
+                }
+            } else {
+                kernels.negate(right.numbers, column.numbers, n);
+            }
+            System.arraycopy(right.errors, 0, errors, 0, errors.length);
+            return;
+        }
+
+        if (node instanceof Expr.Binary) {
+            binary((Expr.Binary)node, column, operands[0], operands[1], n);
+            return;
+        }
+
+        if (node instanceof Expr.Ternary) {
+            ternary(column, operands[0], operands[1], operands[2], n);
+        }
+    }
+
+    private void binary(Expr.Binary expr, Column column, Column left, Column right, int n) {
+        long[] errors = column.errors;
+        switch (expr.operator.type) {
+            case PLUS:
+                kernels.add(left.numbers, right.numbers, column.numbers, n);
+                break;
+            case MINUS:
+                kernels.subtract(left.numbers, right.numbers, column.numbers, n);
+                break;
+            case STAR:
+                kernels.multiply(left.numbers, right.numbers, column.numbers, n);
+                break;
+            case SLASH:
+                kernels.divide(left.numbers, right.numbers, column.numbers, errors, n);
+                break;
+            case EQUAL_EQUAL:
+            case BANG_EQUAL:
+                equality(expr.operator.type, column, left, right, n);
+                break;
+            default:
+                kernels.compare(expr.operator.type, left.numbers, right.numbers,
+                                column.booleans, n);
+                break;
+        }
+        for (int w = 0; w < errors.length; w++) errors[w] |= left.errors[w] | right.errors[w];
+    }
+
+    private void equality(TokenType operator, Column column, Column left, Column right, int n) {
+        if (!left.isBoolean() && !right.isBoolean()) {
+            kernels.compare(operator, left.numbers, right.numbers, column.booleans, n);
+            return;
+        }
+
+        boolean negate = operator == BANG_EQUAL;
+        if (left.isBoolean() && right.isBoolean()) {
+            for (int i = 0; i < n; i++) {
+                column.booleans[i] = (left.booleans[i] == right.booleans[i]) != negate;
+            }
+        } else {
+            // A number is never equal to a boolean.
+            Arrays.fill(column.booleans, 0, n, negate);
+        }
+    }
+
+    private void ternary(Column column, Column predicate, Column ifTrue, Column ifFalse, int n) {
+        long[] errors = column.errors;
+
+        // Numbers are always truthy, so there's nothing to select.
+        if (!predicate.isBoolean()) {
+            if (column.isBoolean()) {
+                System.arraycopy(ifTrue.booleans, 0, column.booleans, 0, n);
+            } else {
+                System.arraycopy(ifTrue.numbers, 0, column.numbers, 0, n);
+            }
+            for (int w = 0; w < errors.length; w++) errors[w] = predicate.errors[w] | ifTrue.errors[w];
+            return;
+        }
+
+        boolean[] mask = predicate.booleans;
+        if (column.isBoolean()) {
+            for (int i = 0; i < n; i++) {
+                column.booleans[i] = mask[i] ? ifTrue.booleans[i] : ifFalse.booleans[i];
+            }
+        } else {
+            kernels.select(mask, ifTrue.numbers, ifFalse.numbers, column.numbers, n);
+        }
+
+        // A row only picks up the errors of the branch it took.
+        for (int w = 0; w < errors.length; w++) {
+            long taken = 0;
+            int base = w * 64;
+            for (int bit = 0; bit < 64 && base + bit < n; bit++) {
+                if (mask[base + bit]) taken |= 1L << bit;
+            }
+            errors[w] = predicate.errors[w] |
+                (taken & ifTrue.errors[w]) | (~taken & ifFalse.errors[w]);
+        }
+    }
+
+    // `BatchEvaluator [rows=1000000] [seed=42]`: first checks random
+    // expressions against the tree-walking interpreter row by row (with
+    // both kernels, when the SIMD ones are there), then times a fixed
+    // expression three ways.
+    public static void main(String[] args) {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        Random random = new Random(seed);
+
+        BatchEvaluator scalar = new BatchEvaluator(new ScalarColumnKernels());
+        ColumnKernels vector = ColumnKernels.vector();
+        BatchEvaluator simd = vector == null ? scalar : new BatchEvaluator(vector);
+        Map<String, double[]> inputs = randomColumns(random, rows);
+
+        int checkRows = Math.min(rows, 5000);
+        int checked = 0;
+        for (int i = 0; i < 2000; i++) {
+            String source = randomSource(random);
+            Expr expr = parse(source);
+            double[] expected = new double[checkRows];
+            long[] expectedErrors;
+            try {
+                // Mixed-type ternaries are the only thing the generator
+                // makes that the batch doesn't support.
+                scalar.evaluate(expr, inputs, new double[checkRows], checkRows);
+                expectedErrors = perRow(expr, inputs, expected, checkRows);
+            } catch (IllegalArgumentException e) {
+                continue;
+            }
+            checked++;
+            for (BatchEvaluator batch : new BatchEvaluator[] {scalar, simd}) {
+                double[] result = new double[checkRows];
+                long[] errors = batch.evaluate(expr, inputs, result, checkRows);
+                for (int row = 0; row < checkRows; row++) {
+                    if (failed(errors, row) != failed(expectedErrors, row) ||
+                        Double.doubleToLongBits(result[row]) !=
+                            Double.doubleToLongBits(expected[row])) {
+                        System.out.println("Mismatch (" + batch.kernelName() + ") in '" +
+                            source + "' at row " + row + ": expected " + expected[row] +
+                            (failed(expectedErrors, row) ? " (error)" : "") + ", got " +
+                            result[row] + (failed(errors, row) ? " (error)" : ""));
+                        System.exit(1);
+                    }
+                }
+            }
+        }
+        System.out.println("OK: " + checked + " random expressions match the interpreter " +
+                           "on " + checkRows + " rows.");
+
+        String source = "x * 2 + y > 10 ? (x - y) / z : -x * y + z * z";
+        Expr expr = parse(source);
+        double[] result = new double[rows];
+        System.out.println("'" + source + "' over " + rows + " rows:");
+        time("interpreter, one row at a time", () -> perRow(expr, inputs, result, rows));
+        time("batch, " + scalar.kernelName(), () -> scalar.evaluate(expr, inputs, result, rows));
+        if (simd != scalar) {
+            time("batch, " + simd.kernelName(), () -> simd.evaluate(expr, inputs, result, rows));
+        }
+    }
+
+    private static void time(String name, Runnable run) {
+        for (int i = 0; i < 3; i++) run.run();
+        int repeats = 5;
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) run.run();
+        double ms = (System.nanoTime() - start) / 1e6 / repeats;
+        System.out.println(String.format("%10.2f ms  %s", ms, name));
+    }
+
+    // The columns don't need declaring for the batch, but the resolver (and
+    // so perRow()) wants every variable declared first.
+    private static Expr parse(String source) {
+        List<Token> tokens = new Scanner("var x, var y, var z, " + source).scanTokens();
+        Expr.Sequence program = (Expr.Sequence)new Parser(tokens).parse();
+        new Resolver().resolve(program);
+        new TypeChecker(null).check(program);
+        return program.expressions.get(program.expressions.size() - 1);
+    }
+
+    // What the batch has to match: Interpreter.evaluate() for every row,
+    // with the variables set from the columns. Throws
+    // IllegalArgumentException for results a column can't hold.
+    private static long[] perRow(Expr expr, Map<String, double[]> inputs,
+                                 double[] result, int rows) {
+        Map<String, Integer> slots = new HashMap<>();
+        ExprWalker.postOrder(expr, node -> {
+            if (node instanceof Expr.Variable) {
+                slots.put(((Expr.Variable)node).name.lexeme, ((Expr.Variable)node).slot);
+            }
+        });
+
+        Interpreter interpreter = new Interpreter();
+        long[] errors = new long[(rows + 63) / 64];
+        for (int row = 0; row < rows; row++) {
+            for (Map.Entry<String, Integer> slot : slots.entrySet()) {
+                interpreter.environment.define(slot.getValue(),
+                                               inputs.get(slot.getKey())[row]);
+            }
+            try {
+                Object value = interpreter.evaluate(expr);
+                if (value instanceof Double) {
+                    result[row] = (double)value;
+                } else if (value instanceof Boolean) {
+                    result[row] = (boolean)value ? 1 : 0;
+                } else {
+                    throw new IllegalArgumentException("Not a number or boolean.");
+                }
+            } catch (RuntimeError error) {
+                errors[row >>> 6] |= 1L << row;
+                result[row] = Double.NaN;
+            }
+        }
+        return errors;
+    }
+
+    // Mostly small integers, so that == and division by zero actually
+    // happen, plus the odd NaN, infinity and -0.
+    private static Map<String, double[]> randomColumns(Random random, int rows) {
+        double[] special = {0.0, -0.0, Double.NaN, Double.POSITIVE_INFINITY, 0.5};
+        Map<String, double[]> columns = new HashMap<>();
+        for (String name : new String[] {"x", "y", "z"}) {
+            double[] column = new double[rows];
+            for (int i = 0; i < rows; i++) {
+                column[i] = random.nextInt(20) == 0 ? special[random.nextInt(special.length)]
+                                                   : random.nextInt(7) - 3;
+            }
+            columns.put(name, column);
+        }
+        return columns;
+    }
+
+    private static String randomSource(Random random) {
+        StringBuilder builder = new StringBuilder();
+        randomExpr(random, builder, 5);
+        return builder.toString();
+    }
+
+    private static void randomExpr(Random random, StringBuilder builder, int depth) {
+        String[] operators = {"+", "-", "*", "/", "==", "!=", "<", "<=", ">", ">="};
+        int pick = depth == 0 ? random.nextInt(3) : random.nextInt(7);
+        switch (pick) {
+            case 0:
+                builder.append(random.nextInt(4));
+                break;
+            case 1:
+                builder.append("xyz".charAt(random.nextInt(3)));
+                break;
+            case 2:
+                builder.append(random.nextInt(8) == 0 ? "true" : "x");
+                break;
+            case 3:
+                builder.append(random.nextInt(4) == 0 ? "!" : "-");
+                randomExpr(random, builder, depth - 1);
+                break;
+            case 4:
+                builder.append("(");
+                randomExpr(random, builder, depth - 1);
+                builder.append(")");
+                break;
+            case 5:
+                builder.append("(");
+                randomExpr(random, builder, depth - 1);
+                builder.append(" ? ");
+                randomExpr(random, builder, depth - 1);
+                builder.append(" : ");
+                randomExpr(random, builder, depth - 1);
+                builder.append(")");
+                break;
+            default:
+                randomExpr(random, builder, depth - 1);
+                builder.append(" " + operators[random.nextInt(operators.length)] + " ");
+                randomExpr(random, builder, depth - 1);
+                break;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// Limits for one evaluation (see Interpreter.evaluateWithin()): how many
+// nodes it may visit, how long a string or an array it may build, and how
+// long it may run. Anything left at NO_LIMIT isn't checked. Every element
+// of an array that's made or computed counts as a node too.
+//
+// cancel() can be called from any other thread to stop an evaluation that
+// is using this budget. The interpreter only looks at the limits every
+// CHECK_EVERY nodes, so it stops soon after, not immediately. A cancelled
+// Budget stays cancelled, so make a new one for the next evaluation.
+class Budget {
+    static final long NO_LIMIT = Long.MAX_VALUE;
+
+    final long maxNodes;
+    final long maxStringLength;
+    final long maxArrayLength;
+    final long timeoutNanos;
+    private volatile boolean cancelled = false;
+
+    Budget(long maxNodes, long maxStringLength, long maxArrayLength, long timeoutMillis) {
+        this.maxNodes = maxNodes;
+        this.maxStringLength = maxStringLength;
+        this.maxArrayLength = maxArrayLength;
+        this.timeoutNanos = timeoutMillis == NO_LIMIT ? NO_LIMIT : timeoutMillis * 1_000_000;
+    }
+
+    void cancel() {
+        cancelled = true;
+    }
+
+    boolean isCancelled() {
+        return cancelled;
+    }
+
+    // `Budget [depth=16] [repeats=200]`: how much the budget checks cost,
+    // on a balanced tree of additions with 2^depth leaves, evaluated with
+    // no budget and with a (never reached) budget on every limit. Then
+    // cancels a long evaluation from another thread and reports how long
+    // it took to stop.
+    public static void main(String[] args) throws InterruptedException {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+
+        StringBuilder source = new StringBuilder();
+        balanced(source, depth);
+        List<Token> tokens = new Scanner(source.toString()).scanTokens();
+        Expr expr = new Parser(tokens).parse();
+        new TypeChecker(null).check(expr);
+        long[] count = {0};
+        ExprWalker.postOrder(expr, node -> count[0]++);
+        long nodes = count[0];
+
+        // Alternating rounds, keeping the best of each: timings on a busy
+        // machine are noisy enough to drown a difference of a few percent.
+        Interpreter interpreter = new Interpreter();
+        double free = Double.MAX_VALUE;
+        double budgeted = Double.MAX_VALUE;
+        for (int round = 0; round < 10; round++) {
+            free = Math.min(free, time(() -> interpreter.evaluate(expr), repeats, nodes));
+            budgeted = Math.min(budgeted, time(() -> interpreter.evaluateWithin(expr,
+                new Budget(Long.MAX_VALUE - 1, 1_000_000, 1_000_000, 60_000)), repeats, nodes));
+        }
+        System.out.println(String.format(
+            "%d nodes: %.2f ns/node without a budget, %.2f ns/node with one (%+.1f%%)",
+            nodes, free, budgeted, (budgeted - free) / free * 100));
+
+        // Long enough to still be running when it gets cancelled.
+        Budget budget = new Budget(NO_LIMIT, NO_LIMIT, NO_LIMIT, NO_LIMIT);
+        long[] cancelledAt = {0};
+        Thread canceller = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                return;
+            }
+            cancelledAt[0] = System.nanoTime();
+            budget.cancel();
+        });
+        canceller.start();
+        try {
+            for (;;) interpreter.evaluateWithin(expr, budget);
+        } catch (BudgetExceededError error) {
+            long stopped = System.nanoTime();
+            canceller.join();
+            // The time includes getting the CPU back from the cancelling
+            // thread, which can be a whole scheduler slice on one core.
+            System.out.println(error.reason + " after " + error.nodesVisited +
+                " nodes of the current evaluation; stopped " +
+                (stopped - cancelledAt[0]) / 1000 + " us after cancel() (checks run every " +
+                Interpreter.CHECK_EVERY + " nodes)");
+        }
+    }
+
+    private static double time(Runnable run, int repeats, long nodes) {
+        for (int i = 0; i < repeats / 4; i++) run.run();
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) run.run();
+        return (System.nanoTime() - start) / (double)repeats / nodes;
+    }
+
+    private static void balanced(StringBuilder source, int depth) {
+        if (depth == 0) {
+            source.append(depth + 1);
+            return;
+        }
+        source.append("(");
+        balanced(source, depth - 1);
+        source.append(depth % 2 == 0 ? " + " : " - ");
+        balanced(source, depth - 1);
+        source.append(")");
+    }
+}
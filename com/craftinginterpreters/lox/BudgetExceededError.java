@@ -0,0 +1,23 @@
+package com.craftinginterpreters.lox;
+
+// Thrown when an evaluation runs past its Budget or is cancelled. It is a
+// RuntimeError, so interpret() reports it like any other, but callers that
+// care can catch it on its own and look at how far the evaluation got.
+class BudgetExceededError extends RuntimeError {
+    enum Reason { NODES, STRING_LENGTH, ARRAY_LENGTH, DEADLINE, CANCELLED }
+
+    final Reason reason;
+    final long nodesVisited;
+    final long elapsedNanos;
+
+    // `token` is the nearest token to where evaluation stopped, or null if
+    // the node there doesn't have one.
+    BudgetExceededError(Token token, Reason reason, String message,
+                        long nodesVisited, long elapsedNanos) {
+        super(token, message + " (stopped after " + nodesVisited + " nodes, " +
+                     elapsedNanos / 1_000_000 + " ms).");
+        this.reason = reason;
+        this.nodesVisited = nodesVisited;
+        this.elapsedNanos = elapsedNanos;
+    }
+}
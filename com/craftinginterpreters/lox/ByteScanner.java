@@ -0,0 +1,270 @@
+package com.craftinginterpreters.lox;
+
+import java.util.AbstractList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// Scanner for "--mmap": same tokens as Scanner, but it reads the UTF-8
+// bytes of a MappedSource directly instead of a String that holds a decoded
+// copy of the whole file. Everything outside of string literals is ASCII,
+// and inside a string literal we only have to find the closing '"' (UTF-8
+// never uses bytes below 0x80 inside a multi-byte character), so nothing
+// is decoded while scanning. String literals become Utf8Literals that are
+// decoded when they're used.
+//
+// Tokens are made on demand, as the Parser asks for them, and only the last
+// few are kept around (see tokens()). So for a huge data script there is
+// never a full token list (or decoded source) on the heap.
+//
+// Offsets are byte offsets. They don't fit Token.offset past 2GB; those
+// tokens get -1, like tokens that didn't come from a Scanner.
+class ByteScanner {
+    private final MappedSource source;
+    private final long length;
+    private final List<Diagnostic> diagnostics;
+
+    private long start = 0;
+    private long current = 0;
+    private int line = 1;
+    private int comment_block_count = 0;
+    private Token token = null;
+
+    ByteScanner(MappedSource source, List<Diagnostic> diagnostics) {
+        this.source = source;
+        this.length = source.length();
+        this.diagnostics = diagnostics;
+    }
+
+    // Scans just far enough to produce one more token. Returns EOF at the
+    // end (and keeps returning it).
+    Token nextToken() {
+        while (!isAtEnd()) {
+            start = current;
+            token = null;
+            scanToken();
+            if (token != null) return token;
+        }
+        return new Token(EOF, "", null, line, offset(current));
+    }
+
+    // The tokens as a List for the Parser, scanned as they are asked for.
+    // The Parser only ever looks at the current token and the one before
+    // it, so the list just keeps the last KEEP tokens; asking for an older
+    // one throws. size() is the number of tokens scanned so far.
+    List<Token> tokens() {
+        return new AbstractList<Token>() {
+            private static final int KEEP = 16;
+            private final Token[] recent = new Token[KEEP];
+            private int scanned = 0;
+            private boolean done = false;
+
+            @Override
+            public Token get(int index) {
+                while (index >= scanned) {
+                    if (done) return recent[(scanned - 1) % KEEP];
+                    Token next = nextToken();
+                    recent[scanned % KEEP] = next;
+                    scanned++;
+                    if (next.type == EOF) done = true;
+                }
+                if (index < scanned - KEEP || index < 0) {
+                    throw new IndexOutOfBoundsException("Token " + index +
+                        " has already been dropped.");
+                }
+                return recent[index % KEEP];
+            }
+
+            @Override
+            public int size() {
+                return scanned;
+            }
+        };
+    }
+
+    private void scanToken() {
+        char c = advance();
+        switch (c) {
+            case '(': addToken(LEFT_PAREN, "("); break;
+            case ')': addToken(RIGHT_PAREN, ")"); break;
+            case '{': addToken(LEFT_BRACE, "{"); break;
+            case '}': addToken(RIGHT_BRACE, "}"); break;
+            case '[': addToken(LEFT_BRACKET, "["); break;
+            case ']': addToken(RIGHT_BRACKET, "]"); break;
+            case ',': addToken(COMMA, ","); break;
+            case '.': addToken(DOT, "."); break;
+            case '-': addToken(MINUS, "-"); break;
+            case '+': addToken(PLUS, "+"); break;
+            case ';': addToken(SEMICOLON, ";"); break;
+            case '*': addToken(STAR, "*"); break;
+            case '?': addToken(QUESTION, "?"); break;
+            case ':': addToken(COLON, ":"); break;
+            case '!':
+                if (match('=')) addToken(BANG_EQUAL, "!="); else addToken(BANG, "!");
+                break;
+            case '=':
+                if (match('=')) addToken(EQUAL_EQUAL, "=="); else addToken(EQUAL, "=");
+                break;
+            case '<':
+                if (match('=')) addToken(LESS_EQUAL, "<="); else addToken(LESS, "<");
+                break;
+            case '>':
+                if (match('=')) addToken(GREATER_EQUAL, ">="); else addToken(GREATER, ">");
+                break;
+            case '/':
+                if (match('/')) {
+                    while (peek() != '\n' && !isAtEnd()) advance();
+                } else if (match('*')) {
+                    comment_block();
+                } else {
+                    addToken(SLASH, "/");
+                }
+                break;
+
+            case ' ':
+            case '\r':
+            case '\t':
+                break;
+
+            case '\n':
+                line++;
+                break;
+
+            case '"': string(); break;
+            default:
+                if (isDigit(c)) {
+                    number();
+                } else if (isAlpha(c)) {
+                    identifier();
+                } else {
+                    // Report a multi-byte character once, not once per byte.
+                    while ((peek() & 0xC0) == 0x80) advance();
+                    error("Unexpected character.");
+                }
+                break;
+        }
+    }
+
+    // Same nesting rules as Scanner.comment_block().
+    private void comment_block() {
+        comment_block_count++;
+        while (comment_block_count > 0) {
+            if (isAtEnd()) {
+                error("Unterminated comment block.");
+                comment_block_count = 0;
+                return;
+            }
+
+            char c = advance();
+            if (c == '\n') line++;
+            if (c == '/' && peek() == '*') comment_block_count++;
+            if (c == '*' && peek() == '/') {
+                comment_block_count--;
+                if (comment_block_count == 0) advance();
+            }
+        }
+    }
+
+    private void identifier() {
+        while (isAlphaNumeric(peek())) advance();
+        String text = source.ascii(start, (int)(current - start));
+        TokenType type = Scanner.keywords.get(text);
+        if (type == null) type = IDENTIFIER;
+        addToken(type, text);
+    }
+
+    private void number() {
+        while (isDigit(peek())) advance();
+
+        if (peek() == '.' && isDigit(peekNext())) {
+            advance();
+            while (isDigit(peek())) advance();
+        }
+
+        String text = source.ascii(start, (int)(current - start));
+        token = new Token(NUMBER, text, Double.parseDouble(text), line, offset(start));
+    }
+
+    private void string() {
+        int startLine = line;
+        while (peek() != '"' && !isAtEnd()) {
+            if (peek() == '\n') line++;
+            advance();
+        }
+
+        if (isAtEnd()) {
+            error("Unterminated string.");
+            return;
+        }
+
+        advance();
+
+        long size = current - start - 2;
+        if (size > Integer.MAX_VALUE - 8) {
+            line = startLine;
+            error("String literal is too long.");
+            return;
+        }
+
+        // No lexeme: it would be a decoded copy of the string. Token.text()
+        // rebuilds it for error messages.
+        Utf8Literal value = new Utf8Literal(source, start + 1, (int)size);
+        token = new Token(STRING, null, value, line, offset(start));
+    }
+
+    private void error(String message) {
+        if (diagnostics != null) {
+            diagnostics.add(new Diagnostic(line, "", message));
+        } else {
+            Lox.error(line, message);
+        }
+    }
+
+    private boolean match(char expected) {
+        if (isAtEnd()) return false;
+        if (source.get(current) != expected) return false;
+
+        current++;
+        return true;
+    }
+
+    private char peek() {
+        if (isAtEnd()) return '\0';
+        return (char)(source.get(current) & 0xFF);
+    }
+
+    private char peekNext() {
+        if (current + 1 >= length) return '\0';
+        return (char)(source.get(current + 1) & 0xFF);
+    }
+
+    private boolean isAlpha(char c) {
+        return (c >= 'a' && c <= 'z') ||
+               (c >= 'A' && c <= 'Z') ||
+               c == '_';
+    }
+
+    private boolean isAlphaNumeric(char c) {
+        return isAlpha(c) || isDigit(c);
+    }
+
+    private boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private boolean isAtEnd() {
+        return current >= length;
+    }
+
+    private char advance() {
+        return (char)(source.get(current++) & 0xFF);
+    }
+
+    private void addToken(TokenType type, String lexeme) {
+        token = new Token(type, lexeme, null, line, offset(start));
+    }
+
+    private static int offset(long position) {
+        return position <= Integer.MAX_VALUE ? (int)position : -1;
+    }
+}
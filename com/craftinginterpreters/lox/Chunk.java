@@ -0,0 +1,370 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// An expression lowered to a flat list of stack machine instructions (see
+// Lowering), ready for StackVM to run. Each instruction is an opcode in
+// `code` followed by its operands, which are ints: indexes into
+// `constants` and `nodes`, variable slots, counts and jump targets (the
+// index in `code` to go to).
+//
+// `nodes` are the Expr nodes instructions came from. The VM only needs
+// them for error messages and for the operations it leaves to the
+// Interpreter (strings, arrays, calls), so values and errors are the same
+// as the tree interpreter's.
+//
+// Superinstructions (see Peephole) are one opcode that does the work of
+// two or three others. Their operands are the operands of those
+// instructions, in order: ADD_CONSTANT is CONSTANT then ADD, so it has a
+// constant index and then the ADD's node.
+class Chunk {
+    // Instructions                       operands
+    static final int CONSTANT = 0;        // constant
+    static final int GET = 1;             // slot, node (a Variable)
+    static final int SET = 2;             // slot, node (an Assign); keeps the value
+    static final int DEFINE = 3;          // slot; keeps the value
+    static final int POP = 4;
+    static final int NEGATE = 5;          // node
+    static final int NOT = 6;
+    static final int ADD = 7;             // node (the Binary), for all of these
+    static final int SUBTRACT = 8;
+    static final int MULTIPLY = 9;
+    static final int DIVIDE = 10;
+    static final int GREATER = 11;
+    static final int GREATER_EQUAL = 12;
+    static final int LESS = 13;
+    static final int LESS_EQUAL = 14;
+    static final int EQUAL = 15;
+    static final int NOT_EQUAL = 16;
+    static final int JUMP = 17;           // target
+    static final int JUMP_IF_FALSE = 18;  // target; pops the condition
+    static final int JUMP_IF_TRUE = 19;   // target; pops the condition
+    static final int ELEMENT = 20;        // node; checks an array element
+    static final int ARRAY = 21;          // node, count
+    static final int FILL = 22;           // node
+    static final int CALL = 23;           // node, count
+    static final int EVAL = 24;           // node; anything the tree interpreter has to do
+    static final int RETURN = 25;
+
+    // Superinstructions.
+    static final int ADD_CONSTANT = 32;
+    static final int SUBTRACT_CONSTANT = 33;
+    static final int MULTIPLY_CONSTANT = 34;
+    static final int DIVIDE_CONSTANT = 35;
+    static final int GET_ADD_CONSTANT = 36;
+    static final int GET_SUBTRACT_CONSTANT = 37;
+    static final int GET_MULTIPLY_CONSTANT = 38;
+    static final int GET_DIVIDE_CONSTANT = 39;
+    static final int GET_GET = 40;
+    static final int GET_GET_ADD = 41;
+    static final int GET_GET_SUBTRACT = 42;
+    static final int GET_GET_MULTIPLY = 43;
+    static final int SET_POP = 44;
+    static final int DEFINE_POP = 45;
+    static final int GREATER_JUMP = 46;
+    static final int GREATER_EQUAL_JUMP = 47;
+    static final int LESS_JUMP = 48;
+    static final int LESS_EQUAL_JUMP = 49;
+    static final int EQUAL_JUMP = 50;
+    static final int NOT_EQUAL_JUMP = 51;
+
+    static final int OPCODES = 52;
+
+    // Not an instruction: marks a jump target while the instructions are
+    // still a list, and is dropped by assemble().
+    static final int LABEL = -1;
+
+    static final String[] NAMES = new String[OPCODES];
+    // How many operand ints follow the opcode.
+    static final int[] OPERANDS = new int[OPCODES];
+    // The instructions a superinstruction replaces; null for the others.
+    static final int[][] PARTS = new int[OPCODES][];
+
+    static {
+        define(CONSTANT, "CONSTANT", 1);
+        define(GET, "GET", 2);
+        define(SET, "SET", 2);
+        define(DEFINE, "DEFINE", 1);
+        define(POP, "POP", 0);
+        define(NEGATE, "NEGATE", 1);
+        define(NOT, "NOT", 0);
+        define(ADD, "ADD", 1);
+        define(SUBTRACT, "SUBTRACT", 1);
+        define(MULTIPLY, "MULTIPLY", 1);
+        define(DIVIDE, "DIVIDE", 1);
+        define(GREATER, "GREATER", 1);
+        define(GREATER_EQUAL, "GREATER_EQUAL", 1);
+        define(LESS, "LESS", 1);
+        define(LESS_EQUAL, "LESS_EQUAL", 1);
+        define(EQUAL, "EQUAL", 1);
+        define(NOT_EQUAL, "NOT_EQUAL", 1);
+        define(JUMP, "JUMP", 1);
+        define(JUMP_IF_FALSE, "JUMP_IF_FALSE", 1);
+        define(JUMP_IF_TRUE, "JUMP_IF_TRUE", 1);
+        define(ELEMENT, "ELEMENT", 1);
+        define(ARRAY, "ARRAY", 2);
+        define(FILL, "FILL", 1);
+        define(CALL, "CALL", 2);
+        define(EVAL, "EVAL", 1);
+        define(RETURN, "RETURN", 0);
+
+        fuse(ADD_CONSTANT, "ADD_CONSTANT", CONSTANT, ADD);
+        fuse(SUBTRACT_CONSTANT, "SUBTRACT_CONSTANT", CONSTANT, SUBTRACT);
+        fuse(MULTIPLY_CONSTANT, "MULTIPLY_CONSTANT", CONSTANT, MULTIPLY);
+        fuse(DIVIDE_CONSTANT, "DIVIDE_CONSTANT", CONSTANT, DIVIDE);
+        fuse(GET_ADD_CONSTANT, "GET_ADD_CONSTANT", GET, CONSTANT, ADD);
+        fuse(GET_SUBTRACT_CONSTANT, "GET_SUBTRACT_CONSTANT", GET, CONSTANT, SUBTRACT);
+        fuse(GET_MULTIPLY_CONSTANT, "GET_MULTIPLY_CONSTANT", GET, CONSTANT, MULTIPLY);
+        fuse(GET_DIVIDE_CONSTANT, "GET_DIVIDE_CONSTANT", GET, CONSTANT, DIVIDE);
+        fuse(GET_GET, "GET_GET", GET, GET);
+        fuse(GET_GET_ADD, "GET_GET_ADD", GET, GET, ADD);
+        fuse(GET_GET_SUBTRACT, "GET_GET_SUBTRACT", GET, GET, SUBTRACT);
+        fuse(GET_GET_MULTIPLY, "GET_GET_MULTIPLY", GET, GET, MULTIPLY);
+        fuse(SET_POP, "SET_POP", SET, POP);
+        fuse(DEFINE_POP, "DEFINE_POP", DEFINE, POP);
+        fuse(GREATER_JUMP, "GREATER_JUMP", GREATER, JUMP_IF_FALSE);
+        fuse(GREATER_EQUAL_JUMP, "GREATER_EQUAL_JUMP", GREATER_EQUAL, JUMP_IF_FALSE);
+        fuse(LESS_JUMP, "LESS_JUMP", LESS, JUMP_IF_FALSE);
+        fuse(LESS_EQUAL_JUMP, "LESS_EQUAL_JUMP", LESS_EQUAL, JUMP_IF_FALSE);
+        fuse(EQUAL_JUMP, "EQUAL_JUMP", EQUAL, JUMP_IF_FALSE);
+        fuse(NOT_EQUAL_JUMP, "NOT_EQUAL_JUMP", NOT_EQUAL, JUMP_IF_FALSE);
+    }
+
+    private static void define(int op, String name, int operands) {
+        NAMES[op] = name;
+        OPERANDS[op] = operands;
+    }
+
+    private static void fuse(int op, String name, int... parts) {
+        int operands = 0;
+        for (int part : parts) operands += OPERANDS[part];
+        define(op, name, operands);
+        PARTS[op] = parts;
+    }
+
+    static boolean isJump(int op) {
+        if (op == JUMP || op == JUMP_IF_FALSE || op == JUMP_IF_TRUE) return true;
+        int[] parts = PARTS[op];
+        return parts != null && isJump(parts[parts.length - 1]);
+    }
+
+    // One instruction while Lowering and Peephole work on them as a list.
+    static class Instruction {
+        int op;
+        Object constant = null;
+        int slot = -1;
+        int count = 0;
+        Expr node = null;
+        // A LABEL instruction, for jumps.
+        Instruction target = null;
+        // What a superinstruction replaced, in order.
+        Instruction[] parts = null;
+
+        Instruction(int op) {
+            this.op = op;
+        }
+    }
+
+    final int[] code;
+    final Object[] constants;
+    final Expr[] nodes;
+    // The deepest the value stack gets.
+    final int maxStack;
+    // Where jumps go, so PairProfile knows which instructions can only be
+    // reached from the one before them.
+    final BitSet targets;
+
+    private Chunk(int[] code, Object[] constants, Expr[] nodes, int maxStack, BitSet targets) {
+        this.code = code;
+        this.constants = constants;
+        this.nodes = nodes;
+        this.maxStack = maxStack;
+        this.targets = targets;
+    }
+
+    // Lays the instructions out in `code`, with a RETURN at the end. Jumps
+    // only ever go forward (there are no loops in Lox yet), so one pass
+    // over the list is enough to work out the stack depth everywhere.
+    static Chunk assemble(List<Instruction> instructions) {
+        Map<Instruction, Integer> labels = new IdentityHashMap<>();
+        int size = 0;
+        for (Instruction instruction : instructions) {
+            if (instruction.op == LABEL) {
+                labels.put(instruction, size);
+            } else {
+                size += 1 + OPERANDS[instruction.op];
+            }
+        }
+
+        // And the RETURN.
+        int[] code = new int[size + 1];
+        List<Object> constants = new ArrayList<>();
+        Map<Object, Integer> constantIndexes = new HashMap<>();
+        List<Expr> nodes = new ArrayList<>();
+        BitSet targets = new BitSet(size);
+        Map<Instruction, Integer> depthAt = new IdentityHashMap<>();
+        int pc = 0;
+        int depth = 0;
+        int maxStack = 1;
+        boolean reachable = true;
+
+        for (Instruction instruction : instructions) {
+            if (instruction.op == LABEL) {
+                // Reached by a jump (whose depth we know) or by falling
+                // through from the instruction before it.
+                Integer jumpedFrom = depthAt.get(instruction);
+                if (!reachable && jumpedFrom != null) depth = jumpedFrom;
+                reachable = true;
+                continue;
+            }
+
+            code[pc++] = instruction.op;
+            Instruction[] parts = instruction.parts != null
+                ? instruction.parts : new Instruction[] { instruction };
+            for (Instruction part : parts) {
+                switch (part.op) {
+                    case CONSTANT:
+                        // Numbers and booleans are shared by value; strings
+                        // and arrays only when they are the same object.
+                        Object key = part.constant instanceof Double || part.constant instanceof Boolean
+                            ? part.constant : new IdentityKey(part.constant);
+                        Integer index = constantIndexes.get(key);
+                        if (index == null) {
+                            index = constants.size();
+                            constants.add(part.constant);
+                            constantIndexes.put(key, index);
+                        }
+                        code[pc++] = index;
+                        break;
+                    case GET:
+                    case SET:
+                        code[pc++] = part.slot;
+                        code[pc++] = nodes.size();
+                        nodes.add(part.node);
+                        break;
+                    case DEFINE:
+                        code[pc++] = part.slot;
+                        break;
+                    case JUMP:
+                    case JUMP_IF_FALSE:
+                    case JUMP_IF_TRUE:
+                        int target = labels.get(part.target);
+                        code[pc++] = target;
+                        targets.set(target);
+                        break;
+                    case ARRAY:
+                    case CALL:
+                        code[pc++] = nodes.size();
+                        nodes.add(part.node);
+                        code[pc++] = part.count;
+                        break;
+                    case POP:
+                    case NOT:
+                    case RETURN:
+                        break;
+                    default:
+                        code[pc++] = nodes.size();
+                        nodes.add(part.node);
+                        break;
+                }
+
+                depth += stackEffect(part);
+                maxStack = Math.max(maxStack, depth);
+                if (part.op == JUMP_IF_FALSE || part.op == JUMP_IF_TRUE || part.op == JUMP) {
+                    depthAt.put(part.target, depth);
+                }
+                if (part.op == JUMP) reachable = false;
+            }
+        }
+        code[pc] = RETURN;
+
+        return new Chunk(code, constants.toArray(), nodes.toArray(new Expr[0]), maxStack, targets);
+    }
+
+    private static int stackEffect(Instruction instruction) {
+        switch (instruction.op) {
+            case CONSTANT:
+            case GET:
+            case EVAL:
+                return 1;
+            case POP:
+            case JUMP_IF_FALSE:
+            case JUMP_IF_TRUE:
+            case FILL:
+                return -1;
+            case ARRAY:
+            case CALL:
+                return 1 - instruction.count;
+            case SET:
+            case DEFINE:
+            case NEGATE:
+            case NOT:
+            case JUMP:
+            case ELEMENT:
+            case RETURN:
+                return 0;
+            default:
+                // The binary operators.
+                return -1;
+        }
+    }
+
+    // Strings compare equal by content, but two different string literals
+    // must stay two constants: they can be different Utf8Literals, or a
+    // String and a Utf8Literal.
+    private static class IdentityKey {
+        final Object value;
+
+        IdentityKey(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof IdentityKey && ((IdentityKey)other).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(value);
+        }
+    }
+
+    // Where the instruction after the one at `pc` starts.
+    int next(int pc) {
+        return pc + 1 + OPERANDS[code[pc]];
+    }
+
+    // One instruction per line: "pc: NAME operands".
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        Interpreter interpreter = new Interpreter();
+        for (int pc = 0; pc < code.length; pc = next(pc)) {
+            int op = code[pc];
+            text.append(String.format("%5d%s %s", pc, targets.get(pc) ? ">" : ":", NAMES[op]));
+            int operand = pc + 1;
+            for (int part : PARTS[op] != null ? PARTS[op] : new int[] { op }) {
+                if (part == CONSTANT) {
+                    Object constant = constants[code[operand]];
+                    text.append(" ").append(constant instanceof Utf8Literal || constant instanceof String
+                        ? "\"" + constant + "\"" : interpreter.stringify(constant));
+                } else if (part == GET || part == SET || part == DEFINE) {
+                    text.append(" #").append(code[operand]);
+                } else if (isJump(part)) {
+                    text.append(" -> ").append(code[operand]);
+                } else if (part == ARRAY || part == CALL) {
+                    text.append(" ").append(code[operand + 1]);
+                }
+                operand += OPERANDS[part];
+            }
+            text.append("\n");
+        }
+        return text.toString();
+    }
+}
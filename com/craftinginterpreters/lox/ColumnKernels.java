@@ -0,0 +1,53 @@
+package com.craftinginterpreters.lox;
+
+// The inner loops of BatchEvaluator (and of LoxArray's element-wise
+// operators): one operator applied to the first `n` rows of whole
+// columns. There are two implementations that have to give bit-for-bit
+// identical results: ScalarColumnKernels (plain loops) and
+// VectorColumnKernels (jdk.incubator.vector SIMD), which is only used
+// when it's asked for and that module is available.
+interface ColumnKernels {
+    void add(double[] a, double[] b, double[] out, int n);
+    void subtract(double[] a, double[] b, double[] out, int n);
+    void multiply(double[] a, double[] b, double[] out, int n);
+
+    // Rows where b is zero get NaN in `out` and their bit set in `errors`.
+    void divide(double[] a, double[] b, double[] out, long[] errors, int n);
+
+    void negate(double[] a, double[] out, int n);
+
+    // operator is one of GREATER, GREATER_EQUAL, LESS, LESS_EQUAL,
+    // EQUAL_EQUAL or BANG_EQUAL. Equality means the same thing as
+    // Interpreter.isEqual() on two Doubles (Double.equals()): NaN equals
+    // NaN, but 0.0 doesn't equal -0.0.
+    void compare(TokenType operator, double[] a, double[] b, boolean[] out, int n);
+
+    // out[i] = mask[i] ? ifTrue[i] : ifFalse[i]
+    void select(boolean[] mask, double[] ifTrue, double[] ifFalse, double[] out, int n);
+
+    // The plain loops, unless `-Djlox.kernels=vector` asks for the SIMD
+    // ones. The SIMD ones aren't always faster: depending on the CPU and
+    // on how many rows there are, they measured anywhere from a bit faster
+    // to 4x slower (BatchEvaluator's main times both), so they're not the
+    // default.
+    static ColumnKernels select() {
+        if ("vector".equals(System.getProperty("jlox.kernels"))) {
+            ColumnKernels vector = vector();
+            if (vector != null) return vector;
+        }
+        return new ScalarColumnKernels();
+    }
+
+    // The SIMD kernels, or null without jdk.incubator.vector (it's only
+    // there with --add-modules jdk.incubator.vector). The class is loaded
+    // by name so that nothing else in the interpreter needs that module to
+    // compile.
+    static ColumnKernels vector() {
+        try {
+            Class<?> vector = Class.forName("com.craftinginterpreters.lox.VectorColumnKernels");
+            return (ColumnKernels)vector.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+}
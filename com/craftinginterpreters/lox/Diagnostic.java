@@ -0,0 +1,28 @@
+package com.craftinginterpreters.lox;
+
+// One syntax error, collected instead of being printed straight away
+// through Lox.report(). Scanner and Parser fill a list of these when they
+// are given one (see "--check" in Lox).
+class Diagnostic {
+    final int line;
+    final String where;
+    final String message;
+
+    Diagnostic(int line, String where, String message) {
+        this.line = line;
+        this.where = where;
+        this.message = message;
+    }
+
+    static Diagnostic at(Token token, String message) {
+        if (token.type == TokenType.EOF) {
+            return new Diagnostic(token.line, " at end", message);
+        }
+        return new Diagnostic(token.line, " at '" + token.text() + "'", message);
+    }
+
+    // Same format as Lox.report().
+    public String toString() {
+        return "[line " + line + "] Error" + where + ": " + message;
+    }
+}
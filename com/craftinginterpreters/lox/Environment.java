@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// Where the values of variables live at runtime. Resolver has already
+// turned every name into a slot index, so this is just an array: no
+// hashing of names on every read and write.
+class Environment {
+    // Marks a slot whose "var" hasn't been evaluated (yet). That can happen
+    // when the declaration is in a ternary branch that wasn't taken.
+    private static final Object UNDEFINED = new Object();
+
+    private Object[] values;
+
+    Environment(int size) {
+        values = new Object[Math.max(size, 8)];
+        Arrays.fill(values, UNDEFINED);
+    }
+
+    Object get(int slot, Token name) {
+        if (slot < values.length) {
+            Object value = values[slot];
+            if (value != UNDEFINED) return value;
+        }
+
+        throw new RuntimeError(name,
+            "Undefined variable '" + name.lexeme + "'.");
+    }
+
+    boolean isDefined(int slot) {
+        return slot < values.length && values[slot] != UNDEFINED;
+    }
+
+    void define(int slot, Object value) {
+        if (slot >= values.length) grow(slot);
+        values[slot] = value;
+    }
+
+    void assign(int slot, Token name, Object value) {
+        if (slot >= values.length || values[slot] == UNDEFINED) {
+            throw new RuntimeError(name,
+                "Undefined variable '" + name.lexeme + "'.");
+        }
+        values[slot] = value;
+    }
+
+    private void grow(int slot) {
+        int length = values.length;
+        values = Arrays.copyOf(values, Math.max(slot + 1, length * 2));
+        Arrays.fill(values, length, values.length, UNDEFINED);
+    }
+}
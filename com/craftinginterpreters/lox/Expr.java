@@ -9,6 +9,41 @@ abstract class Expr {
         R visitLiteralExpr(Literal expr);
         R visitUnaryExpr(Unary expr);
         R visitTernaryExpr(Ternary expr);
+        R visitVariableExpr(Variable expr);
+        R visitAssignExpr(Assign expr);
+        R visitVarExpr(Var expr);
+        R visitSequenceExpr(Sequence expr);
+        R visitArrayLiteralExpr(ArrayLiteral expr);
+        R visitCallExpr(Call expr);
+        R visitDeferredExpr(Deferred expr);
+    }
+
+    LoxType type = LoxType.UNKNOWN;
+
+    // Set by every constructor: how many nodes this subtree has, and
+    // whether any of them writes a variable.
+    int size;
+    boolean writes;
+
+    static int sizeOf(Expr node) {
+        return node == null ? 0 : node.size;
+    }
+
+    static int sizeOf(List<Expr> nodes) {
+        int size = 0;
+        for (Expr node : nodes) size += node.size;
+        return size;
+    }
+
+    static boolean writes(Expr node) {
+        return node != null && node.writes;
+    }
+
+    static boolean writes(List<Expr> nodes) {
+        for (Expr node : nodes) {
+            if (node.writes) return true;
+        }
+        return false;
     }
 
     static class Binary extends Expr {
@@ -16,6 +51,8 @@ abstract class Expr {
             this.left = left;
             this.operator = operator;
             this.right = right;
+            this.size = 1 + sizeOf(left) + sizeOf(right);
+            this.writes = writes(left) || writes(right);
         }
 
         @Override
@@ -31,6 +68,8 @@ abstract class Expr {
     static class Grouping extends Expr {
         Grouping(Expr expression) {
             this.expression = expression;
+            this.size = 1 + sizeOf(expression);
+            this.writes = writes(expression);
         }
 
         @Override
@@ -44,6 +83,8 @@ abstract class Expr {
     static class Literal extends Expr {
         Literal(Object value) {
             this.value = value;
+            this.size = 1;
+            this.writes = false;
         }
 
         @Override
@@ -58,6 +99,8 @@ abstract class Expr {
         Unary(Token operator, Expr right) {
             this.operator = operator;
             this.right = right;
+            this.size = 1 + sizeOf(right);
+            this.writes = writes(right);
         }
 
         @Override
@@ -74,6 +117,8 @@ abstract class Expr {
             this.predicate = predicate;
             this.if_true = if_true;
             this.if_false = if_false;
+            this.size = 1 + sizeOf(predicate) + sizeOf(if_true) + sizeOf(if_false);
+            this.writes = writes(predicate) || writes(if_true) || writes(if_false);
         }
 
         @Override
@@ -86,5 +131,135 @@ abstract class Expr {
         final Expr if_false;
     }
 
+    static class Variable extends Expr {
+        Variable(Token name) {
+            this.name = name;
+            this.size = 1;
+            this.writes = false;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitVariableExpr(this);
+        }
+
+        final Token name;
+        int slot = -1;
+    }
+
+    static class Assign extends Expr {
+        Assign(Token name, Expr value) {
+            this.name = name;
+            this.value = value;
+            this.size = 1 + sizeOf(value);
+            this.writes = true;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitAssignExpr(this);
+        }
+
+        final Token name;
+        final Expr value;
+        int slot = -1;
+    }
+
+    static class Var extends Expr {
+        Var(Token name, Expr initializer) {
+            this.name = name;
+            this.initializer = initializer;
+            this.size = 1 + sizeOf(initializer);
+            this.writes = true;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitVarExpr(this);
+        }
+
+        final Token name;
+        final Expr initializer;
+        int slot = -1;
+    }
+
+    static class Sequence extends Expr {
+        Sequence(List<Expr> expressions) {
+            this.expressions = expressions;
+            this.size = 1 + sizeOf(expressions);
+            this.writes = writes(expressions);
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSequenceExpr(this);
+        }
+
+        final List<Expr> expressions;
+    }
+
+    static class ArrayLiteral extends Expr {
+        ArrayLiteral(Token bracket, List<Expr> elements, Expr count) {
+            this.bracket = bracket;
+            this.elements = elements;
+            this.count = count;
+            this.size = 1 + sizeOf(elements) + sizeOf(count);
+            this.writes = writes(elements) || writes(count);
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitArrayLiteralExpr(this);
+        }
+
+        final Token bracket;
+        final List<Expr> elements;
+        final Expr count;
+    }
+
+    static class Call extends Expr {
+        Call(Token name, Token paren, List<Expr> arguments) {
+            this.name = name;
+            this.paren = paren;
+            this.arguments = arguments;
+            this.size = 1 + sizeOf(arguments);
+            this.writes = writes(arguments);
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCallExpr(this);
+        }
+
+        final Token name;
+        final Token paren;
+        final List<Expr> arguments;
+        NativeFunction function = null;
+    }
+
+    static class Deferred extends Expr {
+        Deferred(List<Token> tokens, int[] regionEnds, int start, int end) {
+            this.tokens = tokens;
+            this.regionEnds = regionEnds;
+            this.start = start;
+            this.end = end;
+            this.size = 1;
+            this.writes = false;
+        }
+
+        @Override
+        <R> R accept(Visitor<R> visitor) {
+            return visitor.visitDeferredExpr(this);
+        }
+
+        final List<Token> tokens;
+        final int[] regionEnds;
+        final int start;
+        final int end;
+        volatile Expr parsed = null;
+        Resolver resolver = null;
+        int visibleSlots = 0;
+    }
+
     abstract <R> R accept(Visitor<R> visitor);
 }
@@ -0,0 +1,69 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+// Helpers for passes that have to look at every node of a tree. They use an
+// explicit stack instead of recursion, so machine-generated trees that are
+// hundreds of thousands of levels deep don't overflow the Java stack.
+class ExprWalker {
+    // Calls `action` on every node bottom-up: all children (left to right)
+    // before their parent. That is the same order a recursive visitor that
+    // visits the children first would use.
+    static void postOrder(Expr root, Consumer<Expr> action) {
+        List<Expr> nodes = new ArrayList<>();
+        List<Boolean> expanded = new ArrayList<>();
+        nodes.add(root);
+        expanded.add(false);
+
+        while (!nodes.isEmpty()) {
+            int top = nodes.size() - 1;
+            Expr node = nodes.get(top);
+            if (expanded.get(top)) {
+                nodes.remove(top);
+                expanded.remove(top);
+                action.accept(node);
+                continue;
+            }
+
+            expanded.set(top, true);
+            List<Expr> children = children(node);
+            for (int i = children.size() - 1; i >= 0; i--) {
+                nodes.add(children.get(i));
+                expanded.add(false);
+            }
+        }
+    }
+
+    // The direct children of a node, in source order.
+    static List<Expr> children(Expr node) {
+        List<Expr> children = new ArrayList<>(3);
+        if (node instanceof Expr.Binary) {
+            children.add(((Expr.Binary)node).left);
+            children.add(((Expr.Binary)node).right);
+        } else if (node instanceof Expr.Grouping) {
+            children.add(((Expr.Grouping)node).expression);
+        } else if (node instanceof Expr.Unary) {
+            children.add(((Expr.Unary)node).right);
+        } else if (node instanceof Expr.Ternary) {
+            children.add(((Expr.Ternary)node).predicate);
+            children.add(((Expr.Ternary)node).if_true);
+            children.add(((Expr.Ternary)node).if_false);
+        } else if (node instanceof Expr.Assign) {
+            children.add(((Expr.Assign)node).value);
+        } else if (node instanceof Expr.Var) {
+            Expr initializer = ((Expr.Var)node).initializer;
+            if (initializer != null) children.add(initializer);
+        } else if (node instanceof Expr.Sequence) {
+            children.addAll(((Expr.Sequence)node).expressions);
+        } else if (node instanceof Expr.ArrayLiteral) {
+            Expr.ArrayLiteral array = (Expr.ArrayLiteral)node;
+            children.addAll(array.elements);
+            if (array.count != null) children.add(array.count);
+        } else if (node instanceof Expr.Call) {
+            children.addAll(((Expr.Call)node).arguments);
+        }
+        return children;
+    }
+}
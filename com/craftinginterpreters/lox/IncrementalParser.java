@@ -0,0 +1,495 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+
+// Keeps the tokens and the Expr tree of a source around, so that after a
+// small text edit we only rescan the tokens near the edit and only reparse
+// the smallest grouping that contains it. Everything else (tokens and Expr
+// nodes) is reused from the previous snapshot.
+//
+// Rescanning: the scanner is always in its "ground" state right after a
+// token, and it never looks more than two characters past the end of a
+// token (peek() and peekNext() in number()). So we can restart right after
+// the last token that ends at least two characters before the edit, and
+// stop as soon as a freshly scanned token starts at the same (shifted)
+// spot as an old token past the edit. From there on the text is the same,
+// so the tokens are the same, just moved. This is also what keeps us safe
+// around multi-line strings and nested block comments: an edit that opens
+// one simply doesn't resync until it is closed again.
+//
+// Reparsing: a grouping is always parsed as "( expression )" no matter
+// where it appears, so if its parentheses weren't touched and the new
+// tokens between them parse cleanly right up to the ')', the rest of the
+// tree parses exactly like before. Otherwise we fall back to a full parse.
+// The rest of the tree is reused, except for the nodes that hold a token
+// after the edit when the edit moved those (to another offset or line):
+// they, and the nodes above them, are copied with the moved tokens, so
+// runtime errors still point at the right line.
+class IncrementalParser {
+    static class Snapshot {
+        final String source;
+        final List<Token> tokens;
+        final Expr expr;
+        final List<Diagnostic> diagnostics;
+        // Grouping -> { '(' index, ')' index } into `tokens`.
+        final Map<Expr, int[]> groupings;
+
+        // What the edit that produced this snapshot actually redid.
+        final int rescannedTokens;
+        final boolean reparsedFully;
+
+        Snapshot(String source, List<Token> tokens, Expr expr,
+                 List<Diagnostic> diagnostics, Map<Expr, int[]> groupings,
+                 int rescannedTokens, boolean reparsedFully) {
+            this.source = source;
+            this.tokens = tokens;
+            this.expr = expr;
+            this.diagnostics = diagnostics;
+            this.groupings = groupings;
+            this.rescannedTokens = rescannedTokens;
+            this.reparsedFully = reparsedFully;
+        }
+    }
+
+    // Scans and parses from scratch.
+    static Snapshot parse(String source) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        List<Token> tokens = new Scanner(source, diagnostics).scanTokens();
+        return parseTokens(source, tokens, diagnostics, tokens.size());
+    }
+
+    private static Snapshot parseTokens(String source, List<Token> tokens,
+                                        List<Diagnostic> diagnostics,
+                                        int rescanned) {
+        Map<Expr, int[]> groupings = new IdentityHashMap<>();
+        Parser parser = new Parser(tokens, diagnostics);
+        parser.groupingSpans = groupings;
+        Expr expr = parser.parse();
+        return new Snapshot(source, tokens, expr, diagnostics, groupings,
+                            rescanned, true);
+    }
+
+    // Replaces `removed` characters at `offset` with `inserted`.
+    static Snapshot edit(Snapshot old, int offset, int removed, String inserted) {
+        String source = old.source.substring(0, offset) + inserted +
+                        old.source.substring(offset + removed);
+
+        // We can only splice into a snapshot without errors, because the
+        // errors of the reused parts aren't tracked per token.
+        if (!old.diagnostics.isEmpty()) return parse(source);
+
+        int delta = inserted.length() - removed;
+        List<Token> oldTokens = old.tokens;
+
+        // First token whose lookahead might see the edit. Token ends only
+        // ever go up, so this is a binary search.
+        int low = 0;
+        int high = oldTokens.size() - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (end(oldTokens.get(middle)) + 2 <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int first = low;
+
+        int restart = first == 0 ? 0 : end(oldTokens.get(first - 1));
+        int line = first == 0 ? 1 : oldTokens.get(first - 1).line;
+
+        List<Diagnostic> scanErrors = new ArrayList<>();
+        Scanner scanner = new Scanner(source, scanErrors, restart, line);
+        List<Token> fresh = new ArrayList<>();
+        int resync = first;
+        int lineDelta = 0;
+        for (;;) {
+            Token token = scanner.nextToken();
+
+            // Skip the old tokens that start before this one.
+            while (resync < oldTokens.size() &&
+                   oldTokens.get(resync).offset + delta < token.offset) {
+                resync++;
+            }
+
+            if (token.offset >= offset + inserted.length() &&
+                resync < oldTokens.size()) {
+                Token oldToken = oldTokens.get(resync);
+                if (oldToken.offset >= offset + removed &&
+                    oldToken.offset + delta == token.offset) {
+                    lineDelta = token.line - oldToken.line;
+                    break;
+                }
+            }
+
+            fresh.add(token);
+            if (token.type == TokenType.EOF) {
+                resync = oldTokens.size();
+                break;
+            }
+        }
+
+        List<Token> tokens = new ArrayList<>(first + fresh.size() +
+                                             oldTokens.size() - resync);
+        tokens.addAll(oldTokens.subList(0, first));
+        tokens.addAll(fresh);
+        // Old token -> its moved copy, for the ones that moved.
+        Map<Token, Token> moved = new IdentityHashMap<>();
+        for (int i = resync; i < oldTokens.size(); i++) {
+            Token token = shift(oldTokens.get(i), delta, lineDelta);
+            if (token != oldTokens.get(i)) moved.put(oldTokens.get(i), token);
+            tokens.add(token);
+        }
+
+        if (!scanErrors.isEmpty()) return parseTokens(source, tokens, scanErrors, fresh.size());
+
+        return reparse(old, source, tokens, first, resync, fresh.size(), moved);
+    }
+
+    private static Snapshot reparse(Snapshot old, String source,
+                                    List<Token> tokens, int first,
+                                    int resync, int rescanned,
+                                    Map<Token, Token> moved) {
+        int tokenDelta = rescanned - (resync - first);
+
+        // Smallest grouping whose parentheses are both outside of the
+        // rescanned window.
+        Expr target = null;
+        int[] targetSpan = null;
+        for (Map.Entry<Expr, int[]> entry : old.groupings.entrySet()) {
+            int[] span = entry.getValue();
+            if (span[0] < first && span[1] >= resync &&
+                (targetSpan == null || span[0] > targetSpan[0])) {
+                target = entry.getKey();
+                targetSpan = span;
+            }
+        }
+        if (target == null) return parseTokens(source, tokens, new ArrayList<>(), rescanned);
+
+        int open = targetSpan[0];
+        int close = targetSpan[1] + tokenDelta;
+        Map<Expr, int[]> groupings = new IdentityHashMap<>();
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Parser parser = new Parser(tokens, diagnostics);
+        parser.groupingSpans = groupings;
+        Expr inner = parser.reparseGrouping(open, close);
+        if (inner == null) return parseTokens(source, tokens, new ArrayList<>(), rescanned);
+
+        Expr replacement = new Expr.Grouping(inner);
+        groupings.put(replacement, new int[] { open, close });
+
+        // Carry over (and shift) the spans of every grouping outside of the
+        // one we just replaced.
+        for (Map.Entry<Expr, int[]> entry : old.groupings.entrySet()) {
+            int[] span = entry.getValue();
+            if (span[0] >= open && span[1] <= targetSpan[1]) continue;
+            if (span[0] >= resync) {
+                groupings.put(entry.getKey(), new int[] {
+                    span[0] + tokenDelta, span[1] + tokenDelta });
+            } else if (span[1] >= resync) {
+                groupings.put(entry.getKey(), new int[] {
+                    span[0], span[1] + tokenDelta });
+            } else {
+                groupings.put(entry.getKey(), span);
+            }
+        }
+
+        // Bottom-up, so every node sees its children's copies: the ones on
+        // the path to the grouping, and the ones holding moved tokens.
+        Map<Expr, Expr> copies = new IdentityHashMap<>();
+        copies.put(target, replacement);
+        ExprWalker.postOrder(old.expr, node -> {
+            if (copies.containsKey(node)) return;
+            Expr copy = rebuild(node, copies, moved);
+            if (copy != node) {
+                copies.put(node, copy);
+                int[] span = groupings.remove(node);
+                if (span != null) groupings.put(copy, span);
+            }
+        });
+        Expr expr = replaced(old.expr, copies);
+
+        return new Snapshot(source, tokens, expr, diagnostics, groupings,
+                            rescanned, false);
+    }
+
+    private static int end(Token token) {
+        return token.offset + token.lexeme.length();
+    }
+
+    private static Token shift(Token token, int delta, int lineDelta) {
+        if (delta == 0 && lineDelta == 0) return token;
+        return new Token(token.type, token.lexeme, token.literal,
+                         token.line + lineDelta, token.offset + delta);
+    }
+
+    // `node` with its children swapped for their `copies` and its tokens
+    // for their `moved` versions, or `node` itself if none of them
+    // changed. The Expr classes are immutable, so this is how we "edit"
+    // the tree.
+    private static Expr rebuild(Expr node, Map<Expr, Expr> copies,
+                                Map<Token, Token> moved) {
+        if (node instanceof Expr.Binary) {
+            Expr.Binary expr = (Expr.Binary)node;
+            Expr left = replaced(expr.left, copies);
+            Token operator = replaced(expr.operator, moved);
+            Expr right = replaced(expr.right, copies);
+            if (left == expr.left && operator == expr.operator && right == expr.right) return node;
+            return new Expr.Binary(left, operator, right);
+        }
+        if (node instanceof Expr.Grouping) {
+            Expr expression = replaced(((Expr.Grouping)node).expression, copies);
+            if (expression == ((Expr.Grouping)node).expression) return node;
+            return new Expr.Grouping(expression);
+        }
+        if (node instanceof Expr.Unary) {
+            Expr.Unary expr = (Expr.Unary)node;
+            Token operator = replaced(expr.operator, moved);
+            Expr right = replaced(expr.right, copies);
+            if (operator == expr.operator && right == expr.right) return node;
+            return new Expr.Unary(operator, right);
+        }
+        if (node instanceof Expr.Ternary) {
+            Expr.Ternary expr = (Expr.Ternary)node;
+            Expr predicate = replaced(expr.predicate, copies);
+            Expr if_true = replaced(expr.if_true, copies);
+            Expr if_false = replaced(expr.if_false, copies);
+            if (predicate == expr.predicate && if_true == expr.if_true &&
+                if_false == expr.if_false) {
+                return node;
+            }
+            return new Expr.Ternary(predicate, if_true, if_false);
+        }
+        if (node instanceof Expr.Variable) {
+            Token name = replaced(((Expr.Variable)node).name, moved);
+            if (name == ((Expr.Variable)node).name) return node;
+            return new Expr.Variable(name);
+        }
+        if (node instanceof Expr.Assign) {
+            Expr.Assign expr = (Expr.Assign)node;
+            Token name = replaced(expr.name, moved);
+            Expr value = replaced(expr.value, copies);
+            if (name == expr.name && value == expr.value) return node;
+            return new Expr.Assign(name, value);
+        }
+        if (node instanceof Expr.Var) {
+            Expr.Var expr = (Expr.Var)node;
+            Token name = replaced(expr.name, moved);
+            Expr initializer = replaced(expr.initializer, copies);
+            if (name == expr.name && initializer == expr.initializer) return node;
+            return new Expr.Var(name, initializer);
+        }
+        if (node instanceof Expr.Sequence) {
+            List<Expr> expressions = replaced(((Expr.Sequence)node).expressions, copies);
+            if (expressions == ((Expr.Sequence)node).expressions) return node;
+            return new Expr.Sequence(expressions);
+        }
+        if (node instanceof Expr.ArrayLiteral) {
+            Expr.ArrayLiteral expr = (Expr.ArrayLiteral)node;
+            Token bracket = replaced(expr.bracket, moved);
+            List<Expr> elements = replaced(expr.elements, copies);
+            Expr count = replaced(expr.count, copies);
+            if (bracket == expr.bracket && elements == expr.elements && count == expr.count) {
+                return node;
+            }
+            return new Expr.ArrayLiteral(bracket, elements, count);
+        }
+        if (node instanceof Expr.Call) {
+            Expr.Call expr = (Expr.Call)node;
+            Token name = replaced(expr.name, moved);
+            Token paren = replaced(expr.paren, moved);
+            List<Expr> arguments = replaced(expr.arguments, copies);
+            if (name == expr.name && paren == expr.paren && arguments == expr.arguments) {
+                return node;
+            }
+            return new Expr.Call(name, paren, arguments);
+        }
+        // Literals have nothing to swap.
+        return node;
+    }
+
+    // What `value` was swapped for, or `value` itself (also for null).
+    private static <T> T replaced(T value, Map<T, T> replacements) {
+        T replacement = replacements.get(value);
+        return replacement != null ? replacement : value;
+    }
+
+    // The list itself if none of its nodes were swapped.
+    private static List<Expr> replaced(List<Expr> nodes, Map<Expr, Expr> copies) {
+        List<Expr> result = null;
+        for (int i = 0; i < nodes.size(); i++) {
+            Expr copy = replaced(nodes.get(i), copies);
+            if (copy == nodes.get(i)) continue;
+            if (result == null) result = new ArrayList<>(nodes);
+            result.set(i, copy);
+        }
+        return result != null ? result : nodes;
+    }
+
+    // Randomized check: applies random edits to random sources and
+    // compares every incremental snapshot against a full rescan/reparse.
+    // Usage: IncrementalParser [iterations] [seed]
+    public static void main(String[] args) {
+        int iterations = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        Random random = new Random(seed);
+
+        int incremental = 0;
+        for (int i = 0; i < iterations; i++) {
+            Snapshot snapshot = parse(randomSource(random));
+            for (int e = 0; e < 20; e++) {
+                String text = snapshot.source;
+                int offset, removed;
+                String inserted;
+                Token number = randomNumber(random, snapshot.tokens);
+                if (number != null && random.nextBoolean()) {
+                    // Keeps the source valid, so most of these should be
+                    // handled by reparsing a single grouping.
+                    offset = number.offset;
+                    removed = number.lexeme.length();
+                    inserted = randomSource(random);
+                } else {
+                    offset = random.nextInt(text.length() + 1);
+                    removed = random.nextInt(Math.min(4, text.length() - offset) + 1);
+                    inserted = random.nextInt(3) == 0 ? randomSource(random)
+                                                      : randomPiece(random);
+                }
+
+                snapshot = edit(snapshot, offset, removed, inserted);
+                Snapshot full = parse(snapshot.source);
+                String problem = compare(snapshot, full);
+                if (problem != null) {
+                    System.out.println("Mismatch (" + problem + ") after editing " +
+                        "offset " + offset + ", removed " + removed +
+                        ", inserted '" + inserted + "'");
+                    System.out.println("old source: '" + text + "'");
+                    System.out.println("new source: '" + snapshot.source + "'");
+                    System.exit(1);
+                }
+                if (!snapshot.reparsedFully) incremental++;
+
+                // Broken sources always get a full reparse, so don't stay
+                // on one for too long.
+                if (!snapshot.diagnostics.isEmpty() && random.nextBoolean()) {
+                    snapshot = parse(randomSource(random));
+                }
+            }
+        }
+
+        System.out.println("OK: " + iterations * 20 + " edits, " + incremental +
+                           " reparsed incrementally.");
+    }
+
+    private static String compare(Snapshot a, Snapshot b) {
+        if (a.tokens.size() != b.tokens.size()) return "token count";
+        for (int i = 0; i < a.tokens.size(); i++) {
+            Token x = a.tokens.get(i);
+            Token y = b.tokens.get(i);
+            if (x.type != y.type || !x.lexeme.equals(y.lexeme) ||
+                !Objects.equals(x.literal, y.literal) ||
+                x.line != y.line || x.offset != y.offset) {
+                return "token " + i + ": " + x + " vs " + y;
+            }
+        }
+        if (a.diagnostics.isEmpty() != b.diagnostics.isEmpty()) return "errors";
+        if ((a.expr == null) != (b.expr == null)) return "tree";
+        if (a.expr != null) {
+            AstPrinter printer = new AstPrinter();
+            if (!printer.print(a.expr).equals(printer.print(b.expr))) return "tree";
+
+            // Same text, but the nodes' tokens also have to say where they
+            // are: that's what runtime errors report.
+            List<Token> x = treeTokens(a.expr);
+            List<Token> y = treeTokens(b.expr);
+            for (int i = 0; i < x.size(); i++) {
+                if (x.get(i).line != y.get(i).line || x.get(i).offset != y.get(i).offset) {
+                    return "tree token " + x.get(i).lexeme + " at line " + x.get(i).line +
+                           ", offset " + x.get(i).offset + " vs line " + y.get(i).line +
+                           ", offset " + y.get(i).offset;
+                }
+            }
+        }
+        return null;
+    }
+
+    // The tokens the nodes of a tree hold, bottom-up.
+    private static List<Token> treeTokens(Expr root) {
+        List<Token> tokens = new ArrayList<>();
+        ExprWalker.postOrder(root, node -> {
+            if (node instanceof Expr.Binary) tokens.add(((Expr.Binary)node).operator);
+            if (node instanceof Expr.Unary) tokens.add(((Expr.Unary)node).operator);
+            if (node instanceof Expr.Variable) tokens.add(((Expr.Variable)node).name);
+            if (node instanceof Expr.Assign) tokens.add(((Expr.Assign)node).name);
+            if (node instanceof Expr.Var) tokens.add(((Expr.Var)node).name);
+            if (node instanceof Expr.ArrayLiteral) tokens.add(((Expr.ArrayLiteral)node).bracket);
+            if (node instanceof Expr.Call) {
+                tokens.add(((Expr.Call)node).name);
+                tokens.add(((Expr.Call)node).paren);
+            }
+        });
+        return tokens;
+    }
+
+    private static Token randomNumber(Random random, List<Token> tokens) {
+        List<Token> numbers = new ArrayList<>();
+        for (Token token : tokens) {
+            if (token.type == TokenType.NUMBER) numbers.add(token);
+        }
+        if (numbers.isEmpty()) return null;
+        return numbers.get(random.nextInt(numbers.size()));
+    }
+
+    private static final String[] PIECES = {
+        "1", "23.5", "7", "\"s\"", "\"a\nb\"", "\"", "true", "nil", "x",
+        "+", "-", "*", "/", "!", "==", "!=", "<", ">=", "?", ":", ",",
+        "(", ")", " ", "\n", "// c\n", "/* b */", "/*", "*/", "/* a /* n */ */", "."
+    };
+
+    private static String randomPiece(Random random) {
+        return PIECES[random.nextInt(PIECES.length)];
+    }
+
+    // Mostly valid expressions, so that the grouping reparse gets used.
+    private static String randomSource(Random random) {
+        StringBuilder builder = new StringBuilder();
+        randomExpr(random, builder, 4);
+        return builder.toString();
+    }
+
+    private static void randomExpr(Random random, StringBuilder builder, int depth) {
+        int pick = depth == 0 ? 0 : random.nextInt(5);
+        switch (pick) {
+            case 0:
+                builder.append(random.nextInt(100));
+                break;
+            case 1:
+                builder.append("(");
+                randomExpr(random, builder, depth - 1);
+                builder.append(random.nextBoolean() ? ")" : "\n)");
+                break;
+            case 2:
+                randomExpr(random, builder, depth - 1);
+                builder.append(" + ");
+                randomExpr(random, builder, depth - 1);
+                break;
+            case 3:
+                builder.append("-");
+                randomExpr(random, builder, depth - 1);
+                break;
+            default:
+                builder.append("(");
+                randomExpr(random, builder, depth - 1);
+                builder.append(" ? ");
+                randomExpr(random, builder, depth - 1);
+                builder.append(" /* c */ : ");
+                randomExpr(random, builder, depth - 1);
+                builder.append(")");
+                break;
+        }
+    }
+}
@@ -1,11 +1,49 @@
 package com.craftinginterpreters.lox;
 
+import java.util.Arrays;
+import java.util.List;
+
 import static com.craftinginterpreters.lox.TokenType.*;
 
 class Interpreter implements Expr.Visitor<Object> {
+    // Past this many nested evaluate() calls we switch to
+    // evaluateIteratively(), which keeps its own stack on the heap.
+    private static final int MAX_RECURSION = 500;
+    private int depth = 0;
+
+    // Variables, by the slot Resolver gave them.
+    final Environment environment;
+
+    // Applies to every interpret() call when set (see "--max-nodes" etc.).
+    Budget budget = null;
+
+    // Budget checks: evaluate() only decrements `countdown`, and when it
+    // hits zero checkBudget() looks at the limits (and the clock) and
+    // refills it. Without a budget it starts at Integer.MAX_VALUE, so the
+    // check practically never runs.
+    static final int CHECK_EVERY = 1024;
+    private Budget active = null;
+    private int countdown = Integer.MAX_VALUE;
+    private int countdownStart = Integer.MAX_VALUE;
+    private long nodesBefore = 0;
+    private long startNanos = 0;
+    private long maxStringLength = Budget.NO_LIMIT;
+    private long maxArrayLength = Budget.NO_LIMIT;
+
+    Interpreter() {
+        this(new Environment(0));
+    }
+
+    // ParallelInterpreter's workers all read the same variables.
+    Interpreter(Environment environment) {
+        this.environment = environment;
+    }
 
     @Override
     public Object visitLiteralExpr(Expr.Literal expr) {
+        // A string literal from ByteScanner stays a Utf8Literal (still
+        // undecoded) as a value too; it's decoded when an operator or print
+        // looks at the text. See isString() and isEqual().
         return expr.value;
     }
 
@@ -16,13 +54,22 @@ class Interpreter implements Expr.Visitor<Object> {
 
     @Override
     public Object visitUnaryExpr(Expr.Unary expr) {
-        Object right = evaluate(expr.right);
+        return unary(expr, evaluate(expr.right));
+    }
 
+    // Package-private, like binary(), for TieredEvaluator's compiled code.
+    Object unary(Expr.Unary expr, Object right) {
         switch (expr.operator.type) {
             case BANG:
                 return !isTruthy(right);
             case MINUS:
-                checkNumberOperand(expr.operator, right);
+                if (expr.right.type != LoxType.NUMBER) {
+                    if (right instanceof LoxArray) {
+                        chargeElements(expr, ((LoxArray)right).length());
+                        return ((LoxArray)right).negate(expr.operator);
+                    }
+                    checkNumberOperand(expr.operator, right);
+                }
                 return -(double)right;
         }
 
@@ -40,13 +87,26 @@ class Interpreter implements Expr.Visitor<Object> {
         throw new RuntimeError(operator, "Operands must be numbers.");
     }
 
-    private boolean isTruthy(Object object) {
+    // True when TypeChecker already proved that both operands are numbers,
+    // so there's no need to check them again on every evaluation.
+    private static boolean provenNumbers(Expr.Binary expr) {
+        return expr.left.type == LoxType.NUMBER &&
+               expr.right.type == LoxType.NUMBER;
+    }
+
+    private static boolean isString(Object object) {
+        return object instanceof String || object instanceof Utf8Literal;
+    }
+
+    boolean isTruthy(Object object) {
         if (object == null) return false;
         if (object instanceof Boolean) return (boolean)object;
         return true;
     }
 
-    private boolean isEqual(Object a, Object b) {
+    boolean isEqual(Object a, Object b) {
+        if (a instanceof Utf8Literal) a = ((Utf8Literal)a).value();
+        if (b instanceof Utf8Literal) b = ((Utf8Literal)b).value();
         if (a == null && b == null) return true;
 
         // Calling .equals on null results in null pointer exception.
@@ -56,7 +116,7 @@ class Interpreter implements Expr.Visitor<Object> {
         return a.equals(b);
     }
 
-    private String stringify(Object object) {
+    String stringify(Object object) {
         if (object == null) return "nil";
 
         if (object instanceof Double) {
@@ -70,13 +130,286 @@ class Interpreter implements Expr.Visitor<Object> {
         return object.toString();
     }
 
-    private Object evaluate(Expr expr) {
-        return expr.accept(this);
+    // Package-private (instead of private) so that ProfilingInterpreter
+    // can wrap every node evaluation.
+    Object evaluate(Expr expr) {
+        if (--countdown <= 0) checkBudget(expr);
+        if (depth >= MAX_RECURSION) return evaluateIteratively(expr);
+
+        depth++;
+        try {
+            return expr.accept(this);
+        } finally {
+            depth--;
+        }
+    }
+
+    // Called around every node evaluateIteratively() evaluates, except the
+    // root (which went through evaluate()), since those don't go through
+    // evaluate(). ProfilingInterpreter uses them to see every node, however
+    // deep. When evaluation fails, the nodes it was in are exited from the
+    // innermost one out, like finally blocks would.
+    void enterNode(Expr expr) {
+    }
+
+    void exitNode(Expr expr) {
+    }
+
+    // Evaluates a (very deep) tree without recursing: `nodes`/`steps` is
+    // the stack of nodes we are in the middle of, and `values` holds the
+    // operands that have been evaluated so far.
+    private Object evaluateIteratively(Expr root) {
+        Expr[] nodes = new Expr[64];
+        int[] steps = new int[64];
+        Object[] values = new Object[64];
+        int top = 0;
+        int valueCount = 0;
+        nodes[0] = root;
+
+        try {
+            while (top >= 0) {
+                if (top + 1 == nodes.length) {
+                    nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                    steps = Arrays.copyOf(steps, steps.length * 2);
+                }
+                if (valueCount + 1 >= values.length) {
+                    values = Arrays.copyOf(values, values.length * 2);
+                }
+
+                Expr node = nodes[top];
+                int step = steps[top];
+                Expr next = null;
+                Object value = null;
+
+                if (node instanceof Expr.Binary) {
+                    Expr.Binary binary = (Expr.Binary)node;
+                    if (step == 0) {
+                        next = binary.left;
+                    } else if (step == 1) {
+                        next = binary.right;
+                    } else {
+                        Object right = values[--valueCount];
+                        Object left = values[--valueCount];
+                        value = binary(binary, left, right);
+                    }
+                } else if (node instanceof Expr.Unary) {
+                    if (step == 0) {
+                        next = ((Expr.Unary)node).right;
+                    } else {
+                        value = unary((Expr.Unary)node, values[--valueCount]);
+                    }
+                } else if (node instanceof Expr.Grouping) {
+                    if (step == 0) {
+                        next = ((Expr.Grouping)node).expression;
+                    } else {
+                        value = values[--valueCount];
+                    }
+                } else if (node instanceof Expr.Ternary) {
+                    Expr.Ternary ternary = (Expr.Ternary)node;
+                    if (step == 0) {
+                        next = ternary.predicate;
+                    } else if (step == 1) {
+                        next = isTruthy(values[--valueCount]) ? ternary.if_true
+                                                              : ternary.if_false;
+                    } else {
+                        value = values[--valueCount];
+                    }
+                } else if (node instanceof Expr.Assign) {
+                    Expr.Assign assign = (Expr.Assign)node;
+                    if (step == 0) {
+                        next = assign.value;
+                    } else {
+                        value = values[--valueCount];
+                        environment.assign(assign.slot, assign.name, value);
+                    }
+                } else if (node instanceof Expr.Var && ((Expr.Var)node).initializer != null) {
+                    Expr.Var var = (Expr.Var)node;
+                    if (step == 0) {
+                        next = var.initializer;
+                    } else {
+                        value = values[--valueCount];
+                        environment.define(var.slot, value);
+                    }
+                } else if (node instanceof Expr.ArrayLiteral) {
+                    // step i: evaluate element i (the count comes after the
+                    // elements), then build the array from all of them.
+                    Expr.ArrayLiteral array = (Expr.ArrayLiteral)node;
+                    int operands = array.elements.size() + (array.count == null ? 0 : 1);
+                    if (array.count == null && step > 0) {
+                        // Checked as soon as it's there, like visitArrayLiteralExpr().
+                        arrayElement(array, values[valueCount - 1]);
+                    }
+                    if (step < array.elements.size()) {
+                        next = array.elements.get(step);
+                    } else if (step < operands) {
+                        next = array.count;
+                    } else if (array.count != null) {
+                        Object count = values[--valueCount];
+                        value = fill(array, values[--valueCount], count);
+                    } else {
+                        double[] elements = new double[operands];
+                        valueCount -= operands;
+                        for (int i = 0; i < operands; i++) {
+                            elements[i] = arrayElement(array, values[valueCount + i]);
+                        }
+                        value = new LoxArray(elements);
+                    }
+                } else if (node instanceof Expr.Call) {
+                    // step i: evaluate argument i, then call with all of them.
+                    Expr.Call call = (Expr.Call)node;
+                    int arguments = call.arguments.size();
+                    if (step < arguments) {
+                        next = call.arguments.get(step);
+                    } else {
+                        valueCount -= arguments;
+                        value = call(call, arguments > 0 ? values[valueCount] : null,
+                                     arguments > 1 ? values[valueCount + 1] : null);
+                    }
+                } else if (node instanceof Expr.Sequence) {
+                    // step i: evaluate expression i, dropping the value of
+                    // the one before it. The last value is the result.
+                    List<Expr> expressions = ((Expr.Sequence)node).expressions;
+                    if (step > 0 && step < expressions.size()) valueCount--;
+                    if (step < expressions.size()) {
+                        next = expressions.get(step);
+                    } else {
+                        value = values[--valueCount];
+                    }
+                } else if (node instanceof Expr.Deferred) {
+                    // Its parsed form is just one more child, so regions
+                    // nested thousands deep don't go through
+                    // visitDeferredExpr() once each.
+                    if (step == 0) {
+                        next = Parser.parsed((Expr.Deferred)node);
+                    } else {
+                        value = values[--valueCount];
+                    }
+                } else {
+                    // Literals, variables (and anything else without children).
+                    value = node.accept(this);
+                }
+
+                if (next != null) {
+                    if (--countdown <= 0) checkBudget(next);
+                    steps[top] = step + 1;
+                    top++;
+                    nodes[top] = next;
+                    steps[top] = 0;
+                    enterNode(next);
+                } else {
+                    if (top > 0) exitNode(node);
+                    nodes[top--] = null;
+                    values[valueCount++] = value;
+                }
+            }
+        } catch (Throwable error) {
+            for (int i = top; i > 0; i--) exitNode(nodes[i]);
+            throw error;
+        }
+
+        return values[0];
+    }
+
+    // Evaluates `expr` within `budget`. Throws a BudgetExceededError as
+    // soon as (well, within CHECK_EVERY nodes of when) a limit is hit or
+    // the budget is cancelled.
+    Object evaluateWithin(Expr expr, Budget budget) {
+        active = budget;
+        nodesBefore = 0;
+        startNanos = System.nanoTime();
+        maxStringLength = budget.maxStringLength;
+        maxArrayLength = budget.maxArrayLength;
+        refill();
+        try {
+            return evaluate(expr);
+        } finally {
+            active = null;
+            maxStringLength = Budget.NO_LIMIT;
+            maxArrayLength = Budget.NO_LIMIT;
+            countdown = countdownStart = Integer.MAX_VALUE;
+        }
+    }
+
+    private void checkBudget(Expr expr) {
+        if (active == null) {
+            // No budget, we just ran through 2^31 nodes.
+            countdown = countdownStart = Integer.MAX_VALUE;
+            return;
+        }
+
+        long visited = nodesVisited();
+        if (active.isCancelled()) {
+            throw budgetExceeded(expr, BudgetExceededError.Reason.CANCELLED,
+                "Evaluation was cancelled");
+        }
+        if (visited > active.maxNodes) {
+            throw budgetExceeded(expr, BudgetExceededError.Reason.NODES,
+                "Evaluation visited more than " + active.maxNodes + " nodes");
+        }
+        if (active.timeoutNanos != Budget.NO_LIMIT &&
+            System.nanoTime() - startNanos > active.timeoutNanos) {
+            throw budgetExceeded(expr, BudgetExceededError.Reason.DEADLINE,
+                "Evaluation took longer than " + active.timeoutNanos / 1_000_000 + " ms");
+        }
+        nodesBefore = visited;
+        refill();
+    }
+
+    // Making an array of n elements, or going over one, is about as much
+    // work as visiting n nodes, so that's what it counts as. The limits are
+    // checked before the array is allocated, and again at the very next
+    // node, so a long loop over the elements can't run far past a deadline.
+    private void chargeElements(Expr expr, long elements) {
+        if (active == null) return;
+        nodesBefore += elements;
+        checkBudget(expr);
+        countdown = countdownStart = 1;
+    }
+
+    private long nodesVisited() {
+        return nodesBefore + (countdownStart - countdown);
+    }
+
+    // Next check after CHECK_EVERY nodes, or exactly at node maxNodes + 1.
+    private void refill() {
+        long remaining = active.maxNodes - nodesBefore;
+        countdownStart = remaining >= CHECK_EVERY ? CHECK_EVERY : (int)remaining + 1;
+        countdown = countdownStart;
+    }
+
+    private BudgetExceededError budgetExceeded(Expr expr, BudgetExceededError.Reason reason,
+                                               String message) {
+        return new BudgetExceededError(tokenOf(expr), reason, message,
+                                       nodesVisited(), System.nanoTime() - startNanos);
+    }
+
+    private static Token tokenOf(Expr expr) {
+        if (expr instanceof Expr.Binary) return ((Expr.Binary)expr).operator;
+        if (expr instanceof Expr.Unary) return ((Expr.Unary)expr).operator;
+        if (expr instanceof Expr.Variable) return ((Expr.Variable)expr).name;
+        if (expr instanceof Expr.Assign) return ((Expr.Assign)expr).name;
+        if (expr instanceof Expr.Var) return ((Expr.Var)expr).name;
+        if (expr instanceof Expr.ArrayLiteral) return ((Expr.ArrayLiteral)expr).bracket;
+        if (expr instanceof Expr.Call) return ((Expr.Call)expr).paren;
+        return null;
+    }
+
+    // The only place the interpreter builds new strings, so that's where
+    // the string length limit is checked.
+    private String concatenate(Expr.Binary expr, Object left, Object right) {
+        String a = left.toString();
+        String b = right.toString();
+        if ((long)a.length() + b.length() > maxStringLength) {
+            throw budgetExceeded(expr, BudgetExceededError.Reason.STRING_LENGTH,
+                "String would be longer than " + maxStringLength + " characters");
+        }
+        return a + b;
     }
 
     void interpret(Expr expression) {
         try {
-            Object value = evaluate(expression);
+            Object value = budget == null ? evaluate(expression)
+                                          : evaluateWithin(expression, budget);
             System.out.println(stringify(value));
         } catch (RuntimeError error) {
             Lox.runtimeError(error);
@@ -87,6 +420,17 @@ class Interpreter implements Expr.Visitor<Object> {
     public Object visitBinaryExpr(Expr.Binary expr) {
         Object left = evaluate(expr.left);
         Object right = evaluate(expr.right);
+        return binary(expr, left, right);
+    }
+
+    // Package-private so that ParallelInterpreter can apply the operator to
+    // operands that it evaluated on other threads (and TieredEvaluator to
+    // operands its compiled code evaluated).
+    Object binary(Expr.Binary expr, Object left, Object right) {
+        if (!provenNumbers(expr) &&
+            (left instanceof LoxArray || right instanceof LoxArray)) {
+            return arrayBinary(expr, left, right);
+        }
 
         switch (expr.operator.type) {
             case BANG_EQUAL:
@@ -94,37 +438,41 @@ class Interpreter implements Expr.Visitor<Object> {
             case EQUAL_EQUAL:
                 return isEqual(left, right);
             case GREATER:
-                checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left > (double)right;
             case GREATER_EQUAL:
-                checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left >= (double)right;
             case LESS:
-                checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left < (double)right;
             case LESS_EQUAL:
-            checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left <= (double)right;
             case MINUS:
-            checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left - (double)right;
             case PLUS:
+                // Fast paths when the operand types are known up front.
+                if (provenNumbers(expr)) return (double)left + (double)right;
+                if (expr.type == LoxType.STRING) return concatenate(expr, left, right);
+
                 if (left instanceof Double && right instanceof Double) {
                     return (double)left + (double)right;
                 }
-                if (left instanceof String || right instanceof String) {
-                    return left.toString() + right.toString();
+                if (isString(left) || isString(right)) {
+                    return concatenate(expr, left, right);
                 }
                 throw new RuntimeError(expr.operator, "Operands must both be " +
                     "Numbers (or at least one must be a String).");
             case SLASH:
-                checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 if ((double)right == 0.0) {
                     throw new RuntimeError(expr.operator, "Cannot divide by zero.");
                 }
                 return (double)left / (double)right;
             case STAR:
-                checkNumberOperands(expr.operator, left, right);
+                if (!provenNumbers(expr)) checkNumberOperands(expr.operator, left, right);
                 return (double)left * (double)right;
         }
 
@@ -132,6 +480,92 @@ class Interpreter implements Expr.Visitor<Object> {
         return null;
     }
 
+    // At least one operand is an array. ==, != and concatenation work like
+    // on any other value; everything else goes element-wise.
+    private Object arrayBinary(Expr.Binary expr, Object left, Object right) {
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+                return !isEqual(left, right);
+            case EQUAL_EQUAL:
+                return isEqual(left, right);
+            case PLUS:
+                if (isString(left) || isString(right)) {
+                    return concatenate(expr, left, right);
+                }
+                break;
+        }
+        chargeElements(expr, left instanceof LoxArray ? ((LoxArray)left).length()
+                                                      : ((LoxArray)right).length());
+        return LoxArray.elementwise(expr.operator, left, right);
+    }
+
+    @Override
+    public Object visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        if (expr.count != null) {
+            return fill(expr, evaluate(expr.elements.get(0)), evaluate(expr.count));
+        }
+        double[] values = new double[expr.elements.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = arrayElement(expr, evaluate(expr.elements.get(i)));
+        }
+        return new LoxArray(values);
+    }
+
+    // Package-private (with fill()) for ReactiveEvaluator, which builds
+    // arrays from cached element values.
+    double arrayElement(Expr.ArrayLiteral expr, Object value) {
+        if (value instanceof Double) return (double)value;
+        throw new RuntimeError(expr.bracket, "Array elements must be numbers.");
+    }
+
+    // [value; count]. The only way to make an array longer than its
+    // source, so that's where the array length limit is checked.
+    LoxArray fill(Expr.ArrayLiteral expr, Object value, Object count) {
+        double element = arrayElement(expr, value);
+        if (!(count instanceof Double) || (double)count < 0 ||
+            (double)count != Math.floor((double)count) ||
+            (double)count > Integer.MAX_VALUE - 8) {
+            throw new RuntimeError(expr.bracket,
+                "Array length must be a whole number from 0 to " + (Integer.MAX_VALUE - 8) + ".");
+        }
+        int length = (int)(double)count;
+        if (length > maxArrayLength) {
+            throw budgetExceeded(expr, BudgetExceededError.Reason.ARRAY_LENGTH,
+                "Array would be longer than " + maxArrayLength + " elements");
+        }
+        chargeElements(expr, length);
+        double[] values = LoxArray.allocate(expr.bracket, length);
+        Arrays.fill(values, element);
+        return new LoxArray(values);
+    }
+
+    @Override
+    public Object visitCallExpr(Expr.Call expr) {
+        // Natives take at most two arguments, so those are all we keep;
+        // any others are still evaluated before the arity check fails.
+        Object first = null;
+        Object second = null;
+        for (int i = 0; i < expr.arguments.size(); i++) {
+            Object argument = evaluate(expr.arguments.get(i));
+            if (i == 0) first = argument;
+            if (i == 1) second = argument;
+        }
+        return call(expr, first, second);
+    }
+
+    // Package-private, like binary(), for TieredEvaluator's compiled code.
+    Object call(Expr.Call expr, Object first, Object second) {
+        NativeFunction function = expr.function;
+        if (function == null) {
+            // Only when the tree was never resolved.
+            throw new RuntimeError(expr.name, "Undefined function '" + expr.name.lexeme + "'.");
+        }
+        if (expr.arguments.size() != function.arity()) {
+            throw new RuntimeError(expr.paren, "Expected " + function.arity() +
+                " arguments but got " + expr.arguments.size() + ".");
+        }
+        return function.call(expr.paren, first, second);
+    }
 
     @Override
     public Object visitTernaryExpr(Expr.Ternary expr) {
@@ -151,6 +585,43 @@ class Interpreter implements Expr.Visitor<Object> {
     }
 
 
+    @Override
+    public Object visitVariableExpr(Expr.Variable expr) {
+        return environment.get(expr.slot, expr.name);
+    }
+
+    @Override
+    public Object visitAssignExpr(Expr.Assign expr) {
+        Object value = evaluate(expr.value);
+        environment.assign(expr.slot, expr.name, value);
+        return value;
+    }
+
+    @Override
+    public Object visitVarExpr(Expr.Var expr) {
+        Object value = null;
+        if (expr.initializer != null) value = evaluate(expr.initializer);
+        environment.define(expr.slot, value);
+        return value;
+    }
+
+    @Override
+    public Object visitSequenceExpr(Expr.Sequence expr) {
+        // The comma operator: everything is evaluated, left to right, but
+        // only the right-most value is kept.
+        Object value = null;
+        for (Expr expression : expr.expressions) {
+            value = evaluate(expression);
+        }
+        return value;
+    }
+
+    @Override
+    public Object visitDeferredExpr(Expr.Deferred expr) {
+        // Lazy mode: parsed the first time we get here.
+        return evaluate(Parser.parsed(expr));
+    }
+
     // NOTE I was on "Runtime Errors"
     // https://craftinginterpreters.com/evaluating-expressions.html#runtime-errors
 
@@ -0,0 +1,169 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Turns a resolved (and type checked) tree into the flat instructions of
+// a Chunk: operands before their operator, like ReversePolish prints them,
+// plus jumps for ternaries. Works with an explicit stack of frames, so a
+// tree hundreds of thousands of levels deep lowers without recursion.
+//
+//   a < 3 ? a : -1      GET a, CONSTANT 3, LESS, JUMP_IF_FALSE else,
+//                       GET a, JUMP end,
+//                 else: CONSTANT 1, NEGATE,
+//                  end:
+//
+// This is the straightforward translation; Peephole cleans it up (here,
+// -1 becomes one constant) and fuses instructions.
+class Lowering {
+    private static class Frame {
+        final Expr node;
+        int step = 0;
+        // For ternaries: where the false branch and the end are.
+        Instruction otherwise;
+        Instruction end;
+
+        Frame(Expr node) {
+            this.node = node;
+        }
+    }
+
+    private final List<Instruction> instructions = new ArrayList<>();
+
+    static List<Instruction> lower(Expr root) {
+        Lowering lowering = new Lowering();
+        lowering.emit(root);
+        return lowering.instructions;
+    }
+
+    private void emit(Expr root) {
+        List<Frame> frames = new ArrayList<>();
+        frames.add(new Frame(root));
+
+        while (!frames.isEmpty()) {
+            Frame frame = frames.get(frames.size() - 1);
+            Expr child = step(frame);
+            if (child != null) {
+                frame.step++;
+                frames.add(new Frame(child));
+            } else {
+                frames.remove(frames.size() - 1);
+            }
+        }
+    }
+
+    // Emits what comes before the frame's next child and returns that
+    // child, or emits the end of the node and returns null.
+    private Expr step(Frame frame) {
+        Expr node = frame.node;
+        int step = frame.step;
+
+        if (node instanceof Expr.Literal) {
+            emit(CONSTANT).constant = ((Expr.Literal)node).value;
+        } else if (node instanceof Expr.Variable) {
+            Instruction get = emit(GET);
+            get.slot = ((Expr.Variable)node).slot;
+            get.node = node;
+        } else if (node instanceof Expr.Grouping) {
+            if (step == 0) return ((Expr.Grouping)node).expression;
+        } else if (node instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)node;
+            if (step == 0) return unary.right;
+            if (unary.operator.type == TokenType.BANG) {
+                emit(NOT);
+            } else {
+                emit(NEGATE).node = node;
+            }
+        } else if (node instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)node;
+            if (step == 0) return binary.left;
+            if (step == 1) return binary.right;
+            emit(binaryOp(binary.operator.type)).node = node;
+        } else if (node instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)node;
+            switch (step) {
+                case 0:
+                    return ternary.predicate;
+                case 1:
+                    frame.otherwise = new Instruction(LABEL);
+                    frame.end = new Instruction(LABEL);
+                    emit(JUMP_IF_FALSE).target = frame.otherwise;
+                    return ternary.if_true;
+                case 2:
+                    emit(JUMP).target = frame.end;
+                    instructions.add(frame.otherwise);
+                    return ternary.if_false;
+                default:
+                    instructions.add(frame.end);
+                    break;
+            }
+        } else if (node instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)node;
+            if (step == 0) return assign.value;
+            Instruction set = emit(SET);
+            set.slot = assign.slot;
+            set.node = node;
+        } else if (node instanceof Expr.Var) {
+            Expr.Var var = (Expr.Var)node;
+            if (step == 0 && var.initializer != null) return var.initializer;
+            if (var.initializer == null) emit(CONSTANT).constant = null;
+            emit(DEFINE).slot = var.slot;
+        } else if (node instanceof Expr.Sequence) {
+            // Every value but the last is dropped.
+            List<Expr> expressions = ((Expr.Sequence)node).expressions;
+            if (step < expressions.size()) {
+                if (step > 0) emit(POP);
+                return expressions.get(step);
+            }
+        } else if (node instanceof Expr.ArrayLiteral) {
+            Expr.ArrayLiteral array = (Expr.ArrayLiteral)node;
+            if (array.count != null) {
+                if (step == 0) return array.elements.get(0);
+                if (step == 1) return array.count;
+                emit(FILL).node = node;
+            } else {
+                // Each element is checked as soon as it's there, like the
+                // Interpreter does, before the next one is evaluated.
+                if (step > 0) emit(ELEMENT).node = node;
+                if (step < array.elements.size()) return array.elements.get(step);
+                Instruction make = emit(ARRAY);
+                make.node = node;
+                make.count = array.elements.size();
+            }
+        } else if (node instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)node;
+            if (step < call.arguments.size()) return call.arguments.get(step);
+            Instruction instruction = emit(CALL);
+            instruction.node = node;
+            instruction.count = call.arguments.size();
+        } else {
+            // Deferred (lazy) regions, which are only parsed when they're
+            // evaluated: the Interpreter does that.
+            emit(EVAL).node = node;
+        }
+        return null;
+    }
+
+    private Instruction emit(int op) {
+        Instruction instruction = new Instruction(op);
+        instructions.add(instruction);
+        return instruction;
+    }
+
+    static int binaryOp(TokenType operator) {
+        switch (operator) {
+            case PLUS: return ADD;
+            case MINUS: return SUBTRACT;
+            case STAR: return MULTIPLY;
+            case SLASH: return DIVIDE;
+            case GREATER: return GREATER;
+            case GREATER_EQUAL: return GREATER_EQUAL;
+            case LESS: return LESS;
+            case LESS_EQUAL: return LESS_EQUAL;
+            case EQUAL_EQUAL: return EQUAL;
+            default: return NOT_EQUAL;
+        }
+    }
+}
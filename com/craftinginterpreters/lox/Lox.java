@@ -3,39 +3,273 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.PrintStream;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 public class Lox {
-    private static final Interpreter interpreter = new Interpreter();
+    private static Interpreter interpreter = new Interpreter();
+    // Kept for the whole session, so variables declared on one REPL line
+    // keep their slots on the next.
+    private static final Resolver resolver = new Resolver();
     static boolean hadError = false;
     static boolean hadRuntimeError = false;
 
+    // Set by the "--profile*" options.
+    private static ProfilingInterpreter profiler = null;
+    private static String flameGraphPath = null;
+
+    // "--check": only report syntax errors, don't evaluate anything.
+    private static boolean checkOnly = false;
+
+    // "--strict-types": report operations that can never succeed (like
+    // -"a") before evaluating anything.
+    private static boolean strictTypes = false;
+
+    // "--mmap": scan script files straight from a memory mapping with
+    // ByteScanner instead of reading them into a String first.
+    private static boolean mapFiles = false;
+
+    // "--lazy": big ternary branches and groupings are only parsed when
+    // they're first evaluated (see Parser.lazy). "--lazy-validate" also
+    // parses them all up front, just to report their syntax errors.
+    private static boolean lazyParsing = false;
+    private static boolean validateLazy = false;
+
+    // "--pipeline": scan, parse and evaluate the script file at the same
+    // time, on three threads (see Pipeline).
+    private static boolean pipelined = false;
+
+    // "--vm": lower the script to instructions and run them on StackVM
+    // instead of walking the tree. "--vm-profile <file>" also writes the
+    // opcode pair profile of the run there (see PairProfile).
+    private static boolean useVM = false;
+    private static String vmProfilePath = null;
+
+    // "--bench <n>" (and "--warmup <n>"): time <n> whole runs of the script
+    // with ScriptBenchmark instead of running it once. Zero means off.
+    private static int benchRuns = 0;
+    private static int warmupRuns = -1;
+
     public static void main(String[] args) throws IOException {
-        if (args.length == 1) {
-            runFile(args[0]);
-        } else if (args.length > 1) {
-            if (!args[0].equals("-c")) {
-                System.out.println("Usage: jlox [script] | [-c <jlox code snippet>]");
-                System.exit(64);
+        // Options all start with "--" and come before the script.
+        int first = 0;
+        boolean profile = false;
+        long sampleMicros = 0;
+        long maxNodes = Budget.NO_LIMIT;
+        long maxString = Budget.NO_LIMIT;
+        long maxArray = Budget.NO_LIMIT;
+        long timeoutMillis = Budget.NO_LIMIT;
+        int threads = 0;
+        String runAll = null;
+        int jobs = Runtime.getRuntime().availableProcessors();
+        boolean virtualThreads = false;
+        while (first < args.length && args[first].startsWith("--")) {
+            switch (args[first]) {
+                case "--profile":
+                    profile = true;
+                    break;
+                case "--profile-flame":
+                    profile = true;
+                    flameGraphPath = optionValue(args, ++first);
+                    break;
+                case "--profile-sample":
+                    profile = true;
+                    sampleMicros = Long.parseLong(optionValue(args, ++first));
+                    break;
+                case "--check":
+                    checkOnly = true;
+                    break;
+                case "--strict-types":
+                    strictTypes = true;
+                    break;
+                case "--mmap":
+                    mapFiles = true;
+                    break;
+                case "--lazy":
+                    lazyParsing = true;
+                    break;
+                case "--pipeline":
+                    pipelined = true;
+                    break;
+                case "--lazy-validate":
+                    lazyParsing = true;
+                    validateLazy = true;
+                    break;
+                case "--vm":
+                    useVM = true;
+                    break;
+                case "--vm-profile":
+                    useVM = true;
+                    vmProfilePath = optionValue(args, ++first);
+                    break;
+                case "--max-nodes":
+                    maxNodes = Long.parseLong(optionValue(args, ++first));
+                    break;
+                case "--max-string":
+                    maxString = Long.parseLong(optionValue(args, ++first));
+                    break;
+                case "--max-array":
+                    maxArray = Long.parseLong(optionValue(args, ++first));
+                    break;
+                case "--timeout":
+                    timeoutMillis = Long.parseLong(optionValue(args, ++first));
+                    break;
+                case "--parallel":
+                    threads = Integer.parseInt(optionValue(args, ++first));
+                    if (threads <= 0) usage();
+                    break;
+                case "--run-all":
+                    runAll = optionValue(args, ++first);
+                    break;
+                case "--jobs":
+                    jobs = Integer.parseInt(optionValue(args, ++first));
+                    if (jobs <= 0) usage();
+                    break;
+                case "--virtual-threads":
+                    virtualThreads = true;
+                    break;
+                case "--bench":
+                    benchRuns = Integer.parseInt(optionValue(args, ++first));
+                    if (benchRuns <= 0) usage();
+                    break;
+                case "--warmup":
+                    warmupRuns = Integer.parseInt(optionValue(args, ++first));
+                    if (warmupRuns < 0) usage();
+                    break;
+                default:
+                    usage();
+            }
+            first++;
+        }
+
+        // ByteScanner only keeps the last few tokens, and a Deferred node
+        // has to go back to its tokens later.
+        if (mapFiles && lazyParsing) usage();
+        // The pipeline is ByteScanner too, and evaluates as it goes.
+        if (pipelined && (lazyParsing || checkOnly)) usage();
+
+        // The VM has no budgets, and nothing to profile or split up.
+        if (useVM && (profile || threads > 0 || pipelined || maxNodes != Budget.NO_LIMIT ||
+                      maxString != Budget.NO_LIMIT || maxArray != Budget.NO_LIMIT ||
+                      timeoutMillis != Budget.NO_LIMIT)) {
+            usage();
+        }
+
+        if (profile) {
+            if (threads > 0) usage();
+            profiler = new ProfilingInterpreter(sampleMicros);
+            interpreter = profiler;
+        } else if (threads > 0) {
+            interpreter = new ParallelInterpreter(new ForkJoinPool(threads),
+                                                  ParallelInterpreter.DEFAULT_THRESHOLD);
+        }
+        if (maxNodes != Budget.NO_LIMIT || maxString != Budget.NO_LIMIT ||
+            maxArray != Budget.NO_LIMIT || timeoutMillis != Budget.NO_LIMIT) {
+            interpreter.budget = new Budget(maxNodes, maxString, maxArray, timeoutMillis);
+        }
+
+        int remaining = args.length - first;
+        if (pipelined && (runAll != null || benchRuns > 0 || remaining != 1)) usage();
+        if (runAll != null) {
+            if (remaining != 0) usage();
+            ScriptRunner runner = new ScriptRunner(jobs, virtualThreads, strictTypes,
+                                                   interpreter.budget);
+            System.exit(runner.runAll(runAll, System.out));
+        } else if (benchRuns > 0) {
+            if (remaining == 1) {
+                bench(new String(Files.readAllBytes(Paths.get(args[first])),
+                                 Charset.defaultCharset()));
+            } else if (remaining == 2 && args[first].equals("-c")) {
+                bench(args[first + 1]);
+            } else {
+                usage();
             }
-            run(args[1]);
+        } else if (remaining == 1) {
+            runFile(args[first]);
+        } else if (remaining > 1) {
+            if (!args[first].equals("-c")) usage();
+            run(args[first + 1]);
+            reportProfile();
         } else {
             runPrompt();
+            reportProfile();
         }
     }
 
+    private static String optionValue(String[] args, int index) {
+        if (index >= args.length) usage();
+        return args[index];
+    }
+
+    private static void usage() {
+        System.out.println("Usage: jlox [options] [script] | [-c <jlox code snippet>]");
+        System.out.println("Options:");
+        System.out.println("  --check                   report every syntax error, don't evaluate");
+        System.out.println("  --strict-types            report operations that can only fail as errors");
+        System.out.println("  --mmap                    scan the script file from a memory mapping");
+        System.out.println("  --lazy                    parse big ternary branches and groupings only when evaluated");
+        System.out.println("  --lazy-validate           --lazy, but still report syntax errors in them up front");
+        System.out.println("  --pipeline                scan, parse and evaluate the script file concurrently");
+        System.out.println("  --vm                      run on the bytecode StackVM instead of the tree walker");
+        System.out.println("  --vm-profile <file>       --vm, and write its opcode pair profile to <file>");
+        System.out.println("  --max-nodes <n>           stop evaluating after visiting <n> nodes");
+        System.out.println("  --max-string <n>          don't build strings longer than <n> characters");
+        System.out.println("  --max-array <n>           don't build arrays longer than <n> elements");
+        System.out.println("  --timeout <ms>            stop evaluating after <ms> milliseconds");
+        System.out.println("  --parallel <n>            evaluate big independent subtrees on <n> threads");
+        System.out.println("  --run-all <dir|glob>      run every matching script in this one JVM");
+        System.out.println("  --jobs <n>                worker threads for --run-all (default: cores)");
+        System.out.println("  --virtual-threads         a virtual thread per script for --run-all (JDK 21+)");
+        System.out.println("  --bench <n>               time <n> runs of the script, don't print its value");
+        System.out.println("  --warmup <n>              untimed runs before --bench starts (default <n>)");
+        System.out.println("  --profile                 print the hottest expression nodes");
+        System.out.println("  --profile-flame <file>    write collapsed stacks for flame graphs");
+        System.out.println("  --profile-sample <us>     sample every <us> microseconds instead of timing every node");
+        System.exit(64);
+    }
+
+    private static void reportProfile() throws IOException {
+        if (profiler == null) return;
+        profiler.report(System.err, 25);
+        if (flameGraphPath != null) profiler.writeCollapsed(flameGraphPath);
+    }
+
     private static void runFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        run(new String(bytes, Charset.defaultCharset()));
+        if (pipelined) {
+            int status = new Pipeline(interpreter, strictTypes)
+                .run(MappedSource.map(Paths.get(path)), System.out, System.err);
+            reportProfile();
+            if (status != 0) System.exit(status);
+            return;
+        }
+
+        if (mapFiles) {
+            runMapped(MappedSource.map(Paths.get(path)));
+        } else {
+            byte[] bytes = Files.readAllBytes(Paths.get(path));
+            run(new String(bytes, Charset.defaultCharset()));
+        }
+        reportProfile();
 
         // Indicate an error in the exit code.
         if (hadError) System.exit(65);
         if (hadRuntimeError) System.exit(70);
     }
 
+    private static void bench(String source) {
+        int warmup = warmupRuns >= 0 ? warmupRuns : benchRuns;
+        ScriptBenchmark benchmark = new ScriptBenchmark(source, interpreter.budget);
+        benchmark.lazy = lazyParsing;
+        if (!benchmark.run(benchRuns, warmup, System.out)) {
+            System.exit(hadRuntimeError ? 70 : 65);
+        }
+    }
+
     private static void runPrompt() throws IOException {
         InputStreamReader input = new InputStreamReader(System.in);
         BufferedReader reader = new BufferedReader(input);
@@ -50,16 +284,109 @@ public class Lox {
     }
 
     private static void run(String source) {
+        if (checkOnly) {
+            List<Diagnostic> diagnostics = new ArrayList<>();
+            check(new Scanner(source, diagnostics).scanTokens(), diagnostics);
+            return;
+        }
+
         Scanner scanner = new Scanner(source);
-        List<Token> tokens = scanner.scanTokens();
+        run(scanner.scanTokens());
+    }
+
+    // The file is always read as UTF-8 here (not the default charset).
+    private static void runMapped(MappedSource source) {
+        if (checkOnly) {
+            List<Diagnostic> diagnostics = new ArrayList<>();
+            check(new ByteScanner(source, diagnostics).tokens(), diagnostics);
+            return;
+        }
+
+        run(new ByteScanner(source, null).tokens());
+    }
+
+    private static void run(List<Token> tokens) {
         Parser parser = new Parser(tokens);
+        parser.lazy = lazyParsing;
         Expr expression = parser.parse();
 
         // Stop if there was a syntax error.
         if (hadError) return;
 
+        resolver.resolve(expression);
+        if (hadError) return;
+
+        if (validateLazy) {
+            List<Diagnostic> diagnostics = new ArrayList<>();
+            Parser.validateDeferred(expression, diagnostics);
+            for (Diagnostic diagnostic : diagnostics) {
+                System.err.println(diagnostic);
+            }
+            if (!diagnostics.isEmpty()) {
+                hadError = true;
+                return;
+            }
+        }
+
+        if (!typeCheck(expression)) return;
+
         // System.out.println(new AstPrinter().print(expression));
-        interpreter.interpret(expression);
+        if (useVM) {
+            runVM(expression);
+        } else {
+            interpreter.interpret(expression);
+        }
+    }
+
+    private static void runVM(Expr expression) {
+        Chunk chunk = StackVM.compile(expression, Peephole.DEFAULT_FUSIONS);
+        long[] counts = vmProfilePath == null ? null : new long[chunk.code.length];
+        try {
+            Object value = new StackVM(interpreter).run(chunk, counts);
+            System.out.println(interpreter.stringify(value));
+        } catch (RuntimeError error) {
+            runtimeError(error);
+        }
+
+        if (counts != null) {
+            PairProfile profile = new PairProfile();
+            profile.add(chunk, counts);
+            try (PrintStream out = new PrintStream(vmProfilePath)) {
+                profile.dump(out, 50, Peephole.MIN_SHARE);
+            } catch (IOException e) {
+                System.err.println("Can't write " + vmProfilePath + ": " + e.getMessage());
+            }
+        }
+    }
+
+    // Parses in recovery mode, so every syntax error in the source is found
+    // in a single pass. `diagnostics` already has the scanner's errors (or
+    // gets them as the tokens are scanned).
+    private static void check(List<Token> tokens, List<Diagnostic> diagnostics) {
+        Expr expression = new Parser(tokens, diagnostics).parse();
+        if (expression != null) {
+            new Resolver(diagnostics).resolve(expression);
+            if (strictTypes) new TypeChecker(diagnostics).check(expression);
+        }
+
+        for (Diagnostic diagnostic : diagnostics) {
+            System.err.println(diagnostic);
+        }
+        if (!diagnostics.isEmpty()) hadError = true;
+    }
+
+    // Annotates the tree with static types (so the Interpreter can skip
+    // some runtime checks). Returns false if "--strict-types" found errors.
+    private static boolean typeCheck(Expr expression) {
+        List<Diagnostic> diagnostics = strictTypes ? new ArrayList<>() : null;
+        new TypeChecker(diagnostics).check(expression);
+        if (diagnostics == null || diagnostics.isEmpty()) return true;
+
+        for (Diagnostic diagnostic : diagnostics) {
+            System.err.println(diagnostic);
+        }
+        hadError = true;
+        return false;
     }
 
     static void error(int line, String message) {
@@ -67,11 +394,16 @@ public class Lox {
     }
 
     static void runtimeError(RuntimeError error) {
-        System.out.println(error.getMessage() +
-            "\n[line " + error.token.line + "]");
+        System.out.println(describe(error));
         hadRuntimeError = true;
     }
 
+    static String describe(RuntimeError error) {
+        // Budget errors can stop at a node without a token.
+        if (error.token == null) return error.getMessage();
+        return error.getMessage() + "\n[line " + error.token.line + "]";
+    }
+
     private static void report(int line, String where, String message) {
         System.err.println(
             "[line " + line + "] Error" + where + ": " + message);
@@ -82,7 +414,7 @@ public class Lox {
         if (token.type == TokenType.EOF) {
             report(token.line, " at end", message);
         } else {
-            report(token.line, " at '" + token.lexeme + "'", message);
+            report(token.line, " at '" + token.text() + "'", message);
         }
     }
 
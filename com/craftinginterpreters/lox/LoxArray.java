@@ -0,0 +1,160 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+
+// A Lox array value: [1, 2, 3] or [0; 1000000]. Only numbers, kept in a
+// plain double[] so a million of them are one 8MB array instead of a
+// million boxed Doubles.
+//
+// The arithmetic operators and comparisons work element-wise, on two
+// arrays of the same length or on an array and a number (which is used
+// for every element). They run whole-array loops from ColumnKernels, the
+// same ones BatchEvaluator uses (SIMD ones with -Djlox.kernels=vector). Comparisons give 1 or 0 per element, since an array only holds
+// numbers. == and != compare whole arrays and give one boolean.
+//
+// Arrays are never changed after they are made; every operator returns a
+// new one.
+class LoxArray {
+    // How many elements stringify() shows at each end of a long array.
+    private static final int PRINT_HEAD = 8;
+    private static final int PRINT_TAIL = 2;
+
+    private static final ColumnKernels KERNELS = ColumnKernels.select();
+
+    final double[] values;
+
+    LoxArray(double[] values) {
+        this.values = values;
+    }
+
+    int length() {
+        return values.length;
+    }
+
+    // The value of `left operator right` where at least one of them is a
+    // LoxArray. The Interpreter handles ==, != and string concatenation
+    // itself, so this is only +, -, *, / and the comparisons.
+    static LoxArray elementwise(Token operator, Object left, Object right) {
+        if (!isNumeric(left) || !isNumeric(right)) {
+            throw new RuntimeError(operator, "Operands must be numbers or arrays.");
+        }
+
+        int n = left instanceof LoxArray ? ((LoxArray)left).length()
+                                         : ((LoxArray)right).length();
+        if (left instanceof LoxArray && right instanceof LoxArray &&
+            ((LoxArray)right).length() != n) {
+            throw new RuntimeError(operator, "Arrays must have the same length (" +
+                n + " and " + ((LoxArray)right).length() + ").");
+        }
+        double[] a = column(operator, left, n);
+        double[] b = column(operator, right, n);
+        double[] out = allocate(operator, n);
+
+        switch (operator.type) {
+            case PLUS:
+                KERNELS.add(a, b, out, n);
+                break;
+            case MINUS:
+                KERNELS.subtract(a, b, out, n);
+                break;
+            case STAR:
+                KERNELS.multiply(a, b, out, n);
+                break;
+            case SLASH:
+                long[] errors = new long[(n + 63) / 64];
+                KERNELS.divide(a, b, out, errors, n);
+                for (long word : errors) {
+                    if (word != 0) throw new RuntimeError(operator, "Cannot divide by zero.");
+                }
+                break;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                boolean[] mask = new boolean[n];
+                KERNELS.compare(operator.type, a, b, mask, n);
+                for (int i = 0; i < n; i++) out[i] = mask[i] ? 1.0 : 0.0;
+                break;
+            default:
+                throw new RuntimeError(operator, "Operator '" + operator.lexeme +
+                    "' doesn't work on arrays.");
+        }
+        return new LoxArray(out);
+    }
+
+    LoxArray negate(Token operator) {
+        double[] out = allocate(operator, values.length);
+        KERNELS.negate(values, out, values.length);
+        return new LoxArray(out);
+    }
+
+    private static boolean isNumeric(Object operand) {
+        return operand instanceof Double || operand instanceof LoxArray;
+    }
+
+    // An operand as a whole column: the array itself, or a number repeated
+    // n times.
+    private static double[] column(Token operator, Object operand, int n) {
+        if (operand instanceof LoxArray) return ((LoxArray)operand).values;
+        double[] column = allocate(operator, n);
+        Arrays.fill(column, (double)operand);
+        return column;
+    }
+
+    // A new double[length], or a RuntimeError on `token` when the heap
+    // can't hold it, instead of an OutOfMemoryError that takes the whole
+    // interpreter down. Lengths bigger than the heap could ever hold fail
+    // without trying.
+    static double[] allocate(Token token, int length) {
+        if ((long)length * Double.BYTES > Runtime.getRuntime().maxMemory()) {
+            throw outOfMemory(token, length);
+        }
+        try {
+            return new double[length];
+        } catch (OutOfMemoryError e) {
+            throw outOfMemory(token, length);
+        }
+    }
+
+    private static RuntimeError outOfMemory(Token token, int length) {
+        return new RuntimeError(token, "Not enough memory for an array of " + length + " elements.");
+    }
+
+    // Element by element with Double.equals(), like == on two numbers
+    // (NaN equals NaN, 0 doesn't equal -0).
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof LoxArray &&
+               Arrays.equals(values, ((LoxArray)other).values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(values);
+    }
+
+    // Long arrays only show their first and last few elements, so printing
+    // one (or concatenating it to a string) doesn't make a huge string.
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("[");
+        int n = values.length;
+        for (int i = 0; i < n; i++) {
+            if (n > PRINT_HEAD + PRINT_TAIL && i == PRINT_HEAD) {
+                text.append(", ...");
+                i = n - PRINT_TAIL;
+            }
+            if (i > 0) text.append(", ");
+            text.append(number(values[i]));
+        }
+        text.append("]");
+        if (n > PRINT_HEAD + PRINT_TAIL) text.append(" (").append(n).append(" elements)");
+        return text.toString();
+    }
+
+    // Same as Interpreter.stringify() on a number.
+    private static String number(double value) {
+        String text = Double.toString(value);
+        return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+    }
+}
@@ -0,0 +1,7 @@
+package com.craftinginterpreters.lox;
+
+// What TypeChecker knows about the value an Expr evaluates to. UNKNOWN
+// means it could be anything, so the Interpreter has to check at runtime.
+enum LoxType {
+    NUMBER, STRING, BOOLEAN, NIL, ARRAY, UNKNOWN
+}
@@ -0,0 +1,66 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// A source file mapped into memory with FileChannel.map() instead of being
+// read into a String, for ByteScanner. The bytes stay in the page cache
+// (outside the Java heap) and are only read when the scanner gets to them.
+//
+// A single MappedByteBuffer can't be bigger than 2GB, so big files are
+// mapped as several windows of WINDOW bytes each.
+class MappedSource {
+    private static final int WINDOW_BITS = 30;
+    private static final long WINDOW = 1L << WINDOW_BITS;
+
+    private final MappedByteBuffer[] windows;
+    private final long length;
+
+    private MappedSource(MappedByteBuffer[] windows, long length) {
+        this.windows = windows;
+        this.length = length;
+    }
+
+    static MappedSource map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            MappedByteBuffer[] windows = new MappedByteBuffer[(int)((length + WINDOW - 1) / WINDOW)];
+            for (int i = 0; i < windows.length; i++) {
+                long start = i * WINDOW;
+                windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start,
+                                         Math.min(WINDOW, length - start));
+            }
+            // The mappings stay valid after the channel is closed.
+            return new MappedSource(windows, length);
+        }
+    }
+
+    long length() {
+        return length;
+    }
+
+    byte get(long index) {
+        return windows[(int)(index >>> WINDOW_BITS)].get((int)(index & (WINDOW - 1)));
+    }
+
+    // Copies out [start, start + count), which may cross windows.
+    byte[] bytes(long start, int count) {
+        byte[] bytes = new byte[count];
+        for (int i = 0; i < count; i++) bytes[i] = get(start + i);
+        return bytes;
+    }
+
+    String decode(long start, int count) {
+        return new String(bytes(start, count), StandardCharsets.UTF_8);
+    }
+
+    // For lexemes that are known to be ASCII (identifiers, numbers), which
+    // ISO-8859-1 decodes without any checks.
+    String ascii(long start, int count) {
+        return new String(bytes(start, count), StandardCharsets.ISO_8859_1);
+    }
+}
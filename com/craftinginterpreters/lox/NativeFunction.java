@@ -0,0 +1,195 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.DoubleBinaryOperator;
+import java.util.function.DoubleSupplier;
+import java.util.function.DoubleUnaryOperator;
+import java.util.function.ToDoubleFunction;
+
+// A function the host provides to Lox code, like sqrt(x). It's a
+// MethodHandle of one of a few exact types (see Shape), and the invoke()
+// methods call it on plain doubles: no boxing, no Object[] of arguments.
+//
+// A handle kept in a field isn't a constant to the JIT, so calling every
+// native through the same invokeExact() would never inline any of them.
+// Instead, a direct handle (a static method we can see, like Math.sqrt)
+// is turned into a DoubleUnaryOperator (or whichever fits the shape) of a
+// class of its own, made by LambdaMetafactory, that just calls the
+// method. A call that only ever sees one or two natives (the usual hot
+// loop) then gets them inlined from its type profile. That is as far as
+// it goes: the call in invoke() is shared by every call site, so where
+// more kinds of natives go through it, it's a plain interface call (into
+// code where the native itself is inlined). Handles that aren't direct
+// (bound, adapted, or in a class we can't see) are still called with
+// invokeExact().
+//
+// Which function a call calls is decided once, when Resolver binds the
+// call site (Expr.Call.function). The checks that can only be done on the
+// values (arity, argument types) are RuntimeErrors on the call's '('.
+class NativeFunction {
+    enum Shape {
+        NO_ARGUMENTS(MethodType.methodType(double.class)),
+        NUMBER(MethodType.methodType(double.class, double.class)),
+        TWO_NUMBERS(MethodType.methodType(double.class, double.class, double.class)),
+        // Gets the array's own double[], which it must not change.
+        ARRAY(MethodType.methodType(double.class, double[].class));
+
+        final MethodType type;
+
+        Shape(MethodType type) {
+            this.type = type;
+        }
+
+        static Shape of(MethodType type) {
+            for (Shape shape : values()) {
+                if (shape.type.equals(type)) return shape;
+            }
+            return null;
+        }
+    }
+
+    final String name;
+    final Shape shape;
+    private final MethodHandle handle;
+    // The handle as an object of its own class; the one for `shape`, or
+    // none if the handle isn't direct.
+    private final DoubleSupplier noArguments;
+    private final DoubleUnaryOperator number;
+    private final DoubleBinaryOperator twoNumbers;
+    private final ToDoubleFunction<double[]> array;
+
+    NativeFunction(String name, MethodHandle handle) {
+        Shape shape = Shape.of(handle.type());
+        if (shape == null) {
+            throw new IllegalArgumentException("Native function '" + name + "' has type " +
+                handle.type() + "; it has to be ()double, (double)double, " +
+                "(double,double)double or (double[])double.");
+        }
+        this.name = name;
+        this.shape = shape;
+        this.handle = handle;
+        this.noArguments = (DoubleSupplier)function(shape == Shape.NO_ARGUMENTS, handle,
+            DoubleSupplier.class, "getAsDouble", MethodType.methodType(double.class));
+        this.number = (DoubleUnaryOperator)function(shape == Shape.NUMBER, handle,
+            DoubleUnaryOperator.class, "applyAsDouble", Shape.NUMBER.type);
+        this.twoNumbers = (DoubleBinaryOperator)function(shape == Shape.TWO_NUMBERS, handle,
+            DoubleBinaryOperator.class, "applyAsDouble", Shape.TWO_NUMBERS.type);
+        @SuppressWarnings("unchecked")
+        ToDoubleFunction<double[]> array = (ToDoubleFunction<double[]>)function(
+            shape == Shape.ARRAY, handle, ToDoubleFunction.class, "applyAsDouble",
+            MethodType.methodType(double.class, Object.class));
+        this.array = array;
+    }
+
+    // A `type` whose `method` (of type `erased`) calls the method behind
+    // `handle`, or null if `wanted` is false or the handle isn't direct.
+    private static Object function(boolean wanted, MethodHandle handle, Class<?> type,
+                                   String method, MethodType erased) {
+        if (!wanted) return null;
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            // Throws IllegalArgumentException when it isn't direct.
+            lookup.revealDirect(handle);
+            return LambdaMetafactory.metafactory(lookup, method, MethodType.methodType(type),
+                erased, handle, handle.type()).getTarget().invoke();
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    int arity() {
+        return shape.type.parameterCount();
+    }
+
+    // The call with its (at most two) evaluated arguments, once the
+    // interpreter has checked the arity. A function of one number is
+    // applied to every element of an array.
+    Object call(Token paren, Object first, Object second) {
+        switch (shape) {
+            case NO_ARGUMENTS:
+                return invoke(paren);
+            case NUMBER:
+                if (first instanceof Double) return invoke(paren, (double)first);
+                if (first instanceof LoxArray) return map(paren, (LoxArray)first);
+                throw new RuntimeError(paren, "Argument to '" + name +
+                    "' must be a number or an array.");
+            case TWO_NUMBERS:
+                if (first instanceof Double && second instanceof Double) {
+                    return invoke(paren, (double)first, (double)second);
+                }
+                throw new RuntimeError(paren, "Arguments to '" + name + "' must be numbers.");
+            default: // ARRAY
+                if (first instanceof LoxArray) return invoke(paren, ((LoxArray)first).values);
+                throw new RuntimeError(paren, "Argument to '" + name + "' must be an array.");
+        }
+    }
+
+    double invoke(Token paren) {
+        try {
+            if (noArguments != null) return noArguments.getAsDouble();
+            return (double)handle.invokeExact();
+        } catch (Throwable e) {
+            throw failed(paren, e);
+        }
+    }
+
+    double invoke(Token paren, double a) {
+        try {
+            if (number != null) return number.applyAsDouble(a);
+            return (double)handle.invokeExact(a);
+        } catch (Throwable e) {
+            throw failed(paren, e);
+        }
+    }
+
+    double invoke(Token paren, double a, double b) {
+        try {
+            if (twoNumbers != null) return twoNumbers.applyAsDouble(a, b);
+            return (double)handle.invokeExact(a, b);
+        } catch (Throwable e) {
+            throw failed(paren, e);
+        }
+    }
+
+    double invoke(Token paren, double[] a) {
+        try {
+            if (array != null) return array.applyAsDouble(a);
+            return (double)handle.invokeExact(a);
+        } catch (Throwable e) {
+            throw failed(paren, e);
+        }
+    }
+
+    private LoxArray map(Token paren, LoxArray array) {
+        double[] values = array.values;
+        double[] out = new double[values.length];
+        try {
+            if (number != null) {
+                for (int i = 0; i < values.length; i++) out[i] = number.applyAsDouble(values[i]);
+            } else {
+                for (int i = 0; i < values.length; i++) {
+                    out[i] = (double)handle.invokeExact(values[i]);
+                }
+            }
+        } catch (Throwable e) {
+            throw failed(paren, e);
+        }
+        return new LoxArray(out);
+    }
+
+    // A host function may throw a RuntimeError of its own; anything else
+    // it throws becomes one. Errors (out of memory...) are left alone.
+    private RuntimeError failed(Token paren, Throwable e) {
+        if (e instanceof RuntimeError) return (RuntimeError)e;
+        if (e instanceof Error) throw (Error)e;
+        return new RuntimeError(paren, "Native function '" + name + "' failed: " + e);
+    }
+
+    @Override
+    public String toString() {
+        return "<native fn " + name + ">";
+    }
+}
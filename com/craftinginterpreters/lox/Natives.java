@@ -0,0 +1,93 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+// The native functions that Lox code can call, by name. A registry never
+// changes once it's made, so one can be shared by any number of resolvers
+// and threads; with() makes a new one with an extra function:
+//
+//   Natives natives = Natives.STANDARD.with("hypot", MethodHandles.lookup()
+//       .findStatic(Math.class, "hypot", MethodType.methodType(double.class,
+//                   double.class, double.class)));
+//   resolver.natives = natives;
+//
+// Function names live apart from variables: "sqrt(x)" only ever calls a
+// native, even if there is a variable called sqrt.
+class Natives {
+    // Everything jlox has out of the box.
+    static final Natives STANDARD = standard();
+
+    private final Map<String, NativeFunction> functions;
+
+    private Natives(Map<String, NativeFunction> functions) {
+        this.functions = Collections.unmodifiableMap(functions);
+    }
+
+    NativeFunction get(String name) {
+        return functions.get(name);
+    }
+
+    Set<String> names() {
+        return new TreeSet<>(functions.keySet());
+    }
+
+    // A copy of this registry with `handle` added (or replacing the
+    // function of that name). The handle has to have one of the types in
+    // NativeFunction.Shape.
+    Natives with(String name, MethodHandle handle) {
+        Map<String, NativeFunction> copy = new HashMap<>(functions);
+        copy.put(name, new NativeFunction(name, handle));
+        return new Natives(copy);
+    }
+
+    private static Natives standard() {
+        MethodType number = MethodType.methodType(double.class, double.class);
+        MethodType twoNumbers = MethodType.methodType(double.class, double.class, double.class);
+        MethodType array = MethodType.methodType(double.class, double[].class);
+
+        Natives natives = new Natives(new HashMap<>());
+        try {
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            for (String name : new String[] {
+                    "sqrt", "abs", "floor", "ceil", "exp", "log", "sin", "cos", "tan" }) {
+                natives = natives.with(name, lookup.findStatic(Math.class, name, number));
+            }
+            for (String name : new String[] { "min", "max", "pow", "atan2" }) {
+                natives = natives.with(name, lookup.findStatic(Math.class, name, twoNumbers));
+            }
+            natives = natives.with("clock", lookup.findStatic(Natives.class, "clock",
+                MethodType.methodType(double.class)));
+            natives = natives.with("len", lookup.findStatic(Natives.class, "len", array));
+            natives = natives.with("sum", lookup.findStatic(Natives.class, "sum", array));
+        } catch (ReflectiveOperationException e) {
+            // They're all right here or in java.lang.Math.
+            throw new IllegalStateException(e);
+        }
+        return natives;
+    }
+
+    // These three aren't private, so NativeFunction can call them directly
+    // (see there).
+
+    // Seconds, like the book's clock().
+    static double clock() {
+        return System.currentTimeMillis() / 1000.0;
+    }
+
+    static double len(double[] values) {
+        return values.length;
+    }
+
+    static double sum(double[] values) {
+        double sum = 0;
+        for (double value : values) sum += value;
+        return sum;
+    }
+}
@@ -0,0 +1,278 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.craftinginterpreters.tool.GenerateWorkload;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// How often each opcode, each pair of opcodes and each triple ran one
+// right after the other, added up over any number of chunks. That's what
+// Peephole.choose() picks superinstructions by.
+//
+// Only instructions that are next to each other in the code count as a
+// pair, and only when the second one can't be reached by a jump: those
+// are exactly the ones a superinstruction can replace. Then every time
+// the second one ran, the first one ran just before it, so the pair ran
+// as often as the second one did.
+//
+// dump() writes it all out as text, with what each superinstruction
+// would save; "jlox --vm-profile <file>" writes one for a script.
+class PairProfile {
+    private final long[] singles = new long[OPCODES];
+    private final long[] pairs = new long[OPCODES * OPCODES];
+    private final long[] triples = new long[OPCODES * OPCODES * OPCODES];
+    private long total = 0;
+
+    // Adds a run of `chunk`, with the counts StackVM.run() made for it.
+    void add(Chunk chunk, long[] counts) {
+        int first = -1;
+        int second = -1;
+        for (int pc = 0; pc < chunk.code.length; pc = chunk.next(pc)) {
+            int op = chunk.code[pc];
+            long count = counts[pc];
+            singles[op] += count;
+            total += count;
+
+            if (chunk.targets.get(pc)) first = second = -1;
+            if (second >= 0) pairs[second * OPCODES + op] += count;
+            if (first >= 0) triples[(first * OPCODES + second) * OPCODES + op] += count;
+            first = second;
+            second = op;
+            // Nothing after these runs right after them.
+            if (op == JUMP || op == RETURN) first = second = -1;
+        }
+    }
+
+    // Instructions run.
+    long total() {
+        return total;
+    }
+
+    // How often the one, two or three opcodes ran in a row.
+    long count(int... ops) {
+        switch (ops.length) {
+            case 1: return singles[ops[0]];
+            case 2: return pairs[ops[0] * OPCODES + ops[1]];
+            case 3: return triples[(ops[0] * OPCODES + ops[1]) * OPCODES + ops[2]];
+            default: throw new IllegalArgumentException("Only up to three opcodes.");
+        }
+    }
+
+    // The top `limit` opcodes, pairs and triples, then every candidate
+    // superinstruction with what it would save and whether choose() takes
+    // it with `minShare`.
+    void dump(PrintStream out, int limit, double minShare) {
+        out.println(String.format("# %d instructions run", total));
+        section(out, "opcodes", singles, limit, 1);
+        section(out, "pairs", pairs, limit, 2);
+        section(out, "triples", triples, limit, 3);
+
+        out.println("# superinstructions: instructions saved");
+        List<Integer> chosen = new ArrayList<>();
+        for (int op : Peephole.choose(this, minShare)) chosen.add(op);
+        for (int op = 0; op < OPCODES; op++) {
+            if (PARTS[op] == null) continue;
+            StringBuilder parts = new StringBuilder();
+            for (int part : PARTS[op]) parts.append(parts.length() > 0 ? " " : "").append(NAMES[part]);
+            long saved = Peephole.saved(this, op);
+            out.println(String.format("%12d %6.2f%%  %-22s %-36s %s", saved, share(saved),
+                NAMES[op], parts, chosen.contains(op) ? "chosen" : ""));
+        }
+    }
+
+    private void section(PrintStream out, String title, long[] counts, int limit, int length) {
+        out.println("# " + title);
+        Integer[] indexes = new Integer[counts.length];
+        for (int i = 0; i < counts.length; i++) indexes[i] = i;
+        Arrays.sort(indexes, Comparator.comparingLong((Integer i) -> counts[i]).reversed());
+        for (int i = 0; i < Math.min(limit, counts.length) && counts[indexes[i]] > 0; i++) {
+            int index = indexes[i];
+            StringBuilder ops = new StringBuilder();
+            for (int position = length - 1; position >= 0; position--) {
+                int op = index;
+                for (int j = 0; j < position; j++) op /= OPCODES;
+                ops.append(ops.length() > 0 ? " " : "").append(NAMES[op % OPCODES]);
+            }
+            out.println(String.format("%12d %6.2f%%  %s", counts[index], share(counts[index]), ops));
+        }
+    }
+
+    private double share(long count) {
+        return total == 0 ? 0 : 100.0 * count / total;
+    }
+
+    // `PairProfile [<directory or glob>] [repeats=20]`: profiles the
+    // workload corpus (the GenerateWorkload one, written to a temp
+    // directory, unless there's an argument). Every script is lowered and
+    // optimized without superinstructions and run once on the VM to
+    // collect the profile, which is dumped with the superinstructions
+    // choose() picks from it. Then every script is checked against the
+    // tree Interpreter and timed <repeats> times in each configuration,
+    // and once more without each chosen superinstruction, to see whether
+    // it pays off.
+    public static void main(String[] args) throws IOException {
+        Path corpus = null;
+        List<Path> paths;
+        if (args.length > 0) {
+            paths = ScriptRunner.find(args[0]);
+        } else {
+            corpus = Files.createTempDirectory("jlox-corpus");
+            PrintStream stdout = System.out;
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+            try {
+                GenerateWorkload.main(new String[] { "--corpus", corpus.toString(), "42" });
+            } finally {
+                System.setOut(stdout);
+            }
+            paths = ScriptRunner.find(corpus.toString());
+        }
+        int repeats = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+
+        Map<Path, Expr> scripts = new LinkedHashMap<>();
+        for (Path path : paths) {
+            List<Diagnostic> diagnostics = new ArrayList<>();
+            String source = new String(Files.readAllBytes(path), Charset.defaultCharset());
+            Expr expr = new Parser(new Scanner(source, diagnostics).scanTokens(), diagnostics).parse();
+            if (expr != null) new Resolver(diagnostics).resolve(expr);
+            if (expr == null || !diagnostics.isEmpty()) {
+                System.out.println("skipped " + path + ": syntax errors");
+                continue;
+            }
+            new TypeChecker(null).check(expr);
+            scripts.put(path, expr);
+        }
+        if (corpus != null) {
+            for (Path path : paths) Files.delete(path);
+            Files.delete(corpus);
+        }
+
+        PairProfile lowered = new PairProfile();
+        PairProfile profile = new PairProfile();
+        for (Expr expr : scripts.values()) {
+            Chunk chunk = Chunk.assemble(Lowering.lower(expr));
+            long[] counts = new long[chunk.code.length];
+            new StackVM(new Interpreter()).run(chunk, counts);
+            lowered.add(chunk, counts);
+
+            chunk = StackVM.compile(expr, new int[0]);
+            counts = new long[chunk.code.length];
+            new StackVM(new Interpreter()).run(chunk, counts);
+            profile.add(chunk, counts);
+        }
+        System.out.println(String.format("%d scripts: %d instructions run as lowered, %d after peephole",
+            scripts.size(), lowered.total(), profile.total()));
+        profile.dump(System.out, 15, Peephole.MIN_SHARE);
+
+        int[] chosen = Peephole.choose(profile, Peephole.MIN_SHARE);
+        int[] all = new int[OPCODES - ADD_CONSTANT];
+        for (int i = 0; i < all.length; i++) all[i] = ADD_CONSTANT + i;
+
+        Map<String, int[]> configurations = new LinkedHashMap<>();
+        configurations.put("peephole", new int[0]);
+        configurations.put("chosen superinstructions", chosen);
+        configurations.put("all superinstructions", all);
+        for (int i = 0; i < chosen.length; i++) {
+            int[] without = new int[chosen.length - 1];
+            for (int j = 0, k = 0; j < chosen.length; j++) {
+                if (j != i) without[k++] = chosen[j];
+            }
+            configurations.put("chosen without " + NAMES[chosen[i]], without);
+        }
+
+        // What the tree interpreter gives (and how long it takes) is the
+        // baseline for all of them.
+        List<String> expected = new ArrayList<>();
+        for (Expr expr : scripts.values()) {
+            expected.add(describe(expr, null));
+        }
+        double tree = Double.MAX_VALUE;
+        double unoptimized = Double.MAX_VALUE;
+        Map<String, Double> times = new LinkedHashMap<>();
+        List<List<Chunk>> chunks = new ArrayList<>();
+        List<Chunk> plain = new ArrayList<>();
+        for (Expr expr : scripts.values()) plain.add(Chunk.assemble(Lowering.lower(expr)));
+        for (int[] fusions : configurations.values()) {
+            List<Chunk> compiled = new ArrayList<>();
+            for (Expr expr : scripts.values()) compiled.add(StackVM.compile(expr, fusions));
+            chunks.add(compiled);
+        }
+
+        List<Expr> exprs = new ArrayList<>(scripts.values());
+        int failures = check(exprs, plain, expected);
+        for (List<Chunk> compiled : chunks) failures += check(exprs, compiled, expected);
+
+        // Rounds alternate between the configurations, keeping the best of
+        // each, so they all see the same machine.
+        for (int round = 0; round < 5; round++) {
+            tree = Math.min(tree, time(repeats, () -> {
+                Interpreter interpreter = new Interpreter();
+                for (Expr expr : exprs) interpreter.evaluate(expr);
+            }));
+            unoptimized = Math.min(unoptimized, time(repeats, () -> {
+                StackVM vm = new StackVM(new Interpreter());
+                for (Chunk chunk : plain) vm.run(chunk);
+            }));
+            int index = 0;
+            for (String name : configurations.keySet()) {
+                List<Chunk> compiled = chunks.get(index++);
+                double time = time(repeats, () -> {
+                    StackVM vm = new StackVM(new Interpreter());
+                    for (Chunk chunk : compiled) vm.run(chunk);
+                });
+                times.merge(name, time, Math::min);
+            }
+        }
+
+        System.out.println(String.format("# time per run of the whole corpus (best of 5 x %d)", repeats));
+        System.out.println(String.format("%10.3f ms  tree interpreter", tree));
+        System.out.println(String.format("%10.3f ms  vm, as lowered", unoptimized));
+        for (Map.Entry<String, Double> time : times.entrySet()) {
+            System.out.println(String.format("%10.3f ms  vm, %s", time.getValue(), time.getKey()));
+        }
+        if (failures > 0) {
+            System.out.println(failures + " MISMATCHES");
+            System.exit(1);
+        }
+    }
+
+    private static int check(List<Expr> exprs, List<Chunk> chunks, List<String> expected) {
+        int failures = 0;
+        for (int i = 0; i < exprs.size(); i++) {
+            String actual = describe(exprs.get(i), chunks.get(i));
+            if (!actual.equals(expected.get(i))) failures++;
+        }
+        return failures;
+    }
+
+    // What "jlox script" would print, by the tree interpreter (no chunk)
+    // or the VM.
+    private static String describe(Expr expr, Chunk chunk) {
+        Interpreter interpreter = new Interpreter();
+        try {
+            Object value = chunk == null ? interpreter.evaluate(expr)
+                                         : new StackVM(interpreter).run(chunk);
+            return interpreter.stringify(value);
+        } catch (RuntimeError error) {
+            return Lox.describe(error);
+        }
+    }
+
+    // Milliseconds per run, averaged over `repeats` runs.
+    private static double time(int repeats, Runnable run) {
+        long start = System.nanoTime();
+        for (int i = 0; i < repeats; i++) run.run();
+        return (System.nanoTime() - start) / 1e6 / repeats;
+    }
+}
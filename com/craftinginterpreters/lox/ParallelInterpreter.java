@@ -0,0 +1,321 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+// An Interpreter that evaluates big sibling subtrees (the two sides of a
+// binary operator, the parts of a comma sequence) at the same time on a
+// ForkJoinPool. Every node knows how big its subtree is (Expr.size, counted
+// when the parser builds it), so the decision to split is cheap: siblings
+// are cut into parts of at least `threshold` nodes, the first part is
+// evaluated right here and the rest are forked. Anything smaller stays
+// sequential, which is the same code as Interpreter.
+//
+// Only subtrees without assignments or "var"s are split (Expr.writes), so
+// the parts only ever read variables, and the order in which side effects
+// happen is the same as in the sequential interpreter.
+//
+// Errors are deterministic: the parts are joined left to right and the
+// first error found wins, which is the error the sequential interpreter
+// would have thrown. Parts to the right of it are cancelled.
+class ParallelInterpreter extends Interpreter {
+    static final int DEFAULT_THRESHOLD = 4096;
+
+    private final ForkJoinPool pool;
+    private final int threshold;
+
+    // Off inside evaluateWithin(): budgets count the nodes of one
+    // interpreter, so with a budget everything stays on one thread.
+    private boolean splitting = true;
+
+    ParallelInterpreter(ForkJoinPool pool, int threshold) {
+        this(pool, threshold, new Environment(0));
+    }
+
+    private ParallelInterpreter(ForkJoinPool pool, int threshold, Environment environment) {
+        super(environment);
+        this.pool = pool;
+        this.threshold = Math.max(1, threshold);
+    }
+
+    // Evaluates the siblings children[from, to) on a worker interpreter of
+    // its own, in order, stopping at the first error. `stop` is how the
+    // part that forked this one stops it when it doesn't need it anymore.
+    private class Part extends RecursiveAction {
+        final Expr[] children;
+        final int from;
+        final int to;
+        final Object[] values;
+        final Budget stop = new Budget(Budget.NO_LIMIT, Budget.NO_LIMIT, Budget.NO_LIMIT,
+                                       Budget.NO_LIMIT);
+        RuntimeError error = null;
+
+        Part(Expr[] children, int from, int to, Object[] values) {
+            this.children = children;
+            this.from = from;
+            this.to = to;
+            this.values = values;
+        }
+
+        @Override
+        protected void compute() {
+            ParallelInterpreter worker = new ParallelInterpreter(pool, threshold, environment);
+            try {
+                for (int i = from; i < to; i++) {
+                    values[i] = worker.evaluateStoppable(children[i], stop);
+                }
+            } catch (RuntimeError error) {
+                this.error = error;
+            }
+        }
+    }
+
+    @Override
+    Object evaluateWithin(Expr expr, Budget budget) {
+        splitting = false;
+        try {
+            return super.evaluateWithin(expr, budget);
+        } finally {
+            splitting = true;
+        }
+    }
+
+    // A worker's own "budget" only ever gets cancelled, so (unlike
+    // evaluateWithin()) it keeps splitting.
+    private Object evaluateStoppable(Expr expr, Budget stop) {
+        return super.evaluateWithin(expr, stop);
+    }
+
+    @Override
+    public Object visitBinaryExpr(Expr.Binary expr) {
+        if (!worthSplitting(expr)) return super.visitBinaryExpr(expr);
+        Object[] values = evaluateSplit(expr.left, expr.right);
+        if (values == null) return super.visitBinaryExpr(expr);
+        return binary(expr, values[0], values[1]);
+    }
+
+    @Override
+    public Object visitSequenceExpr(Expr.Sequence expr) {
+        if (!worthSplitting(expr)) return super.visitSequenceExpr(expr);
+        Object[] values = evaluateSplit(expr.expressions.toArray(new Expr[0]));
+        if (values == null) return super.visitSequenceExpr(expr);
+        return values[values.length - 1];
+    }
+
+    private boolean worthSplitting(Expr parent) {
+        return splitting && !parent.writes && parent.size >= 2 * threshold;
+    }
+
+    // The values of all the children, or null if they don't split into at
+    // least two parts (the caller evaluates them sequentially then).
+    private Object[] evaluateSplit(Expr... children) {
+        // Cut the children into parts of at least `threshold` nodes. A
+        // smaller leftover at the end goes into the part before it.
+        int[] ends = new int[children.length];
+        int parts = 0;
+        int partSize = 0;
+        for (int i = 0; i < children.length; i++) {
+            partSize += children[i].size;
+            if (partSize >= threshold) {
+                ends[parts++] = i + 1;
+                partSize = 0;
+            }
+        }
+        if (partSize > 0) {
+            if (parts == 0) return null;
+            ends[parts - 1] = children.length;
+        }
+        if (parts < 2) return null;
+
+        if (ForkJoinTask.getPool() != pool) {
+            // Called from outside the pool (the first split of a tree):
+            // do the split on one of its threads, so only they do the work.
+            // This thread just waits.
+            RuntimeError[] error = { null };
+            Object[] values = pool.invoke(ForkJoinTask.adapt(() -> {
+                try {
+                    return evaluateSplit(children);
+                } catch (RuntimeError e) {
+                    error[0] = e;
+                    return null;
+                }
+            }));
+            if (error[0] != null) throw error[0];
+            return values;
+        }
+
+        Object[] values = new Object[children.length];
+        Part[] forked = new Part[parts];
+        for (int p = parts - 1; p >= 1; p--) {
+            forked[p] = new Part(children, ends[p - 1], ends[p], values);
+            forked[p].fork();
+        }
+
+        int joined = 1;
+        try {
+            for (int i = 0; i < ends[0]; i++) values[i] = evaluate(children[i]);
+            for (; joined < parts; joined++) {
+                forked[joined].join();
+                if (forked[joined].error != null) throw forked[joined].error;
+            }
+        } finally {
+            // After an error, nobody needs the parts that haven't been
+            // joined yet (including the one that failed, which is done).
+            for (int p = joined; p < parts; p++) {
+                forked[p].stop.cancel();
+                forked[p].cancel(false);
+            }
+        }
+        return values;
+    }
+
+    // `ParallelInterpreter [depth=20] [seed=42]`: checks that random
+    // expressions (with and without errors and variables) give the same
+    // value or the same error as with Interpreter when they are split as
+    // finely as possible, then times a balanced tree of 2^depth leaves
+    // sequentially and with 1, 2, 4, ... threads (up to twice the number
+    // of cores).
+    public static void main(String[] args) {
+        int depth = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        Random random = new Random(seed);
+
+        ForkJoinPool checkPool = new ForkJoinPool(4);
+        for (int i = 0; i < 3000; i++) {
+            StringBuilder source = new StringBuilder();
+            if (random.nextBoolean()) source.append("var a = 2, var b = \"b\", ");
+            randomExpr(source, random, 8);
+            if (random.nextInt(4) == 0) {
+                source.append(", a = ");
+                randomExpr(source, random, 5);
+                source.append(", a + 1");
+            }
+
+            Expr expr = parse(source.toString());
+            if (expr == null) continue;
+            String expected = describe(new Interpreter(), expr);
+            for (int threshold : new int[] { 1, 2, 5 }) {
+                String actual = describe(new ParallelInterpreter(checkPool, threshold), expr);
+                if (!expected.equals(actual)) {
+                    System.out.println("Mismatch with threshold " + threshold + " on " + source);
+                    System.out.println("expected: " + expected);
+                    System.out.println("actual:   " + actual);
+                    System.exit(1);
+                }
+            }
+        }
+        checkPool.shutdown();
+        System.out.println("OK: random expressions evaluate the same in parallel.");
+
+        StringBuilder source = new StringBuilder();
+        balanced(source, depth);
+        Expr expr = parse(source.toString());
+        System.out.println(String.format("balanced tree, %d nodes, %d cores:",
+            expr.size, Runtime.getRuntime().availableProcessors()));
+
+        double sequential = time(new Interpreter(), expr);
+        System.out.println(String.format("  %-12s %8.2f ms", "sequential", sequential));
+        int maxThreads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+        for (int threads = 1; threads <= maxThreads; threads *= 2) {
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            double ms = time(new ParallelInterpreter(pool, DEFAULT_THRESHOLD), expr);
+            pool.shutdown();
+            System.out.println(String.format("  %-12s %8.2f ms  %5.2fx",
+                threads + " threads", ms, sequential / ms));
+        }
+    }
+
+    private static Expr parse(String source) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Expr expr = new Parser(new Scanner(source, diagnostics).scanTokens(), diagnostics).parse();
+        if (expr == null) return null;
+        new Resolver(diagnostics).resolve(expr);
+        new TypeChecker(null).check(expr);
+        return diagnostics.isEmpty() ? expr : null;
+    }
+
+    private static String describe(Interpreter interpreter, Expr expr) {
+        try {
+            Object value = interpreter.evaluate(expr);
+            return value == null ? "nil" : value.toString();
+        } catch (RuntimeError error) {
+            return "error at " + (error.token == null ? "?" : error.token.offset) +
+                   ": " + error.getMessage();
+        } catch (RuntimeException e) {
+            // "s" + nil still crashes the interpreter itself; that should
+            // at least crash the same way.
+            return "crash: " + e.getClass().getSimpleName();
+        }
+    }
+
+    private static void randomExpr(StringBuilder source, Random random, int depth) {
+        if (depth == 0 || random.nextInt(6) == 0) {
+            String[] leaves = { "1", "2.5", "0", "\"s\"", "true", "nil", "a", "b" };
+            source.append(leaves[random.nextInt(leaves.length)]);
+            return;
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+            case 1:
+                source.append(random.nextBoolean() ? "-" : "!");
+                randomExpr(source, random, depth - 1);
+                break;
+            case 2:
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ? ");
+                randomExpr(source, random, depth - 1);
+                source.append(" : ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+            case 3:
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(", ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+            default:
+                String[] operators = { "+", "-", "*", "/", "==", "<" };
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ").append(operators[random.nextInt(operators.length)]).append(" ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+        }
+    }
+
+    private static void balanced(StringBuilder source, int depth) {
+        if (depth == 0) {
+            source.append("1.5");
+            return;
+        }
+        source.append("(");
+        balanced(source, depth - 1);
+        source.append(depth % 2 == 0 ? " + " : " - ");
+        balanced(source, depth - 1);
+        source.append(")");
+    }
+
+    // Best of 10, after 5 untimed runs.
+    private static double time(Interpreter interpreter, Expr expr) {
+        for (int i = 0; i < 5; i++) interpreter.evaluate(expr);
+        double best = Double.MAX_VALUE;
+        for (int i = 0; i < 10; i++) {
+            long start = System.nanoTime();
+            interpreter.evaluate(expr);
+            best = Math.min(best, (System.nanoTime() - start) / 1e6);
+        }
+        return best;
+    }
+}
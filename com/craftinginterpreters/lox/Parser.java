@@ -1,24 +1,79 @@
 
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
 import java.util.List;
+import java.util.Map;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
 
 class Parser {
-    private static class ParseError extends RuntimeException {}
+    // ParseError is only used to unwind back to parse(), so it doesn't
+    // need a stack trace and a single shared instance does the job.
+    private static class ParseError extends RuntimeException {
+        ParseError() {
+            super(null, null, false, false);
+        }
+    }
+
+    private static final ParseError PARSE_ERROR = new ParseError();
+
+    // How deep the recursive descent may go before we switch over to
+    // parseIteratively() for the rest of the subexpression. Normal code
+    // never gets anywhere near this, generated code with thousands of
+    // nested parentheses does.
+    private static final int MAX_RECURSION = 200;
+    private int depth = 0;
 
     private final List<Token> tokens;
+    private final List<Diagnostic> diagnostics;
     private int current = 0;
 
+    // How many groupings we are inside of. Left alone when a ParseError
+    // unwinds, so that synchronize() knows how deep the error happened.
+    private int groupDepth = 0;
+
+    // When set, every Grouping gets recorded here with the token indexes
+    // of its '(' and ')'. IncrementalParser uses these to find the smallest
+    // grouping around an edit.
+    Map<Expr, int[]> groupingSpans = null;
+
+    // Only matters with `diagnostics`: when false, the first syntax error
+    // stops the parse like without them, it just gets collected instead of
+    // printed. ScriptRunner uses that to report exactly what "jlox script"
+    // would. Either way the same scripts parse without errors.
+    boolean recover = true;
+
+    // Lazy mode ("--lazy"): ternary branches and the insides of groupings
+    // that are at least LAZY_MIN_TOKENS tokens long aren't parsed, just
+    // skipped over (by counting brackets) and kept as a Deferred node. The
+    // Interpreter parses one the first time it's evaluated, so a big branch
+    // that is never taken is never parsed. Regions that declare or assign
+    // a variable are always parsed, so Resolver sees every declaration.
+    boolean lazy = false;
+    static final int LAZY_MIN_TOKENS = 32;
+    // Where each region of `tokens` ends (see regionEnds()), worked out
+    // the first time something is deferred.
+    private int[] regionEnds;
+
     Parser(List<Token> tokens) {
+        this(tokens, null);
+    }
+
+    // Recovery mode: every syntax error goes into `diagnostics` instead of
+    // through Lox.error(), and parsing carries on after each one.
+    Parser(List<Token> tokens, List<Diagnostic> diagnostics) {
         this.tokens = tokens;
+        this.diagnostics = diagnostics;
     }
 
     Expr parse() {
-        // We'll use the synchronize() method here later once we 
-        // have statements in the language
+        if (diagnostics != null && recover) return parseRecovering();
+
         try {
             return comma_operator();
         } catch (ParseError error) {
@@ -26,25 +81,129 @@ class Parser {
         }
     }
 
+    // Same grammar as comma_operator(), but on an error we synchronize()
+    // to the next top-level comma and keep going, so that one pass finds
+    // all of the errors. Returns null if there were any.
+    //
+    // Like comma_operator(), it stops at the first expression that isn't
+    // followed by a ',' and ignores whatever comes after it, so "--check"
+    // passes exactly the scripts a normal run accepts.
+    private Expr parseRecovering() {
+        int errors = diagnostics.size();
+        List<Expr> expressions = new ArrayList<>();
+
+        for (;;) {
+            try {
+                expressions.add(expression());
+                if (!match(COMMA)) break;
+            } catch (ParseError error) {
+                synchronize();
+                if (isAtEnd()) break;
+            }
+        }
+
+        return diagnostics.size() == errors ? sequence(expressions) : null;
+    }
+
+    // Parses only the inside of the grouping whose parentheses are at token
+    // indexes `open` and `close`. Returns null unless that is a clean parse
+    // which stops exactly at the ')' -- otherwise the edit changed more than
+    // this grouping and the caller has to look further out.
+    Expr reparseGrouping(int open, int close) {
+        current = open + 1;
+        try {
+            Expr expr = expression();
+            if (current != close || peek().type != RIGHT_PAREN) return null;
+            return expr;
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
+    // Parses one top-level expression for Pipeline, which hands the parser
+    // a script one comma-separated piece at a time: `tokens` is the piece,
+    // then the ',' that ended it (unless it's the last one), then EOF.
+    // Returns null after a syntax error.
+    Expr parseTopLevel() {
+        try {
+            return expression();
+        } catch (ParseError error) {
+            return null;
+        }
+    }
+
+    // Whether parseTopLevel() stopped at that ','. If it stopped anywhere
+    // else, parse() would have ignored everything from there on, so the
+    // rest of the script doesn't run.
+    boolean atComma() {
+        return check(COMMA);
+    }
+
     private Expr comma_operator() {
         // Challenge 01
         // comma      → expression ( "," expression)* ;  (only return right-most expression value)
-        Expr expr = expression();
+        List<Expr> expressions = new ArrayList<>();
+        expressions.add(expression());
         while (match(COMMA)) {
-            // I don't think we capture the token and concatenate into
-            // a Binary expression like we do for equality through factor
-            // because we want to evaluate the left expression and then
-            // discard the result.
-            expr = expression();
+            // Now that expressions can declare and assign variables, the
+            // left-hand ones can't just be discarded anymore: they have to
+            // be evaluated (for their side effects) before the right-most
+            // one. So they all go into a Sequence.
+            expressions.add(expression());
         }
 
-        return expr;
+        return sequence(expressions);
+    }
+
+    private Expr sequence(List<Expr> expressions) {
+        if (expressions.size() == 1) return expressions.get(0);
+        return new Expr.Sequence(expressions);
     }
 
     private Expr expression() {
         // Grammar:
-        // expression       → ternary ;
-        return ternary();
+        // expression  → declaration | assignment ;
+        // declaration → "var" IDENTIFIER ( "=" assignment )? ;
+        if (match(VAR)) return declaration();
+        return assignment();
+    }
+
+    private Expr declaration() {
+        Token name = consume(IDENTIFIER, "Expect variable name.");
+        Expr initializer = null;
+        if (match(EQUAL)) initializer = assignment();
+        return new Expr.Var(name, initializer);
+    }
+
+    private Expr assignment() {
+        // Grammar:
+        // assignment  → ternary ( "=" assignment )? ;
+        // where the left-hand side has to turn out to be a variable.
+        if (depth >= MAX_RECURSION) return parseIteratively(Rule.ASSIGNMENT);
+
+        depth++;
+        try {
+            Expr expr = ternary();
+            if (match(EQUAL)) {
+                Token equals = previous();
+                Expr value = assignment();
+                return assign(expr, equals, value);
+            }
+            return expr;
+        } finally {
+            depth--;
+        }
+    }
+
+    private Expr assign(Expr target, Token equals, Expr value) {
+        if (target instanceof Expr.Variable) {
+            return new Expr.Assign(((Expr.Variable)target).name, value);
+        }
+
+        // Report it, but there is no need to synchronize: we know exactly
+        // where we are.
+        error(equals, "Invalid assignment target.");
+        return target;
     }
 
     private Expr ternary() {
@@ -52,15 +211,26 @@ class Parser {
         // Grammar:
         // ternary     -> equality ( "?" ternary ":" ternary )*
         //             | equality ;
-        Expr expr = equality();
-        while (match(QUESTION)) {
-            Expr if_true = ternary();  // does this need to be equality? Or can it be a ternary?
-            consume(COLON, "Expect ':' after '?' in ternary operator.");
-            Expr if_false = ternary();
-            expr = new Expr.Ternary(expr, if_true, if_false);
-        }
+        if (depth >= MAX_RECURSION) return parseIteratively(Rule.TERNARY);
 
-        return expr;
+        depth++;
+        try {
+            Expr expr = equality();
+            while (match(QUESTION)) {
+                Expr if_true = deferred(COLON);
+                if (if_true == null) {
+                    if_true = ternary();  // does this need to be equality? Or can it be a ternary?
+                }
+                consume(COLON, "Expect ':' after '?' in ternary operator.");
+                Expr if_false = deferred(null);
+                if (if_false == null) if_false = ternary();
+                expr = new Expr.Ternary(expr, if_true, if_false);
+            }
+
+            return expr;
+        } finally {
+            depth--;
+        }
     }
 
     private Expr equality() {
@@ -72,8 +242,7 @@ class Parser {
         if (match(BANG_EQUAL, EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, PLUS)) {
             Token bad_token = previous();
             Expr discard_this = comparison(); // parse and discard the right hand operator
-            throw error(bad_token, "Binary operator '" + bad_token.lexeme +
-                "' requires a left-hand operand.");
+            throw missingLeftOperand(bad_token);
         }
 
         Expr expr = comparison();
@@ -129,15 +298,270 @@ class Parser {
         // Grammar:
         // unary          → ( "!" | "-" ) unary
         //                | primary ;
+        if (depth >= MAX_RECURSION) return parseIteratively(Rule.UNARY);
+
         if (match(BANG, MINUS)) {
                 Token operator = previous();
-                Expr right = unary();
-                return new Expr.Unary(operator, right);
+                depth++;
+                try {
+                    Expr right = unary();
+                    return new Expr.Unary(operator, right);
+                } finally {
+                    depth--;
+                }
         }
         return primary();
     }
 
     private Expr primary() {
+        Expr literal = literal();
+        if (literal != null) return literal;
+
+        if (match(IDENTIFIER)) {
+            Token name = previous();
+            if (match(LEFT_PAREN)) return call(name, previous());
+            return new Expr.Variable(name);
+        }
+
+        if (match(LEFT_BRACKET)) return array(previous());
+
+        if (match(LEFT_PAREN)) {
+            int open = current - 1;
+            groupDepth++;
+            Expr expr = deferred(RIGHT_PAREN);
+            if (expr == null) expr = expression();
+            return grouping(expr, open);
+        }
+
+        throw error(peek(), "Expect expression.");
+    }
+
+    // Grammar:
+    // array → "[" ( expression ( "," expression )* )? "]"
+    //       | "[" expression ";" expression "]" ;
+    // The second form is `count` copies of the first expression.
+    private Expr array(Token bracket) {
+        // Counted like a grouping, so synchronize() doesn't start over at
+        // a comma between the elements.
+        groupDepth++;
+        List<Expr> elements = new ArrayList<>();
+        if (check(RIGHT_BRACKET)) return endArray(bracket, elements, null);
+
+        elements.add(expression());
+        if (match(SEMICOLON)) return endArray(bracket, elements, expression());
+        while (match(COMMA)) elements.add(expression());
+        return endArray(bracket, elements, null);
+    }
+
+    private Expr endArray(Token bracket, List<Expr> elements, Expr count) {
+        consume(RIGHT_BRACKET, "Expect ']' after array elements.");
+        groupDepth--;
+        return new Expr.ArrayLiteral(bracket, elements, count);
+    }
+
+    // Grammar:
+    // call → IDENTIFIER "(" ( expression ( "," expression )* )? ")" ;
+    // Only natives can be called, so the callee is just a name.
+    private Expr call(Token name, Token paren) {
+        groupDepth++;
+        List<Expr> arguments = new ArrayList<>();
+        if (!check(RIGHT_PAREN)) {
+            do {
+                tooManyArguments(arguments);
+                arguments.add(expression());
+            } while (match(COMMA));
+        }
+        return endCall(name, paren, arguments);
+    }
+
+    private void tooManyArguments(List<Expr> arguments) {
+        if (arguments.size() >= 255) {
+            // Reported, but we know where we are, so carry on.
+            error(peek(), "Can't have more than 255 arguments.");
+        }
+    }
+
+    private Expr endCall(Token name, Token paren, List<Expr> arguments) {
+        consume(RIGHT_PAREN, "Expect ')' after arguments.");
+        groupDepth--;
+        return new Expr.Call(name, paren, arguments);
+    }
+
+    // In lazy mode, skips over the expression that starts here and returns
+    // it as a Deferred node, if it is big enough and is followed by
+    // `closer` (or by anything that can end an expression, when `closer` is
+    // null). Otherwise returns null and the caller parses it as usual.
+    private Expr deferred(TokenType closer) {
+        if (!lazy) return null;
+        if (regionEnds == null) regionEnds = regionEnds(tokens);
+        int end = regionEnds[current];
+        if (end < 0 || end - current < LAZY_MIN_TOKENS) return null;
+        if (closer != null && tokens.get(end).type != closer) return null;
+
+        Expr deferred = new Expr.Deferred(tokens, regionEnds, current, end);
+        current = end;
+        return deferred;
+    }
+
+    // The pre-scan: where the expression starting at token i has to end,
+    // going only by brackets and "?"/":" pairs. That is the first ',', ':'
+    // (without its own '?'), unmatched ')' or ']' or the end of input
+    // outside any brackets. -1 if there's a "var" or "=" on the way.
+    //
+    // Worked out for every i at once, right to left, and shared by every
+    // Deferred node of these tokens: scanning forward from each region
+    // instead made nested regions quadratic. The stops that matter to i
+    // are the ones at its own bracket depth, so each depth keeps the
+    // nearest ')', ']' or ',' to the right, and a stack of the ':' there
+    // that no '?' between i and them takes.
+    static int[] regionEnds(List<Token> tokens) {
+        int size = tokens.size();
+        int[] depths = new int[size];
+        int[] assignments = new int[size + 1];
+        int depth = 0;
+        int lowest = 0;
+        int highest = 0;
+        for (int i = 0; i < size; i++) {
+            depths[i] = depth;
+            lowest = Math.min(lowest, depth);
+            highest = Math.max(highest, depth);
+            TokenType type = tokens.get(i).type;
+            if (type == LEFT_PAREN || type == LEFT_BRACKET) depth++;
+            if (type == RIGHT_PAREN || type == RIGHT_BRACKET) depth--;
+            assignments[i + 1] = assignments[i] + (type == VAR || type == EQUAL ? 1 : 0);
+        }
+
+        // The end of input stops a region at any depth.
+        int eof = size > 0 && tokens.get(size - 1).type == EOF ? size - 1 : -1;
+        int[] stops = new int[highest - lowest + 1];
+        int[] colons = new int[highest - lowest + 1];
+        Arrays.fill(stops, eof);
+        Arrays.fill(colons, -1);
+        int[] belowColon = new int[size];
+
+        int[] ends = new int[size];
+        for (int i = size - 1; i >= 0; i--) {
+            int level = depths[i] - lowest;
+            switch (tokens.get(i).type) {
+                case RIGHT_PAREN:
+                case RIGHT_BRACKET:
+                case COMMA:
+                    stops[level] = i;
+                    colons[level] = -1;
+                    break;
+                case COLON:
+                    belowColon[i] = colons[level];
+                    colons[level] = i;
+                    break;
+                case QUESTION:
+                    if (colons[level] >= 0) colons[level] = belowColon[colons[level]];
+                    break;
+                default:
+                    break;
+            }
+
+            int end = colons[level] >= 0 ? colons[level] : stops[level];
+            if (end >= 0 && assignments[end] != assignments[i]) end = -1;
+            ends[i] = end;
+        }
+        return ends;
+    }
+
+    // The parsed (and resolved and type checked) form of a Deferred node,
+    // parsing it the first time. Safe to call from several threads: only
+    // one of them parses. A syntax error in the region is thrown as a
+    // RuntimeError, since it's only found while evaluating.
+    static Expr parsed(Expr.Deferred deferred) {
+        Expr parsed = deferred.parsed;
+        if (parsed != null) return parsed;
+
+        synchronized (deferred) {
+            if (deferred.parsed == null) {
+                List<Diagnostic> diagnostics = new ArrayList<>();
+                Expr expr = parseDeferred(deferred, diagnostics);
+                if (!diagnostics.isEmpty()) {
+                    throw new RuntimeError(deferred.tokens.get(deferred.start),
+                        "Syntax error in deferred expression: " + diagnostics.get(0));
+                }
+                deferred.parsed = expr;
+            }
+            return deferred.parsed;
+        }
+    }
+
+    // The opt-in eager validation for lazy mode: parses every Deferred
+    // node in the tree now (and the ones inside those), collecting all of
+    // their syntax and resolution errors. The ones without errors keep
+    // their parsed form, so they aren't parsed again when evaluated.
+    static void validateDeferred(Expr root, List<Diagnostic> diagnostics) {
+        List<Expr.Deferred> pending = new ArrayList<>();
+        ExprWalker.postOrder(root, node -> {
+            if (node instanceof Expr.Deferred) pending.add((Expr.Deferred)node);
+        });
+
+        while (!pending.isEmpty()) {
+            Expr.Deferred deferred = pending.remove(pending.size() - 1);
+            Expr parsed = deferred.parsed;
+            if (parsed == null) {
+                int errors = diagnostics.size();
+                Expr expr = parseDeferred(deferred, diagnostics);
+                if (diagnostics.size() != errors) continue;
+                synchronized (deferred) {
+                    if (deferred.parsed == null) deferred.parsed = expr;
+                    parsed = deferred.parsed;
+                }
+            }
+            ExprWalker.postOrder(parsed, node -> {
+                if (node instanceof Expr.Deferred) pending.add((Expr.Deferred)node);
+            });
+        }
+    }
+
+    private static Expr parseDeferred(Expr.Deferred deferred, List<Diagnostic> diagnostics) {
+        Parser parser = new Parser(deferred.tokens, diagnostics);
+        parser.recover = false;
+        parser.lazy = true;
+        parser.regionEnds = deferred.regionEnds;
+        parser.current = deferred.start;
+
+        Expr expr;
+        try {
+            expr = parser.expression();
+            if (parser.current != deferred.end) {
+                // Whatever the parse of the whole source would have
+                // expected after this expression.
+                switch (deferred.tokens.get(deferred.end).type) {
+                    case COLON:
+                        throw parser.error(parser.peek(), "Expect ':' after '?' in ternary operator.");
+                    case RIGHT_PAREN:
+                        throw parser.error(parser.peek(), "Expect ')' after expression.");
+                    default:
+                        throw parser.error(parser.peek(), "Expect ',' or end of input after expression.");
+                }
+            }
+        } catch (ParseError error) {
+            return null;
+        }
+
+        if (deferred.resolver != null) {
+            new Resolver(deferred.resolver, deferred.visibleSlots, diagnostics).resolve(expr);
+        }
+        new TypeChecker(null).check(expr);
+        return expr;
+    }
+
+    // The tokens of a Deferred node as source-ish text, for the printers.
+    static String text(Expr.Deferred deferred) {
+        StringBuilder text = new StringBuilder();
+        for (int i = deferred.start; i < deferred.end; i++) {
+            if (i > deferred.start) text.append(' ');
+            text.append(deferred.tokens.get(i).text());
+        }
+        return text.toString();
+    }
+
+    // The parts of primary() that are shared with parseIteratively().
+    private Expr literal() {
         if (match(TRUE)) return new Expr.Literal(true);
         if (match(FALSE)) return new Expr.Literal(false);
         if (match(NIL)) return new Expr.Literal(null);
@@ -146,13 +570,270 @@ class Parser {
             return new Expr.Literal(previous().literal);
         }
 
-        if (match(LEFT_PAREN)) {
-            Expr expr = expression();
-            consume(RIGHT_PAREN, "Expect ')' after expression.");
-            return new Expr.Grouping(expr);
+        return null;
+    }
+
+    private Expr grouping(Expr expr, int open) {
+        consume(RIGHT_PAREN, "Expect ')' after expression.");
+        groupDepth--;
+        Expr grouping = new Expr.Grouping(expr);
+        if (groupingSpans != null) {
+            groupingSpans.put(grouping, new int[] { open, current - 1 });
         }
+        return grouping;
+    }
 
-        throw error(peek(), "Expect expression.");
+    private ParseError missingLeftOperand(Token operator) {
+        return error(operator, "Binary operator '" + operator.lexeme +
+            "' requires a left-hand operand.");
+    }
+
+    // The same grammar as the recursive descent above, but with an explicit
+    // stack of Frames instead of the Java call stack, so it can handle any
+    // amount of nesting. Each Frame is one "call" of a grammar rule, and
+    // `step` records where that call has to pick up again once the rule it
+    // is waiting on has produced its result.
+    private enum Rule {
+        EXPRESSION, ASSIGNMENT, TERNARY, EQUALITY, COMPARISON, TERM, FACTOR, UNARY, PRIMARY
+    }
+
+    private static class Frame {
+        final Rule rule;
+        int step = 0;
+        Expr expr;
+        Expr if_true;
+        Token operator;
+        List<Token> operators;
+        List<Expr> elements;
+        int open;
+        // A call's '('. Kept here, not as a token index: ByteScanner only
+        // keeps the last few tokens, and the arguments can be any length.
+        Token paren;
+
+        Frame(Rule rule) {
+            this.rule = rule;
+        }
+    }
+
+    private Expr parseIteratively(Rule start) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(new Frame(start));
+        Expr result = null;
+
+        for (;;) {
+            Frame frame = stack.peek();
+            Expr value;
+
+            switch (frame.rule) {
+                case EXPRESSION:
+                case ASSIGNMENT:
+                    // step 0: start, 1: got the left-hand side,
+                    // 2: got the assigned value, 3: got an initializer
+                    if (frame.step == 0) {
+                        if (frame.rule == Rule.EXPRESSION && match(VAR)) {
+                            frame.operator = consume(IDENTIFIER, "Expect variable name.");
+                            if (match(EQUAL)) {
+                                frame.step = 3;
+                                stack.push(new Frame(Rule.ASSIGNMENT));
+                                continue;
+                            }
+                            value = new Expr.Var(frame.operator, null);
+                            break;
+                        }
+                        frame.step = 1;
+                        stack.push(new Frame(Rule.TERNARY));
+                        continue;
+                    }
+                    if (frame.step == 1) {
+                        if (match(EQUAL)) {
+                            frame.expr = result;
+                            frame.operator = previous();
+                            frame.step = 2;
+                            stack.push(new Frame(Rule.ASSIGNMENT));
+                            continue;
+                        }
+                        value = result;
+                    } else if (frame.step == 2) {
+                        value = assign(frame.expr, frame.operator, result);
+                    } else {
+                        value = new Expr.Var(frame.operator, result);
+                    }
+                    break;
+
+                case TERNARY:
+                    // step 0: start, 1: got the condition,
+                    // 2: got if_true, 3: got if_false
+                    if (frame.step == 0) {
+                        frame.step = 1;
+                        stack.push(new Frame(Rule.EQUALITY));
+                        continue;
+                    }
+                    if (frame.step == 2) {
+                        frame.if_true = result;
+                        consume(COLON, "Expect ':' after '?' in ternary operator.");
+                        frame.step = 3;
+                        stack.push(new Frame(Rule.TERNARY));
+                        continue;
+                    }
+                    frame.expr = frame.step == 1 ? result
+                        : new Expr.Ternary(frame.expr, frame.if_true, result);
+                    if (match(QUESTION)) {
+                        frame.step = 2;
+                        stack.push(new Frame(Rule.TERNARY));
+                        continue;
+                    }
+                    value = frame.expr;
+                    break;
+
+                case EQUALITY:
+                case COMPARISON:
+                case TERM:
+                case FACTOR:
+                    // step 0: start, 1: got the left operand,
+                    // 2: got a right operand, 3: got the operand of an
+                    // error production
+                    if (frame.step == 0) {
+                        if (frame.rule == Rule.EQUALITY &&
+                            match(BANG_EQUAL, EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL, PLUS)) {
+                            frame.operator = previous();
+                            frame.step = 3;
+                        } else {
+                            frame.step = 1;
+                        }
+                        stack.push(new Frame(operandOf(frame.rule)));
+                        continue;
+                    }
+                    if (frame.step == 3) throw missingLeftOperand(frame.operator);
+
+                    frame.expr = frame.step == 1 ? result
+                        : new Expr.Binary(frame.expr, frame.operator, result);
+                    if (match(operatorsOf(frame.rule))) {
+                        frame.operator = previous();
+                        frame.step = 2;
+                        stack.push(new Frame(operandOf(frame.rule)));
+                        continue;
+                    }
+                    value = frame.expr;
+                    break;
+
+                case UNARY:
+                    if (frame.step == 0) {
+                        while (match(BANG, MINUS)) {
+                            if (frame.operators == null) frame.operators = new ArrayList<>();
+                            frame.operators.add(previous());
+                        }
+                        frame.step = 1;
+                        stack.push(new Frame(Rule.PRIMARY));
+                        continue;
+                    }
+                    value = result;
+                    if (frame.operators != null) {
+                        for (int i = frame.operators.size() - 1; i >= 0; i--) {
+                            value = new Expr.Unary(frame.operators.get(i), value);
+                        }
+                    }
+                    break;
+
+                default: // PRIMARY
+                    // step 0: start, 1: got the inside of a grouping,
+                    // 2: got an array element, 3: got an array count,
+                    // 4: got a call argument
+                    if (frame.step == 0) {
+                        value = literal();
+                        if (value == null && match(IDENTIFIER)) {
+                            Token name = previous();
+                            if (!match(LEFT_PAREN)) {
+                                value = new Expr.Variable(name);
+                                break;
+                            }
+                            frame.operator = name;
+                            frame.paren = previous();
+                            frame.elements = new ArrayList<>();
+                            groupDepth++;
+                            if (check(RIGHT_PAREN)) {
+                                value = endCall(frame.operator, frame.paren, frame.elements);
+                                break;
+                            }
+                            frame.step = 4;
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                        if (value == null && match(LEFT_BRACKET)) {
+                            frame.operator = previous();
+                            frame.elements = new ArrayList<>();
+                            groupDepth++;
+                            if (check(RIGHT_BRACKET)) {
+                                value = endArray(frame.operator, frame.elements, null);
+                                break;
+                            }
+                            frame.step = 2;
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                        if (value == null) {
+                            if (!match(LEFT_PAREN)) throw error(peek(), "Expect expression.");
+                            frame.open = current - 1;
+                            groupDepth++;
+                            frame.step = 1;
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                    } else if (frame.step == 1) {
+                        value = grouping(result, frame.open);
+                    } else if (frame.step == 2) {
+                        frame.elements.add(result);
+                        if (frame.elements.size() == 1 && match(SEMICOLON)) {
+                            frame.step = 3;
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                        if (match(COMMA)) {
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                        value = endArray(frame.operator, frame.elements, null);
+                    } else if (frame.step == 3) {
+                        value = endArray(frame.operator, frame.elements, result);
+                    } else {
+                        frame.elements.add(result);
+                        if (match(COMMA)) {
+                            tooManyArguments(frame.elements);
+                            stack.push(new Frame(Rule.EXPRESSION));
+                            continue;
+                        }
+                        value = endCall(frame.operator, frame.paren, frame.elements);
+                    }
+                    break;
+            }
+
+            // This rule is done; hand its value back to whoever asked.
+            stack.pop();
+            if (stack.isEmpty()) return value;
+            result = value;
+        }
+    }
+
+    private static Rule operandOf(Rule rule) {
+        switch (rule) {
+            case EQUALITY: return Rule.COMPARISON;
+            case COMPARISON: return Rule.TERM;
+            case TERM: return Rule.FACTOR;
+            default: return Rule.UNARY;
+        }
+    }
+
+    private static final TokenType[] EQUALITY_OPERATORS = { BANG_EQUAL, EQUAL_EQUAL };
+    private static final TokenType[] COMPARISON_OPERATORS = { GREATER, GREATER_EQUAL, LESS, LESS_EQUAL };
+    private static final TokenType[] TERM_OPERATORS = { PLUS, MINUS };
+    private static final TokenType[] FACTOR_OPERATORS = { STAR, SLASH };
+
+    private static TokenType[] operatorsOf(Rule rule) {
+        switch (rule) {
+            case EQUALITY: return EQUALITY_OPERATORS;
+            case COMPARISON: return COMPARISON_OPERATORS;
+            case TERM: return TERM_OPERATORS;
+            default: return FACTOR_OPERATORS;
+        }
     }
 
     private boolean match(TokenType... tokens) {
@@ -196,15 +877,28 @@ class Parser {
     }
 
     private ParseError error(Token token, String message) {
-        Lox.error(token, message);
-        return new ParseError();
+        if (diagnostics != null) {
+            diagnostics.add(Diagnostic.at(token, message));
+        } else {
+            Lox.error(token, message);
+        }
+        return PARSE_ERROR;
     }
 
     private void synchronize() {
+        // Until we have statements, a comma that isn't inside a grouping
+        // is the best place to start over.
+        int depth = groupDepth;
+        groupDepth = 0;
+        if (isAtEnd()) return;
         advance();
 
         while (!isAtEnd()) {
-            if (previous().type == SEMICOLON) return;
+            TokenType type = previous().type;
+            if (type == LEFT_PAREN || type == LEFT_BRACKET) depth++;
+            if ((type == RIGHT_PAREN || type == RIGHT_BRACKET) && depth > 0) depth--;
+            if (type == COMMA && depth == 0) return;
+            if (type == SEMICOLON) return;
 
             switch (peek().type) {
                 case CLASS:
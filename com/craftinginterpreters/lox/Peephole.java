@@ -0,0 +1,303 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Cleans up what Lowering emits, on the instruction list (before it's
+// assembled), and then fuses instructions into superinstructions.
+//
+// optimize() looks at the last few instructions as each one is added,
+// so rewrites cascade ("1 + 2 * 3" folds all the way to 7):
+//
+//   CONSTANT a, CONSTANT b, <operator>   the result, as one CONSTANT
+//   CONSTANT a, NEGATE / NOT             the result
+//   CONSTANT n, ELEMENT                  CONSTANT n (a number is fine)
+//   CONSTANT c, JUMP_IF_FALSE l          nothing, or JUMP l
+//   NOT, JUMP_IF_FALSE l                 JUMP_IF_TRUE l (and the other way)
+//   CONSTANT, POP                        nothing
+//   JUMP l, ..., l:                      whatever is after l (dead code)
+//   JUMP l, l:                           nothing
+//
+// Folding uses the Interpreter's own operators, so a folded value is
+// exactly what evaluating it would give. Anything that fails (1 / 0,
+// -"a") is left alone, to fail when it runs, like it would have. It keeps
+// count of the jumps to each label, so a label nothing jumps to any more
+// goes as soon as it's reached: a folded ternary is then just its value,
+// and the ternary around it folds too, in the same pass. Whole passes
+// also thread jumps to jumps, drop jumps to the next instruction and drop
+// labels nothing jumps to; they run until nothing changes, which for
+// Lowering's output is usually after the second.
+//
+// Which superinstructions fuse() makes is up to the caller. choose()
+// picks them from a PairProfile: a fusion only pays off if its
+// instructions really run one after the other a lot.
+class Peephole {
+    // The superinstructions "--vm" uses: what choose() picked from the
+    // profile of the GenerateWorkload corpus (PairProfile's main), best
+    // first.
+    static final int[] DEFAULT_FUSIONS = {
+        SET_POP, GET_GET, GET_GET_ADD, GET_GET_SUBTRACT, GET_MULTIPLY_CONSTANT,
+        GET_DIVIDE_CONSTANT, GREATER_JUMP, MULTIPLY_CONSTANT, SUBTRACT_CONSTANT, DIVIDE_CONSTANT,
+    };
+
+    // Only fusions that would save at least this share of all the
+    // instructions run.
+    static final double MIN_SHARE = 0.01;
+
+    private final Interpreter folder = new Interpreter();
+    private final List<Instruction> output = new ArrayList<>();
+    // How many jumps (in the input, less the ones dropped) go to each label.
+    private final Map<Instruction, Integer> uses = new IdentityHashMap<>();
+    // After a JUMP, until the next label: nothing can get there.
+    private boolean unreachable = false;
+    private boolean changed = false;
+
+    private Peephole(List<Instruction> instructions) {
+        for (Instruction instruction : instructions) use(instruction, 1);
+    }
+
+    static List<Instruction> optimize(List<Instruction> instructions) {
+        for (;;) {
+            Peephole peephole = new Peephole(instructions);
+            for (Instruction instruction : instructions) peephole.add(instruction);
+            List<Instruction> optimized = removeUnusedLabels(peephole.threadJumps(peephole.output));
+            if (!peephole.changed && optimized.size() == peephole.output.size()) return optimized;
+            instructions = optimized;
+        }
+    }
+
+    private void add(Instruction instruction) {
+        if (instruction.op == LABEL) {
+            Instruction last = last(0);
+            if (last != null && last.op == JUMP && last.target == instruction) {
+                // Falls through to the label now.
+                drop(1);
+                unreachable = false;
+                changed = true;
+            }
+            if (uses.getOrDefault(instruction, 0) == 0) {
+                // Whether what follows can run is up to what's before.
+                changed = true;
+                return;
+            }
+            unreachable = false;
+        } else if (unreachable) {
+            use(instruction, -1);
+            changed = true;
+            return;
+        }
+        output.add(instruction);
+
+        while (rewrite()) {
+            changed = true;
+        }
+        if (instruction.op == JUMP && last(0) == instruction) unreachable = true;
+    }
+
+    // One rewrite at the end of the output, if there is one that applies.
+    private boolean rewrite() {
+        Instruction last = last(0);
+        Instruction before = last(1);
+        if (last == null || before == null) return false;
+
+        if (before.op == CONSTANT) {
+            Object constant = before.constant;
+            switch (last.op) {
+                case NEGATE:
+                    return fold(2, () -> folder.unary((Expr.Unary)last.node, constant));
+                case NOT:
+                    return fold(2, () -> !folder.isTruthy(constant));
+                case ELEMENT:
+                    if (!(constant instanceof Double)) return false;
+                    drop(1);
+                    return true;
+                case POP:
+                    drop(2);
+                    return true;
+                case JUMP_IF_FALSE:
+                case JUMP_IF_TRUE:
+                    boolean jumps = folder.isTruthy(constant) == (last.op == JUMP_IF_TRUE);
+                    drop(2);
+                    if (jumps) {
+                        Instruction jump = new Instruction(JUMP);
+                        jump.target = last.target;
+                        use(jump, 1);
+                        output.add(jump);
+                        unreachable = true;
+                    }
+                    return true;
+            }
+
+            Instruction first = last(2);
+            if (isBinary(last.op) && first != null && first.op == CONSTANT) {
+                return fold(3, () -> folder.binary((Expr.Binary)last.node, first.constant, constant));
+            }
+        }
+
+        if (before.op == NOT && (last.op == JUMP_IF_FALSE || last.op == JUMP_IF_TRUE)) {
+            Instruction jump = new Instruction(last.op == JUMP_IF_FALSE ? JUMP_IF_TRUE : JUMP_IF_FALSE);
+            jump.target = last.target;
+            use(jump, 1);
+            drop(2);
+            output.add(jump);
+            return true;
+        }
+        return false;
+    }
+
+    private interface Fold {
+        Object value();
+    }
+
+    // Replaces the last `count` instructions with the constant `fold`
+    // makes, unless making it fails.
+    private boolean fold(int count, Fold fold) {
+        Object value;
+        try {
+            value = fold.value();
+        } catch (RuntimeException e) {
+            // Left for run time, to fail there.
+            return false;
+        }
+        drop(count);
+        Instruction constant = new Instruction(CONSTANT);
+        constant.constant = value;
+        output.add(constant);
+        return true;
+    }
+
+    private Instruction last(int back) {
+        int index = output.size() - 1 - back;
+        if (index < 0 || output.get(index).op == LABEL) return null;
+        // Nothing before a label can be combined with what's after it.
+        for (int i = index + 1; i < output.size(); i++) {
+            if (output.get(i).op == LABEL) return null;
+        }
+        return output.get(index);
+    }
+
+    private void drop(int count) {
+        for (int i = 0; i < count; i++) use(output.remove(output.size() - 1), -1);
+    }
+
+    private void use(Instruction instruction, int count) {
+        if (instruction.target != null) uses.merge(instruction.target, count, Integer::sum);
+    }
+
+    private static boolean isBinary(int op) {
+        return op >= ADD && op <= NOT_EQUAL;
+    }
+
+    // A jump to a label that's followed by a JUMP can go straight to where
+    // that one goes (and on, if that's another JUMP), and a JUMP to the
+    // very next instruction isn't needed.
+    private List<Instruction> threadJumps(List<Instruction> instructions) {
+        Map<Instruction, Instruction> after = new IdentityHashMap<>();
+        for (int i = 0; i < instructions.size(); i++) {
+            if (instructions.get(i).op != LABEL) continue;
+            int next = i + 1;
+            while (next < instructions.size() && instructions.get(next).op == LABEL) next++;
+            if (next < instructions.size()) after.put(instructions.get(i), instructions.get(next));
+        }
+
+        List<Instruction> kept = new ArrayList<>(instructions.size());
+        for (int i = 0; i < instructions.size(); i++) {
+            Instruction instruction = instructions.get(i);
+            // Bounded, in case the jumps go round in a circle.
+            for (int hops = 0; instruction.target != null && hops < instructions.size(); hops++) {
+                Instruction next = after.get(instruction.target);
+                if (next == null || next.op != JUMP || next.target == instruction.target) break;
+                instruction.target = next.target;
+                changed = true;
+            }
+
+            if (instruction.op == JUMP) {
+                int label = i + 1;
+                while (label < instructions.size() && instructions.get(label).op == LABEL &&
+                       instructions.get(label) != instruction.target) {
+                    label++;
+                }
+                if (label < instructions.size() && instructions.get(label) == instruction.target) {
+                    changed = true;
+                    continue;
+                }
+            }
+            kept.add(instruction);
+        }
+        return kept;
+    }
+
+    private static List<Instruction> removeUnusedLabels(List<Instruction> instructions) {
+        Map<Instruction, Boolean> used = new IdentityHashMap<>();
+        for (Instruction instruction : instructions) {
+            if (instruction.target != null) used.put(instruction.target, true);
+        }
+        List<Instruction> kept = new ArrayList<>(instructions.size());
+        for (Instruction instruction : instructions) {
+            if (instruction.op != LABEL || used.containsKey(instruction)) kept.add(instruction);
+        }
+        return kept;
+    }
+
+    // Replaces every run of instructions that matches one of `fusions`
+    // (opcodes of superinstructions) with that superinstruction, going
+    // left to right. Where several match, the longest wins (GET_GET_ADD
+    // over GET_GET), then the one earlier in `fusions`. Never across a
+    // label: the instruction after one can be reached from somewhere else.
+    static List<Instruction> fuse(List<Instruction> instructions, int[] fusions) {
+        List<Instruction> fused = new ArrayList<>(instructions.size());
+        int i = 0;
+        while (i < instructions.size()) {
+            int best = -1;
+            for (int fusion : fusions) {
+                if (matches(instructions, i, PARTS[fusion]) &&
+                    (best < 0 || PARTS[fusion].length > PARTS[best].length)) {
+                    best = fusion;
+                }
+            }
+            if (best < 0) {
+                fused.add(instructions.get(i++));
+                continue;
+            }
+            Instruction instruction = new Instruction(best);
+            instruction.parts = instructions.subList(i, i + PARTS[best].length)
+                                            .toArray(new Instruction[0]);
+            fused.add(instruction);
+            i += PARTS[best].length;
+        }
+        return fused;
+    }
+
+    private static boolean matches(List<Instruction> instructions, int start, int[] pattern) {
+        if (start + pattern.length > instructions.size()) return false;
+        for (int i = 0; i < pattern.length; i++) {
+            if (instructions.get(start + i).op != pattern[i]) return false;
+        }
+        return true;
+    }
+
+    // The superinstructions worth having for code that runs like the code
+    // `profile` was collected on: the ones that would save at least
+    // `minShare` of the instructions run, most saved first. Run counts of
+    // overlapping candidates (GET_GET and GET_GET_ADD) are counted for
+    // both, so the list can be a little optimistic about the second one.
+    static int[] choose(PairProfile profile, double minShare) {
+        List<Integer> chosen = new ArrayList<>();
+        for (int op = 0; op < OPCODES; op++) {
+            if (PARTS[op] != null && saved(profile, op) >= minShare * profile.total()) {
+                chosen.add(op);
+            }
+        }
+        chosen.sort((a, b) -> Long.compare(saved(profile, b), saved(profile, a)));
+        return chosen.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    // How many fewer instructions would have run with the superinstruction.
+    static long saved(PairProfile profile, int fusion) {
+        return profile.count(PARTS[fusion]) * (PARTS[fusion].length - 1);
+    }
+}
@@ -0,0 +1,445 @@
+package com.craftinginterpreters.lox;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+// "--pipeline": runs a script file as three stages on their own threads,
+// instead of scanning all of it, then parsing all of it, then evaluating:
+//
+//   scanner thread --[token batches]--> parser thread --[trees]--> evaluator
+//
+// A script is a comma sequence, so its top-level expressions are the unit
+// of work. The scanner cuts the tokens at every ',' that isn't inside
+// brackets, the parser parses, resolves and type checks each piece on its
+// own, and the evaluator (the calling thread) evaluates them in order and
+// prints each one's value as soon as it has it. So the first values come
+// out while the scanner is still reading the start of a huge file.
+//
+// Pieces travel in batches of about BATCH_TOKENS tokens, so the threads
+// hand over a few hundred pieces at a time instead of taking a lock per
+// piece. Both queues hold at most QUEUE_BATCHES batches: a stage that gets
+// ahead blocks until the next one catches up, so only a few batches of
+// tokens and trees are on the heap however big the file is. (One huge
+// expression is still scanned and parsed whole before it can run.)
+//
+// The file is read through a MappedSource with ByteScanner, so it's never
+// decoded into one big String either.
+//
+// Where this differs from a normal run:
+//   - Every top-level value is printed, not just the last one.
+//   - Pieces before one with a syntax error (or an undefined variable)
+//     have already run by the time the error is found.
+//   - Budgets ("--max-nodes" and so on) apply to each piece.
+class Pipeline {
+    static final int BATCH_TOKENS = 4096;
+    static final int QUEUE_BATCHES = 4;
+
+    // One top-level expression on its way through the stages.
+    private static class Unit {
+        List<Token> tokens;
+        final List<Diagnostic> diagnostics;
+        Expr expr = null;
+        // Nothing after this unit runs: it's the end of the file, has an
+        // error, or is followed by something parse() would have ignored.
+        boolean last;
+        // A stage crashed (a bug, or the file shrank under the mapping).
+        Throwable failure = null;
+
+        Unit(List<Token> tokens, List<Diagnostic> diagnostics, boolean last) {
+            this.tokens = tokens;
+            this.diagnostics = diagnostics;
+            this.last = last;
+        }
+
+        static Unit failed(Throwable failure) {
+            Unit unit = new Unit(null, null, true);
+            unit.failure = failure;
+            return unit;
+        }
+    }
+
+    private final Interpreter interpreter;
+    private final boolean strictTypes;
+
+    // Only the parser thread uses these. The resolver is shared by all of
+    // the units, so later ones see the variables declared in earlier ones.
+    private final List<Diagnostic> resolveErrors = new ArrayList<>();
+    private final Resolver resolver = new Resolver(resolveErrors);
+
+    private final BlockingQueue<List<Unit>> scanned = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+    private final BlockingQueue<List<Unit>> parsed = new ArrayBlockingQueue<>(QUEUE_BATCHES);
+
+    Pipeline(Interpreter interpreter, boolean strictTypes) {
+        this.interpreter = interpreter;
+        this.strictTypes = strictTypes;
+    }
+
+    // Runs the script, printing values and runtime errors to `out` and
+    // syntax errors to `err`, like "jlox script" does. Returns the exit
+    // status: 0, 65 (syntax error) or 70 (runtime error). A Pipeline can
+    // only run once.
+    int run(MappedSource source, PrintStream out, PrintStream err) {
+        Thread scanner = new Thread(() -> scan(source), "jlox-scanner");
+        Thread parser = new Thread(this::parse, "jlox-parser");
+        // Neither may keep the JVM alive if the evaluator stops early.
+        scanner.setDaemon(true);
+        parser.setDaemon(true);
+        scanner.start();
+        parser.start();
+
+        try {
+            for (;;) {
+                for (Unit unit : parsed.take()) {
+                    if (unit.failure != null) {
+                        throw new IllegalStateException("Pipeline stage failed", unit.failure);
+                    }
+                    if (unit.expr == null) {
+                        for (Diagnostic diagnostic : unit.diagnostics) {
+                            err.println(diagnostic);
+                        }
+                        return 65;
+                    }
+                    try {
+                        Object value = interpreter.budget == null
+                            ? interpreter.evaluate(unit.expr)
+                            : interpreter.evaluateWithin(unit.expr, interpreter.budget);
+                        out.println(interpreter.stringify(value));
+                    } catch (RuntimeError error) {
+                        out.println(Lox.describe(error));
+                        return 70;
+                    }
+                    if (unit.last) return 0;
+                }
+                // Once per batch, not per value.
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Pipeline was interrupted", e);
+        } finally {
+            out.flush();
+            // Stops them if we stopped before the end of the file.
+            scanner.interrupt();
+            parser.interrupt();
+        }
+    }
+
+    // The scanner stage: cuts the tokens into units at top-level commas and
+    // hands them on in batches.
+    private void scan(MappedSource source) {
+        List<Diagnostic> errors = new ArrayList<>();
+        ByteScanner scanner = new ByteScanner(source, errors);
+        List<Unit> batch = new ArrayList<>();
+        int batchTokens = 0;
+        List<Token> tokens = new ArrayList<>();
+        int nesting = 0;
+        int reported = 0;
+
+        try {
+            for (;;) {
+                if (Thread.currentThread().isInterrupted()) return;
+                Token token = scanner.nextToken();
+                tokens.add(token);
+
+                // Same bracket counting as Parser.synchronize(): commas
+                // inside calls, arrays and groupings don't end a unit.
+                TokenType type = token.type;
+                if (type == LEFT_PAREN || type == LEFT_BRACKET) nesting++;
+                if ((type == RIGHT_PAREN || type == RIGHT_BRACKET) && nesting > 0) nesting--;
+                boolean last = type == EOF;
+                if (!last && (type != COMMA || nesting > 0)) continue;
+
+                // The ',' stays in, so the parser can tell it stopped there
+                // (see Parser.atComma()), and an EOF goes after it.
+                if (!last) tokens.add(new Token(EOF, "", null, token.line, token.offset));
+                // Scanner errors belong to the unit they were found in.
+                List<Diagnostic> diagnostics = new ArrayList<>(errors.subList(reported, errors.size()));
+                reported = errors.size();
+                batch.add(new Unit(tokens, diagnostics, last));
+                batchTokens += tokens.size();
+                tokens = new ArrayList<>();
+
+                if (last || batchTokens >= BATCH_TOKENS) {
+                    scanned.put(batch);
+                    if (last) return;
+                    batch = new ArrayList<>();
+                    batchTokens = 0;
+                }
+            }
+        } catch (InterruptedException e) {
+            // The evaluator is done.
+        } catch (RuntimeException | Error e) {
+            batch.add(Unit.failed(e));
+            pass(scanned, batch);
+        }
+    }
+
+    // The parser stage: parses, resolves and type checks each unit, in
+    // order, and hands the batch on.
+    private void parse() {
+        List<Unit> batch = new ArrayList<>();
+        try {
+            for (;;) {
+                batch = scanned.take();
+                for (int i = 0; i < batch.size(); i++) {
+                    Unit unit = batch.get(i);
+                    if (unit.failure == null) compile(unit);
+                    if (unit.last) {
+                        parsed.put(batch.subList(0, i + 1));
+                        return;
+                    }
+                }
+                parsed.put(batch);
+            }
+        } catch (InterruptedException e) {
+            // The evaluator is done.
+        } catch (RuntimeException | Error e) {
+            List<Unit> failed = new ArrayList<>();
+            failed.add(Unit.failed(e));
+            pass(parsed, failed);
+        }
+    }
+
+    private void compile(Unit unit) {
+        // Already has the scanner's errors, if there were any.
+        List<Diagnostic> diagnostics = unit.diagnostics;
+        Parser parser = new Parser(unit.tokens, diagnostics);
+        parser.recover = false;
+        Expr expr = parser.parseTopLevel();
+        if (!parser.atComma()) unit.last = true;
+        // Done with them; the tree keeps the tokens it needs.
+        unit.tokens = null;
+
+        if (expr != null && diagnostics.isEmpty()) {
+            resolver.resolve(expr);
+            diagnostics.addAll(resolveErrors);
+            resolveErrors.clear();
+            if (diagnostics.isEmpty()) {
+                new TypeChecker(strictTypes ? diagnostics : null).check(expr);
+            }
+        }
+
+        if (diagnostics.isEmpty()) {
+            unit.expr = expr;
+        } else {
+            unit.last = true;
+        }
+    }
+
+    // Hands a crash on to the evaluator, unless it's gone already.
+    private static void pass(BlockingQueue<List<Unit>> queue, List<Unit> batch) {
+        try {
+            queue.put(batch);
+        } catch (InterruptedException e) {
+            // Nobody is waiting for it.
+        }
+    }
+
+    // `Pipeline [units]`: first checks a few small scripts (syntax errors,
+    // runtime errors, commas inside calls and arrays, trailing tokens)
+    // against what they should print. Then writes a script of <units>
+    // top-level expressions to a temp file and runs it both ways: the
+    // normal way (read the file, scan it all, parse it all, then evaluate)
+    // and pipelined. Both print every value; the outputs have to be the
+    // same. Reports the time to the first value, the total time and the
+    // heap used.
+    public static void main(String[] args) throws IOException {
+        int units = args.length > 0 ? Integer.parseInt(args[0]) : 500_000;
+
+        int failures = 0;
+        failures += check("1, 2 + 3, \"a\" + \"b\"", "1\n5\nab\n", "", 0);
+        failures += check("var x = 2,\nx = x * 10,\nx + 1", "2\n20\n21\n", "", 0);
+        failures += check("min(3, 2), [1, 2] * 2, ([1, 2])", "2\n[2, 4]\n[1, 2]\n", "", 0);
+        failures += check("1, 2 +, 3", "1\n",
+                          "[line 1] Error at ',': Expect expression.\n", 65);
+        failures += check("1,\ny + 1", "1\n",
+                          "[line 2] Error at 'y': Undefined variable 'y'.\n", 65);
+        failures += check("1, 2 @ 3, 4", "1\n",
+                          "[line 1] Error: Unexpected character.\n", 65);
+        failures += check("1, 2 3, 4", "1\n2\n", "", 0);
+        failures += check("1, -\"a\", 3", "1\nOperand must be a number.\n[line 1]\n", "", 70);
+        failures += check("1, (2, 3", "1\n",
+                          "[line 1] Error at ',': Expect ')' after expression.\n", 65);
+        failures += check("1,", "1\n", "[line 1] Error at end: Expect expression.\n", 65);
+        failures += check("", "", "[line 1] Error at end: Expect expression.\n", 65);
+        System.out.println(failures == 0 ? "small scripts: all ok"
+                                         : "small scripts: " + failures + " failed");
+
+        Path script = Files.createTempFile("jlox-pipeline", ".jlox");
+        try {
+            try (Writer writer = Files.newBufferedWriter(script)) {
+                writeScript(writer, units);
+            }
+            System.out.println(String.format("%d top-level expressions, %.1f MB",
+                units + 1, Files.size(script) / 1e6));
+
+            // Alternating, keeping the best of each.
+            Timing normal = null;
+            Timing pipelined = null;
+            for (int round = 0; round < 3; round++) {
+                normal = Timing.best(normal, runNormally(script));
+                pipelined = Timing.best(pipelined, runPipelined(script));
+            }
+            System.out.println("normal:    " + normal);
+            System.out.println("pipelined: " + pipelined);
+            if (normal.crc != pipelined.crc || normal.lines != pipelined.lines) {
+                System.out.println("OUTPUTS DIFFER");
+                failures++;
+            }
+        } finally {
+            Files.delete(script);
+        }
+        if (failures > 0) System.exit(1);
+    }
+
+    private static int check(String source, String stdout, String stderr, int status)
+            throws IOException {
+        Path script = Files.createTempFile("jlox-pipeline", ".jlox");
+        try {
+            Files.write(script, source.getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ByteArrayOutputStream err = new ByteArrayOutputStream();
+            int actual = new Pipeline(new Interpreter(), false)
+                .run(MappedSource.map(script), new PrintStream(out, true, "UTF-8"),
+                     new PrintStream(err, true, "UTF-8"));
+            String printed = out.toString("UTF-8");
+            String errors = err.toString("UTF-8");
+            if (actual == status && printed.equals(stdout) && errors.equals(stderr)) return 0;
+            System.out.println("FAILED: " + source.replace("\n", "\\n"));
+            System.out.println("  expected exit " + status + ", stdout " +
+                               stdout.replace("\n", "\\n") + ", stderr " + stderr.replace("\n", "\\n"));
+            System.out.println("  got exit " + actual + ", stdout " +
+                               printed.replace("\n", "\\n") + ", stderr " + errors.replace("\n", "\\n"));
+            return 1;
+        } finally {
+            Files.delete(script);
+        }
+    }
+
+    // A mix of arithmetic, ternaries with strings, native calls, small
+    // arrays and a running total, one per line.
+    private static void writeScript(Writer writer, int units) throws IOException {
+        writer.write("var total = 0");
+        for (int i = 1; i <= units; i++) {
+            writer.write(",\n");
+            if (i % 100 == 0) {
+                writer.write("total = total + " + i);
+            } else if (i % 3 == 0) {
+                writer.write("(" + i + " * 3 + 1) / 2 > 1000 ? \"big\" : \"small\"");
+            } else if (i % 3 == 1) {
+                writer.write("sqrt(" + i + ") * 2 - " + i + " / 7");
+            } else {
+                writer.write("[" + i + ", " + i + " + 1, min(" + i + ", 5)] * 2");
+            }
+        }
+    }
+
+    // What the normal run does, except that it prints every value like the
+    // pipeline does.
+    private static Timing runNormally(Path script) throws IOException {
+        Timing timing = new Timing();
+        timing.start();
+        String source = new String(Files.readAllBytes(script), StandardCharsets.UTF_8);
+        List<Token> tokens = new Scanner(source).scanTokens();
+        Expr.Sequence sequence = (Expr.Sequence)new Parser(tokens).parse();
+        new Resolver().resolve(sequence);
+        new TypeChecker(null).check(sequence);
+        Interpreter interpreter = new Interpreter();
+        PrintStream out = timing.output();
+        for (Expr expr : sequence.expressions) {
+            out.println(interpreter.stringify(interpreter.evaluate(expr)));
+        }
+        out.flush();
+        timing.stop();
+        return timing;
+    }
+
+    private static Timing runPipelined(Path script) throws IOException {
+        Timing timing = new Timing();
+        timing.start();
+        int status = new Pipeline(new Interpreter(), false)
+            .run(MappedSource.map(script), timing.output(), System.err);
+        timing.stop();
+        if (status != 0) throw new IllegalStateException("Exit status " + status);
+        return timing;
+    }
+
+    // One run: when its output started and ended, a CRC of the output (so
+    // two runs can be compared without keeping it), and the peak heap.
+    private static class Timing extends OutputStream {
+        long startNanos;
+        long firstNanos = -1;
+        long totalNanos;
+        long lines = 0;
+        long peakHeap;
+        final CRC32 crc32 = new CRC32();
+        long crc;
+
+        void start() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+            }
+            startNanos = System.nanoTime();
+        }
+
+        PrintStream output() {
+            return new PrintStream(new BufferedOutputStream(this, 1 << 16), false);
+        }
+
+        void stop() {
+            totalNanos = System.nanoTime() - startNanos;
+            crc = crc32.getValue();
+            // Adds up each pool's peak, so it can be a bit more than the
+            // heap ever held at once.
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) peakHeap += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        @Override
+        public void write(int b) {
+            write(new byte[] { (byte)b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) {
+            if (firstNanos < 0) firstNanos = System.nanoTime() - startNanos;
+            crc32.update(bytes, offset, length);
+            for (int i = offset; i < offset + length; i++) {
+                if (bytes[i] == '\n') lines++;
+            }
+        }
+
+        static Timing best(Timing a, Timing b) {
+            if (a == null) return b;
+            Timing best = a.totalNanos <= b.totalNanos ? a : b;
+            best.firstNanos = Math.min(a.firstNanos, b.firstNanos);
+            best.peakHeap = Math.min(a.peakHeap, b.peakHeap);
+            return best;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("first value after %8.2f ms, all %d after %8.2f ms, peak heap %6.1f MB",
+                firstNanos / 1e6, lines, totalNanos / 1e6, peakHeap / 1e6);
+        }
+    }
+}
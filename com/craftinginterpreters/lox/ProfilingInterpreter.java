@@ -0,0 +1,325 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+// An Interpreter that keeps statistics for every Expr node it evaluates,
+// so we can see *which* sub-expression of a script is slow. A regular JVM
+// profiler only ever shows a pile of visitBinaryExpr frames, which doesn't
+// tell us anything about the Lox source.
+//
+// There are two modes:
+//  * exact (the default): every evaluate() call is counted and timed with
+//    System.nanoTime(). Self time is the total time minus the time that was
+//    spent inside the child nodes.
+//  * sampling: evaluate() only pushes/pops the node on an array stack, and
+//    a daemon thread peeks at that stack every `sampleMicros`. That is a lot
+//    cheaper on long runs, but the times are estimates and there are no
+//    call counts.
+class ProfilingInterpreter extends Interpreter {
+    private static class NodeStats {
+        final Expr node;
+        final NodeStats parent;
+        final int line;
+        long calls = 0;
+        long totalNanos = 0;
+        long selfNanos = 0;
+        long totalSamples = 0;
+        long selfSamples = 0;
+
+        NodeStats(Expr node, NodeStats parent, int line) {
+            this.node = node;
+            this.parent = parent;
+            this.line = line;
+        }
+    }
+
+    private final Map<Expr, NodeStats> stats = new IdentityHashMap<>();
+    // The lines lineOf() has worked out for nodes that don't have stats
+    // yet, and the nodes it's going through.
+    private final Map<Expr, Integer> lines = new IdentityHashMap<>();
+    private final List<Expr> chain = new ArrayList<>();
+    private final long sampleMicros;
+
+    // Exact mode state: the node currently being evaluated and how much of
+    // its time has been spent in its children so far. The same for the
+    // nodes it's inside of, and when each one started, are saved on these
+    // stacks; frames[0, frameCount) is in use.
+    private NodeStats top = null;
+    private long childNanos = 0;
+    private NodeStats[] savedTops = new NodeStats[64];
+    private long[] savedChildNanos = new long[64];
+    private long[] starts = new long[64];
+    private int frameCount = 0;
+
+    // Sampling mode state. Only the evaluating thread writes these; the
+    // sampler thread just reads them, so a sample may occasionally see a
+    // half-updated stack. That's fine for a statistical profile.
+    private volatile Expr[] stack = new Expr[64];
+    private volatile int depth = 0;
+    private volatile boolean sampling = false;
+    private long samples = 0;
+
+    // sampleMicros <= 0 means exact mode.
+    ProfilingInterpreter(long sampleMicros) {
+        this.sampleMicros = sampleMicros;
+    }
+
+    @Override
+    void interpret(Expr expression) {
+        if (sampleMicros <= 0) {
+            super.interpret(expression);
+            return;
+        }
+
+        sampling = true;
+        Thread sampler = new Thread(this::sampleLoop, "jlox-profiler");
+        sampler.setDaemon(true);
+        sampler.start();
+        try {
+            super.interpret(expression);
+        } finally {
+            sampling = false;
+            LockSupport.unpark(sampler);
+            try {
+                sampler.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    Object evaluate(Expr expr) {
+        enterNode(expr);
+        try {
+            return super.evaluate(expr);
+        } finally {
+            exitNode(expr);
+        }
+    }
+
+    // Also called directly by the Interpreter for the nodes of a tree too
+    // deep to recurse into, which never go through evaluate().
+    @Override
+    void enterNode(Expr expr) {
+        if (sampleMicros > 0) {
+            Expr[] frames = stack;
+            int d = depth;
+            if (d == frames.length) {
+                Expr[] bigger = new Expr[frames.length * 2];
+                System.arraycopy(frames, 0, bigger, 0, frames.length);
+                stack = frames = bigger;
+            }
+            frames[d] = expr;
+            depth = d + 1;
+            return;
+        }
+
+        if (frameCount == starts.length) {
+            savedTops = Arrays.copyOf(savedTops, frameCount * 2);
+            savedChildNanos = Arrays.copyOf(savedChildNanos, frameCount * 2);
+            starts = Arrays.copyOf(starts, frameCount * 2);
+        }
+        savedTops[frameCount] = top;
+        savedChildNanos[frameCount] = childNanos;
+        top = statsFor(expr, top);
+        childNanos = 0;
+        starts[frameCount++] = System.nanoTime();
+    }
+
+    @Override
+    void exitNode(Expr expr) {
+        if (sampleMicros > 0) {
+            depth--;
+            return;
+        }
+
+        long elapsed = System.nanoTime() - starts[--frameCount];
+        NodeStats node = top;
+        node.calls++;
+        node.totalNanos += elapsed;
+        node.selfNanos += elapsed - childNanos;
+        top = savedTops[frameCount];
+        savedTops[frameCount] = null;
+        childNanos = savedChildNanos[frameCount] + elapsed;
+    }
+
+    private void sampleLoop() {
+        while (sampling) {
+            LockSupport.parkNanos(sampleMicros * 1000);
+            Expr[] frames = stack;
+            int d = Math.min(depth, frames.length);
+            if (d == 0) continue;
+
+            samples++;
+            NodeStats parent = null;
+            for (int i = 0; i < d; i++) {
+                Expr frame = frames[i];
+                if (frame == null) break;
+                parent = statsFor(frame, parent);
+                parent.totalSamples++;
+            }
+            if (parent != null) parent.selfSamples++;
+        }
+    }
+
+    private NodeStats statsFor(Expr expr, NodeStats parent) {
+        NodeStats node = stats.get(expr);
+        if (node == null) {
+            node = new NodeStats(expr, parent, lineOf(expr, parent));
+            stats.put(expr, node);
+        }
+        return node;
+    }
+
+    // Only some nodes carry a Token (operators and variable names). For the
+    // others we follow the left-most child down until we find one, and
+    // otherwise fall back on whatever node we were evaluated from. Every
+    // node on the way gets the same line, so it's kept for them: the
+    // children of 100000 nested groupings are walked once, not once each.
+    private int lineOf(Expr expr, NodeStats parent) {
+        Integer known = lines.remove(expr);
+        if (known != null) return known;
+
+        int line = -1;
+        Expr node = expr;
+        while (node != null) {
+            NodeStats other = stats.get(node);
+            known = other != null ? Integer.valueOf(other.line) : lines.get(node);
+            if (known != null) {
+                line = known;
+                break;
+            }
+            line = tokenLine(node);
+            if (line >= 0) break;
+            chain.add(node);
+            node = firstChild(node);
+        }
+        if (line < 0) line = parent != null ? parent.line : 1;
+
+        for (int i = 1; i < chain.size(); i++) lines.put(chain.get(i), line);
+        chain.clear();
+        return line;
+    }
+
+    // -1 for the nodes without a Token.
+    private static int tokenLine(Expr node) {
+        if (node instanceof Expr.Binary) return ((Expr.Binary)node).operator.line;
+        if (node instanceof Expr.Unary) return ((Expr.Unary)node).operator.line;
+        if (node instanceof Expr.Variable) return ((Expr.Variable)node).name.line;
+        if (node instanceof Expr.Assign) return ((Expr.Assign)node).name.line;
+        if (node instanceof Expr.Var) return ((Expr.Var)node).name.line;
+        if (node instanceof Expr.ArrayLiteral) return ((Expr.ArrayLiteral)node).bracket.line;
+        if (node instanceof Expr.Call) return ((Expr.Call)node).name.line;
+        if (node instanceof Expr.Deferred) {
+            Expr.Deferred deferred = (Expr.Deferred)node;
+            return deferred.tokens.get(deferred.start).line;
+        }
+        return -1;
+    }
+
+    // The child that is evaluated first, for the nodes without a Token.
+    private static Expr firstChild(Expr node) {
+        if (node instanceof Expr.Grouping) return ((Expr.Grouping)node).expression;
+        if (node instanceof Expr.Ternary) return ((Expr.Ternary)node).predicate;
+        if (node instanceof Expr.Sequence) return ((Expr.Sequence)node).expressions.get(0);
+        return null;
+    }
+
+    private static String describe(Expr expr) {
+        if (expr instanceof Expr.Binary) {
+            return "Binary " + ((Expr.Binary)expr).operator.lexeme;
+        }
+        if (expr instanceof Expr.Unary) {
+            return "Unary " + ((Expr.Unary)expr).operator.lexeme;
+        }
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            String text = value == null ? "nil" : value.toString();
+            if (text.length() > 20) text = text.substring(0, 17) + "...";
+            return "Literal " + text;
+        }
+        if (expr instanceof Expr.Variable) return "Variable " + ((Expr.Variable)expr).name.lexeme;
+        if (expr instanceof Expr.Assign) return "Assign " + ((Expr.Assign)expr).name.lexeme;
+        if (expr instanceof Expr.Var) return "Var " + ((Expr.Var)expr).name.lexeme;
+        if (expr instanceof Expr.Call) return "Call " + ((Expr.Call)expr).name.lexeme;
+        if (expr instanceof Expr.Ternary) return "Ternary";
+        if (expr instanceof Expr.Grouping) return "Grouping";
+        return expr.getClass().getSimpleName();
+    }
+
+    private boolean sampled() {
+        return sampleMicros > 0;
+    }
+
+    private long selfOf(NodeStats node) {
+        return sampled() ? node.selfSamples : node.selfNanos;
+    }
+
+    // Ranked table of the hottest nodes by self time.
+    void report(PrintStream out, int limit) {
+        List<NodeStats> ranked = new ArrayList<>(stats.values());
+        ranked.sort(Comparator.comparingLong(this::selfOf).reversed());
+
+        if (sampled()) {
+            out.println("jlox profile: " + samples + " samples every " +
+                sampleMicros + "us (times are estimates)");
+        } else {
+            out.println("jlox profile: " + ranked.size() + " nodes");
+        }
+        out.println(String.format("%10s %10s %12s %6s  %s",
+            "self ms", "total ms", "calls", "line", "node"));
+
+        for (int i = 0; i < ranked.size() && i < limit; i++) {
+            NodeStats node = ranked.get(i);
+            double self, total;
+            if (sampled()) {
+                self = node.selfSamples * sampleMicros / 1000.0;
+                total = node.totalSamples * sampleMicros / 1000.0;
+            } else {
+                self = node.selfNanos / 1e6;
+                total = node.totalNanos / 1e6;
+            }
+            String calls = sampled() ? "-" : Long.toString(node.calls);
+            out.println(String.format("%10.3f %10.3f %12s %6d  %s",
+                self, total, calls, node.line, describe(node.node)));
+        }
+    }
+
+    // Writes "frame;frame;frame value" lines, which is the collapsed stack
+    // format that flamegraph.pl (and speedscope etc.) read. Values are self
+    // microseconds in exact mode and self samples in sampling mode.
+    void writeCollapsed(String path) throws IOException {
+        try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
+            for (NodeStats node : stats.values()) {
+                long value = sampled() ? node.selfSamples : node.selfNanos / 1000;
+                if (value <= 0) continue;
+                writer.println(stackOf(node) + " " + value);
+            }
+        }
+    }
+
+    private static String stackOf(NodeStats node) {
+        List<String> frames = new ArrayList<>();
+        for (NodeStats n = node; n != null; n = n.parent) {
+            String frame = describe(n.node) + " (line " + n.line + ")";
+            frames.add(frame.replace(';', ',').replace('\n', ' '));
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (int i = frames.size() - 1; i >= 0; i--) {
+            builder.append(frames.get(i));
+            if (i > 0) builder.append(";");
+        }
+        return builder.toString();
+    }
+}
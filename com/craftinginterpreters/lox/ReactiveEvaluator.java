@@ -0,0 +1,541 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+// Spreadsheet-style evaluation: lots of long-lived formulas over input
+// variables that change a few at a time. Every node of every formula keeps
+// its last value (or its last error: errors are cached like values), and
+// when an input changes only the nodes that depend on it are looked at
+// again.
+//
+// All the formulas' nodes live in one set of arrays, each formula in
+// post-order (children before parents), with the index of every node's
+// parent and children. Changing an input marks the Variable nodes that
+// read it, and their ancestors, in the `dirty` bitset. Asking for a
+// formula's value walks down from its root into dirty nodes only, and a
+// dirty node is only recomputed if one of the children it used really
+// changed: a node whose new value isEqual() its old one doesn't count as
+// changed, so its parents keep their values too (early cutoff). A ternary
+// only looks at the branch it takes, like the Interpreter.
+//
+// Operators are applied by an Interpreter (binary(), unary(), call()...),
+// so values and errors are the same as evaluating the whole formula, as
+// long as natives are pure functions (clock() isn't). Formulas can't
+// assign or declare variables, and can't contain unparsed --lazy regions.
+//
+// Like Interpreter, it's meant to be used from one thread at a time.
+class ReactiveEvaluator {
+    // One formula: its nodes are [first, root] in the arrays.
+    static class Formula {
+        final Expr expr;
+        final int first;
+        final int root;
+
+        private Formula(Expr expr, int first, int root) {
+            this.expr = expr;
+            this.first = first;
+            this.root = root;
+        }
+    }
+
+    private final Interpreter interpreter = new Interpreter();
+    private final Resolver resolver;
+
+    // The nodes, by index.
+    private Expr[] nodes = new Expr[256];
+    private int[] parents = new int[256];
+    private int[][] children = new int[256][];
+    private Object[] values = new Object[256];
+    private RuntimeError[] errors = new RuntimeError[256];
+    // `clock` ticks on every change. A node has to be recomputed when a
+    // child it used changed after the node was last computed.
+    private long[] changedAt = new long[256];
+    private long[] computedAt = new long[256];
+    // The branch a ternary took last time.
+    private int[] taken = new int[256];
+    private int size = 0;
+    private long clock = 0;
+    private final BitSet dirty = new BitSet();
+
+    // Input slot -> the Variable nodes that read it, and when it changed.
+    private final Map<Integer, List<Integer>> readers = new HashMap<>();
+    private long[] inputChangedAt = new long[8];
+
+    // Since the last resetCounts(): dirty nodes looked at, and nodes whose
+    // operator was applied again.
+    private long checked = 0;
+    private long recomputed = 0;
+
+    // Formulas and inputs use `resolver`'s variable slots.
+    ReactiveEvaluator(Resolver resolver) {
+        this.resolver = resolver;
+    }
+
+    // `expr` has to be resolved (by this evaluator's Resolver) already.
+    // Nothing is evaluated until value() asks for it.
+    Formula add(Expr expr) {
+        if (expr.writes) {
+            throw new IllegalArgumentException("A reactive formula can't assign or declare variables.");
+        }
+
+        int first = size;
+        Map<Expr, Integer> index = new HashMap<>();
+        ExprWalker.postOrder(expr, node -> {
+            if (node instanceof Expr.Deferred) {
+                throw new IllegalArgumentException("A reactive formula can't have unparsed (--lazy) parts.");
+            }
+            ensureCapacity(size + 1);
+            int i = size++;
+            index.put(node, i);
+            nodes[i] = node;
+            List<Expr> nodeChildren = ExprWalker.children(node);
+            children[i] = new int[nodeChildren.size()];
+            for (int c = 0; c < nodeChildren.size(); c++) {
+                int child = index.get(nodeChildren.get(c));
+                children[i][c] = child;
+                parents[child] = i;
+            }
+            computedAt[i] = -1;
+            if (node instanceof Expr.Variable) {
+                int slot = ((Expr.Variable)node).slot;
+                readers.computeIfAbsent(slot, s -> new ArrayList<>()).add(i);
+            }
+        });
+        parents[size - 1] = -1;
+        dirty.set(first, size);
+        return new Formula(expr, first, size - 1);
+    }
+
+    // Sets an input variable (declaring it if it's new). Nothing is
+    // recomputed yet, the formulas that read it are just marked.
+    void set(String name, Object value) {
+        int slot = resolver.declare(name);
+        if (slot >= inputChangedAt.length) {
+            inputChangedAt = Arrays.copyOf(inputChangedAt, Math.max(slot + 1, inputChangedAt.length * 2));
+        }
+
+        Environment environment = interpreter.environment;
+        if (environment.isDefined(slot) &&
+            interpreter.isEqual(environment.get(slot, null), value)) {
+            return;
+        }
+        environment.define(slot, value);
+        inputChangedAt[slot] = ++clock;
+
+        List<Integer> variables = readers.get(slot);
+        if (variables == null) return;
+        for (int node : variables) {
+            // Anything above a node that is already dirty is either dirty
+            // too or doesn't use it right now (an untaken branch, which is
+            // looked at again when its ternary's predicate changes).
+            for (int i = node; i >= 0 && !dirty.get(i); i = parents[i]) {
+                dirty.set(i);
+            }
+        }
+    }
+
+    // The formula's value, bringing whatever it depends on up to date
+    // first. Throws the formula's RuntimeError if evaluating it fails.
+    Object value(Formula formula) {
+        update(formula.root);
+        if (errors[formula.root] != null) throw errors[formula.root];
+        return values[formula.root];
+    }
+
+    int nodeCount() {
+        return size;
+    }
+
+    long checked() {
+        return checked;
+    }
+
+    long recomputed() {
+        return recomputed;
+    }
+
+    void resetCounts() {
+        checked = 0;
+        recomputed = 0;
+    }
+
+    // Walks down from `root` into the dirty nodes it needs (with a stack,
+    // so deep formulas are fine) and finishes them bottom up.
+    private void update(int root) {
+        if (!dirty.get(root)) return;
+
+        int[] stack = new int[64];
+        int[] steps = new int[64];
+        int top = 0;
+        stack[0] = root;
+
+        while (top >= 0) {
+            if (top + 1 == stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                steps = Arrays.copyOf(steps, steps.length * 2);
+            }
+
+            int i = stack[top];
+            int step = steps[top];
+            int next = -1;
+
+            if (nodes[i] instanceof Expr.Ternary) {
+                // step 0: the predicate, 1: the branch it picks, 2: done
+                int[] c = children[i];
+                if (step == 0) {
+                    next = c[0];
+                } else if (step == 1 && errors[c[0]] == null) {
+                    next = interpreter.isTruthy(values[c[0]]) ? c[1] : c[2];
+                }
+            } else if (step < children[i].length &&
+                       (step == 0 || !stopsAt(i, children[i][step - 1]))) {
+                next = children[i][step];
+            }
+
+            if (next >= 0) {
+                steps[top] = step + 1;
+                if (dirty.get(next)) {
+                    top++;
+                    stack[top] = next;
+                    steps[top] = 0;
+                }
+                continue;
+            }
+
+            finish(i);
+            top--;
+        }
+    }
+
+    // All the children node `i` needs are up to date: recompute it if one
+    // of them changed since last time.
+    private void finish(int i) {
+        checked++;
+        Expr node = nodes[i];
+        int[] c = children[i];
+
+        boolean first = computedAt[i] < 0;
+        boolean stale = first;
+        if (node instanceof Expr.Variable) {
+            stale |= inputChangedAt[((Expr.Variable)node).slot] > computedAt[i];
+        } else if (node instanceof Expr.Ternary) {
+            int predicate = c[0];
+            int branch = errors[predicate] != null ? -1
+                : interpreter.isTruthy(values[predicate]) ? c[1] : c[2];
+            stale |= changedAt[predicate] > computedAt[i] || branch != taken[i] ||
+                     (branch >= 0 && changedAt[branch] > computedAt[i]);
+            taken[i] = branch;
+        } else {
+            for (int child : c) {
+                stale |= changedAt[child] > computedAt[i];
+                if (stopsAt(i, child)) break;
+            }
+        }
+
+        if (stale) {
+            recomputed++;
+            Object value = null;
+            RuntimeError error = null;
+            try {
+                value = compute(i);
+            } catch (RuntimeError e) {
+                error = e;
+            }
+
+            boolean same = !first &&
+                (error == null ? errors[i] == null && interpreter.isEqual(values[i], value)
+                               : errors[i] != null && sameError(errors[i], error));
+            values[i] = value;
+            errors[i] = error;
+            if (!same) changedAt[i] = ++clock;
+        }
+        // Only now: if compute() crashed (a bug, not a RuntimeError), the
+        // node stays dirty and the next value() tries again.
+        computedAt[i] = clock;
+        dirty.clear(i);
+    }
+
+    // Node `i`'s value from its children's cached values. The first child
+    // error (in evaluation order) is the node's error, as it would be in
+    // the Interpreter.
+    private Object compute(int i) {
+        Expr node = nodes[i];
+        int[] c = children[i];
+
+        if (node instanceof Expr.Literal) return ((Expr.Literal)node).value;
+        if (node instanceof Expr.Variable) {
+            Expr.Variable variable = (Expr.Variable)node;
+            return interpreter.environment.get(variable.slot, variable.name);
+        }
+        if (node instanceof Expr.Ternary) {
+            return operand(taken[i] < 0 ? c[0] : taken[i]);
+        }
+        if (node instanceof Expr.Binary) {
+            Object left = operand(c[0]);
+            return interpreter.binary((Expr.Binary)node, left, operand(c[1]));
+        }
+        if (node instanceof Expr.Unary) {
+            return interpreter.unary((Expr.Unary)node, operand(c[0]));
+        }
+        if (node instanceof Expr.Call) {
+            Object first = null;
+            Object second = null;
+            for (int a = 0; a < c.length; a++) {
+                Object argument = operand(c[a]);
+                if (a == 0) first = argument;
+                if (a == 1) second = argument;
+            }
+            return interpreter.call((Expr.Call)node, first, second);
+        }
+        if (node instanceof Expr.ArrayLiteral) {
+            Expr.ArrayLiteral array = (Expr.ArrayLiteral)node;
+            if (array.count != null) {
+                Object value = operand(c[0]);
+                return interpreter.fill(array, value, operand(c[1]));
+            }
+            double[] elements = new double[c.length];
+            for (int e = 0; e < c.length; e++) {
+                elements[e] = interpreter.arrayElement(array, operand(c[e]));
+            }
+            return new LoxArray(elements);
+        }
+
+        // Grouping and Sequence: every child in order, keep the last.
+        Object value = null;
+        for (int child : c) value = operand(child);
+        return value;
+    }
+
+    // Like the Interpreter, node `i` doesn't evaluate anything after a
+    // child that failed, or after an array element that isn't a number.
+    private boolean stopsAt(int i, int child) {
+        if (errors[child] != null) return true;
+        return nodes[i] instanceof Expr.ArrayLiteral &&
+               ((Expr.ArrayLiteral)nodes[i]).count == null &&
+               !(values[child] instanceof Double);
+    }
+
+    private Object operand(int child) {
+        if (errors[child] != null) throw errors[child];
+        return values[child];
+    }
+
+    private static boolean sameError(RuntimeError a, RuntimeError b) {
+        return a.token == b.token && a.getMessage().equals(b.getMessage());
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= nodes.length) return;
+        int length = Math.max(capacity, nodes.length * 2);
+        nodes = Arrays.copyOf(nodes, length);
+        parents = Arrays.copyOf(parents, length);
+        children = Arrays.copyOf(children, length);
+        values = Arrays.copyOf(values, length);
+        errors = Arrays.copyOf(errors, length);
+        changedAt = Arrays.copyOf(changedAt, length);
+        computedAt = Arrays.copyOf(computedAt, length);
+        taken = Arrays.copyOf(taken, length);
+    }
+
+    // `ReactiveEvaluator [seed=42] [formulas=2000]`: changes random inputs
+    // of random formulas and checks every formula's value (or error)
+    // against evaluating it from scratch, then times a spreadsheet-like
+    // workload both ways and reports how many nodes were recomputed.
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        int formulaCount = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+        Random random = new Random(seed);
+
+        String[] inputs = { "a", "b", "c", "d", "e", "f" };
+        Resolver resolver = new Resolver(new ArrayList<>());
+        ReactiveEvaluator reactive = new ReactiveEvaluator(resolver);
+        Interpreter reference = new Interpreter();
+        for (String input : inputs) {
+            Object value = randomValue(random);
+            reactive.set(input, value);
+            reference.environment.define(resolver.declare(input), value);
+        }
+
+        List<Formula> formulas = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            StringBuilder source = new StringBuilder();
+            randomExpr(source, random, 7, inputs);
+            Expr expr = parse(source.toString(), resolver);
+            if (expr != null) formulas.add(reactive.add(expr));
+        }
+
+        for (int round = 0; round < 300; round++) {
+            // Sometimes to the value it already has.
+            for (int change = random.nextInt(3); change >= 0; change--) {
+                String input = inputs[random.nextInt(inputs.length)];
+                Object value = randomValue(random);
+                reactive.set(input, value);
+                reference.environment.define(resolver.declare(input), value);
+            }
+            for (Formula formula : formulas) {
+                String expected = describe(() -> reference.evaluate(formula.expr), reference);
+                String actual = describe(() -> reactive.value(formula), reference);
+                if (!expected.equals(actual)) {
+                    System.out.println("Mismatch in round " + round + " on " +
+                        new AstPrinter().print(formula.expr));
+                    System.out.println("expected: " + expected);
+                    System.out.println("actual:   " + actual);
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println("OK: " + formulas.size() + " random formulas match the interpreter over 300 rounds of changes.");
+
+        // A "sheet": every formula sums up a few products of inputs, with a
+        // ternary and a native thrown in; each round changes 5 inputs.
+        int inputCount = 1000;
+        Resolver sheetResolver = new Resolver(new ArrayList<>());
+        ReactiveEvaluator sheet = new ReactiveEvaluator(sheetResolver);
+        Interpreter full = new Interpreter();
+        for (int i = 0; i < inputCount; i++) {
+            sheet.set("x" + i, (double)i);
+            full.environment.define(sheetResolver.declare("x" + i), (double)i);
+        }
+        List<Formula> cells = new ArrayList<>();
+        for (int i = 0; i < formulaCount; i++) {
+            StringBuilder source = new StringBuilder();
+            for (int term = 0; term < 6; term++) {
+                if (term > 0) source.append(" + ");
+                source.append("x").append(random.nextInt(inputCount)).append(" * ")
+                      .append(random.nextInt(10)).append(".5");
+            }
+            source.append(" + (x").append(random.nextInt(inputCount)).append(" > 500 ? sqrt(x")
+                  .append(random.nextInt(inputCount)).append(") : -1)");
+            cells.add(sheet.add(parse(source.toString(), sheetResolver)));
+        }
+        System.out.println(String.format("sheet: %d formulas, %d nodes, %d inputs, 5 inputs change per round",
+            formulaCount, sheet.nodeCount(), inputCount));
+
+        int rounds = 2000;
+        long fullNanos = 0;
+        long reactiveNanos = 0;
+        sheet.resetCounts();
+        for (int round = 0; round < rounds; round++) {
+            for (int change = 0; change < 5; change++) {
+                int input = random.nextInt(inputCount);
+                double value = random.nextInt(1000);
+                sheet.set("x" + input, value);
+                full.environment.define(sheetResolver.declare("x" + input), value);
+            }
+
+            long start = System.nanoTime();
+            double total = 0;
+            for (Formula cell : cells) total += (double)full.evaluate(cell.expr);
+            fullNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double reactiveTotal = 0;
+            for (Formula cell : cells) reactiveTotal += (double)sheet.value(cell);
+            reactiveNanos += System.nanoTime() - start;
+
+            if (total != reactiveTotal) {
+                System.out.println("Totals differ in round " + round);
+                System.exit(1);
+            }
+        }
+        long evaluated = (long)sheet.nodeCount() * rounds;
+        System.out.println(String.format("  full re-evaluation  %8.3f ms/round, %d nodes/round",
+            fullNanos / 1e6 / rounds, sheet.nodeCount()));
+        System.out.println(String.format("  reactive            %8.3f ms/round, %.1f nodes checked, %.1f recomputed per round (%.3f%% of all nodes)",
+            reactiveNanos / 1e6 / rounds, sheet.checked() / (double)rounds,
+            sheet.recomputed() / (double)rounds, 100.0 * sheet.recomputed() / evaluated));
+    }
+
+    private interface Evaluation {
+        Object run();
+    }
+
+    private static String describe(Evaluation evaluation, Interpreter interpreter) {
+        try {
+            Object value = evaluation.run();
+            return (value == null ? "nil" : value.getClass().getSimpleName()) + " " +
+                   interpreter.stringify(value);
+        } catch (RuntimeError error) {
+            return "error at " + (error.token == null ? "?" : error.token.offset) +
+                   ": " + error.getMessage();
+        } catch (RuntimeException e) {
+            return "crash: " + e.getClass().getSimpleName();
+        }
+    }
+
+    private static Expr parse(String source, Resolver resolver) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Expr expr = new Parser(new Scanner(source, diagnostics).scanTokens(), diagnostics).parse();
+        if (expr == null || !diagnostics.isEmpty()) return null;
+        resolver.resolve(expr);
+        new TypeChecker(null).check(expr);
+        return expr;
+    }
+
+    private static Object randomValue(Random random) {
+        switch (random.nextInt(8)) {
+            case 0: return null;
+            case 1: return random.nextBoolean();
+            case 2: return "s";
+            case 3: return 0.0;
+            default: return (double)(random.nextInt(5) - 2);
+        }
+    }
+
+    private static void randomExpr(StringBuilder source, Random random, int depth, String[] inputs) {
+        if (depth == 0 || random.nextInt(5) == 0) {
+            if (random.nextBoolean()) {
+                source.append(inputs[random.nextInt(inputs.length)]);
+            } else {
+                String[] leaves = { "1", "2.5", "0", "\"s\"", "true", "nil" };
+                source.append(leaves[random.nextInt(leaves.length)]);
+            }
+            return;
+        }
+        switch (random.nextInt(7)) {
+            case 0:
+                source.append(random.nextBoolean() ? "-" : "!");
+                randomExpr(source, random, depth - 1, inputs);
+                break;
+            case 1:
+                source.append("(");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(" ? ");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(" : ");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(")");
+                break;
+            case 2:
+                source.append(random.nextBoolean() ? "abs(" : "min(");
+                randomExpr(source, random, depth - 1, inputs);
+                if (random.nextBoolean()) {
+                    source.append(", ");
+                    randomExpr(source, random, depth - 1, inputs);
+                }
+                source.append(")");
+                break;
+            case 3:
+                source.append("[");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(", ");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append("]");
+                break;
+            default:
+                String[] operators = { "+", "-", "*", "/", "==", "!=", "<", ">=" };
+                source.append("(");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(" ").append(operators[random.nextInt(operators.length)]).append(" ");
+                randomExpr(source, random, depth - 1, inputs);
+                source.append(")");
+                break;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Gives every variable a fixed slot in the Environment, so that the
+// Interpreter never has to look a variable up by name. All variables are
+// global for now (there are no blocks yet), so a name gets the same slot
+// for as long as this Resolver lives -- the REPL keeps one around so that
+// later lines can see the variables of earlier ones.
+//
+// The tree is walked in evaluation order (children before parents, left to
+// right), so a "var" declares its name after its initializer has been
+// resolved, and using a name that has never been declared is an error.
+class Resolver implements Expr.Visitor<Void> {
+    private final Map<String, Integer> slots = new HashMap<>();
+    private final List<Diagnostic> diagnostics;
+
+    // What calls can call. Hosts that embed jlox can give it their own
+    // functions (see Natives.with()).
+    Natives natives = Natives.STANDARD;
+
+    Resolver() {
+        this(null);
+    }
+
+    // Collect errors into `diagnostics` instead of printing them.
+    Resolver(List<Diagnostic> diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    // For a Deferred node that is parsed after the rest of the tree has
+    // been resolved: only the first `visibleSlots` variables of `outer`
+    // (the ones declared before the node, since slots are handed out in
+    // order) are visible, just as if it had been resolved with the rest.
+    Resolver(Resolver outer, int visibleSlots, List<Diagnostic> diagnostics) {
+        this(diagnostics);
+        this.natives = outer.natives;
+        for (Map.Entry<String, Integer> slot : outer.slots.entrySet()) {
+            if (slot.getValue() < visibleSlots) slots.put(slot.getKey(), slot.getValue());
+        }
+    }
+
+    void resolve(Expr expr) {
+        ExprWalker.postOrder(expr, node -> node.accept(this));
+    }
+
+    // How many slots the Environment needs.
+    int slotCount() {
+        return slots.size();
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        expr.slot = declare(expr.name.lexeme);
+        return null;
+    }
+
+    // The slot of `name`, giving it a new one if it hasn't been declared.
+    // Also for hosts that set variables from the outside (ReactiveEvaluator).
+    int declare(String name) {
+        Integer slot = slots.get(name);
+        if (slot == null) {
+            slot = slots.size();
+            slots.put(name, slot);
+        }
+        return slot;
+    }
+
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        expr.slot = lookup(expr.name);
+        return null;
+    }
+
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        expr.slot = lookup(expr.name);
+        return null;
+    }
+
+    private int lookup(Token name) {
+        Integer slot = slots.get(name.lexeme);
+        if (slot != null) return slot;
+
+        error(name, "Undefined variable '" + name.lexeme + "'.");
+        return -1;
+    }
+
+    // Call sites are bound once, here, instead of looking the function up
+    // on every call.
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        expr.function = natives.get(expr.name.lexeme);
+        if (expr.function == null) {
+            error(expr.name, "Undefined function '" + expr.name.lexeme + "'.");
+        }
+        return null;
+    }
+
+    private void error(Token token, String message) {
+        if (diagnostics != null) {
+            diagnostics.add(Diagnostic.at(token, message));
+        } else {
+            Lox.error(token, message);
+        }
+    }
+
+    // Not parsed yet, so just remember what was visible here.
+    @Override
+    public Void visitDeferredExpr(Expr.Deferred expr) {
+        expr.resolver = this;
+        expr.visibleSlots = slots.size();
+        return null;
+    }
+
+    // Nothing to do for the rest; ExprWalker already takes care of their
+    // children.
+
+    @Override
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitSequenceExpr(Expr.Sequence expr) {
+        return null;
+    }
+
+    @Override
+    public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        return null;
+    }
+}
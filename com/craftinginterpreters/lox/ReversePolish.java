@@ -1,60 +1,224 @@
 package com.craftinginterpreters.lox;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 
-public class ReversePolish implements Expr.Visitor<String> {
+
+// Like AstPrinter, this writes into one Appendable in a single pass
+// instead of building a String per node.
+public class ReversePolish implements Expr.Visitor<Void> {
+    // Past this nesting depth printing switches to printIteratively().
+    private static final int MAX_RECURSION = 500;
+    private int depth = 0;
+    private Appendable out;
     
     String print(Expr expr) {
-        return expr.accept(this);
+        StringBuilder builder = new StringBuilder();
+        print(expr, builder);
+        return builder.toString();
+    }
+
+    // IOExceptions from `out` come back as UncheckedIOExceptions.
+    void print(Expr expr, Appendable out) {
+        Appendable saved = this.out;
+        this.out = out;
+        try {
+            write(expr);
+        } finally {
+            this.out = saved;
+        }
+    }
+
+    private void write(Expr expr) {
+        if (depth >= MAX_RECURSION) {
+            printIteratively(expr);
+            return;
+        }
+
+        depth++;
+        try {
+            expr.accept(this);
+        } finally {
+            depth--;
+        }
+    }
+
+    private void append(String text) {
+        try {
+            out.append(text);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     // TODO: ch06 challenge 02 - Revisit this once we know how if statements work
     @Override
-    public String visitTernaryExpr(Expr.Ternary expr) {
-        return build_string("ternary", expr.predicate,
-                            expr.if_true, expr.if_false);
+    public Void visitTernaryExpr(Expr.Ternary expr) {
+        build_string("ternary", expr.predicate,
+                     expr.if_true, expr.if_false);
+        return null;
     }
 
     @Override
-    public String visitBinaryExpr(Expr.Binary expr) {
-        return build_string(expr.operator.lexeme, expr.left, expr.right);
+    public Void visitBinaryExpr(Expr.Binary expr) {
+        build_string(expr.operator.lexeme, expr.left, expr.right);
+        return null;
     }
 
     @Override
-    public String visitGroupingExpr(Expr.Grouping expr) {
-        return build_string(expr.expression);
+    public Void visitGroupingExpr(Expr.Grouping expr) {
+        build_string(expr.expression);
+        return null;
     }
 
     @Override
-    public String visitLiteralExpr(Expr.Literal expr) {
-        if (expr.value == null) return "nil";
-        return expr.value.toString();
+    public Void visitLiteralExpr(Expr.Literal expr) {
+        append(expr.value == null ? "nil" : expr.value.toString());
+        return null;
     }
 
     @Override
-    public String visitUnaryExpr(Expr.Unary expr) {
-        return build_string(expr.operator.lexeme, expr.right);
+    public Void visitUnaryExpr(Expr.Unary expr) {
+        build_string(expr.operator.lexeme, expr.right);
+        return null;
     }
 
-    private String build_string(String op, Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public Void visitVariableExpr(Expr.Variable expr) {
+        append(expr.name.lexeme);
+        return null;
+    }
 
-        for (Expr expr : exprs) {
-            builder.append(expr.accept(this));
-            builder.append(" ");
+    @Override
+    public Void visitAssignExpr(Expr.Assign expr) {
+        append(expr.name.lexeme);
+        append(" ");
+        build_string("=", expr.value);
+        return null;
+    }
+
+    @Override
+    public Void visitVarExpr(Expr.Var expr) {
+        append(expr.name.lexeme);
+        if (expr.initializer == null) {
+            append(" var");
+        } else {
+            append(" ");
+            build_string("var", expr.initializer);
         }
-        builder.append(op);
-        
-        return builder.toString();
+        return null;
     }
 
-    private String build_string(Expr... exprs) {
-        StringBuilder builder = new StringBuilder();
+    @Override
+    public Void visitSequenceExpr(Expr.Sequence expr) {
+        build_string("comma", expr.expressions.toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        build_string(expr.count == null ? "array" : "fill",
+                     ExprWalker.children(expr).toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitCallExpr(Expr.Call expr) {
+        // The function name works like an operator: 2 x pow
+        build_string(expr.name.lexeme, expr.arguments.toArray(new Expr[0]));
+        return null;
+    }
+
+    @Override
+    public Void visitDeferredExpr(Expr.Deferred expr) {
+        // Not parsed, so there's no postfix form to give.
+        append("(deferred " + Parser.text(expr) + ")");
+        return null;
+    }
 
+    private void build_string(String op, Expr... exprs) {
         for (Expr expr : exprs) {
-            builder.append(expr.accept(this));
+            write(expr);
+            append(" ");
         }
+        append(op);
+    }
 
-        return builder.toString();
+    private void build_string(Expr... exprs) {
+        for (Expr expr : exprs) {
+            write(expr);
+        }
+    }
+
+    // Same output as the visitor methods, but driven by an explicit stack
+    // of text pieces and nodes instead of recursion.
+    private void printIteratively(Expr root) {
+        Deque<Object> stack = new ArrayDeque<>();
+        stack.push(root);
+
+        while (!stack.isEmpty()) {
+            Object item = stack.pop();
+            if (item instanceof String) {
+                append((String)item);
+                continue;
+            }
+
+            Expr expr = (Expr)item;
+            String op;
+            Expr[] operands;
+            if (expr instanceof Expr.Binary) {
+                Expr.Binary binary = (Expr.Binary)expr;
+                op = binary.operator.lexeme;
+                operands = new Expr[] { binary.left, binary.right };
+            } else if (expr instanceof Expr.Grouping) {
+                // Groupings don't print anything of their own.
+                stack.push(((Expr.Grouping)expr).expression);
+                continue;
+            } else if (expr instanceof Expr.Unary) {
+                Expr.Unary unary = (Expr.Unary)expr;
+                op = unary.operator.lexeme;
+                operands = new Expr[] { unary.right };
+            } else if (expr instanceof Expr.Ternary) {
+                Expr.Ternary ternary = (Expr.Ternary)expr;
+                op = "ternary";
+                operands = new Expr[] { ternary.predicate, ternary.if_true, ternary.if_false };
+            } else if (expr instanceof Expr.Assign) {
+                Expr.Assign assign = (Expr.Assign)expr;
+                append(assign.name.lexeme);
+                append(" ");
+                op = "=";
+                operands = new Expr[] { assign.value };
+            } else if (expr instanceof Expr.Var) {
+                Expr.Var var = (Expr.Var)expr;
+                append(var.name.lexeme);
+                append(" ");
+                op = "var";
+                operands = var.initializer == null ? new Expr[0]
+                                                   : new Expr[] { var.initializer };
+            } else if (expr instanceof Expr.Sequence) {
+                op = "comma";
+                operands = ((Expr.Sequence)expr).expressions.toArray(new Expr[0]);
+            } else if (expr instanceof Expr.ArrayLiteral) {
+                Expr.ArrayLiteral array = (Expr.ArrayLiteral)expr;
+                op = array.count == null ? "array" : "fill";
+                operands = ExprWalker.children(array).toArray(new Expr[0]);
+            } else if (expr instanceof Expr.Call) {
+                op = ((Expr.Call)expr).name.lexeme;
+                operands = ((Expr.Call)expr).arguments.toArray(new Expr[0]);
+            } else {
+                expr.accept(this);
+                continue;
+            }
+
+            // Pushed backwards, so they come off the stack in order.
+            stack.push(op);
+            for (int i = operands.length - 1; i >= 0; i--) {
+                stack.push(" ");
+                stack.push(operands[i]);
+            }
+        }
     }
 
     public static void main(String[] args) {
@@ -4,7 +4,10 @@ public class RuntimeError extends RuntimeException {
     final Token token;
 
     RuntimeError(Token token, String message) {
-        super(message);
+        // No stack trace: these are Lox errors, and the Java stack of the
+        // interpreter is useless to a Lox user. Filling it in is also by
+        // far the most expensive part of throwing.
+        super(message, null, false, false);
         this.token = token;
     }
 }
@@ -0,0 +1,86 @@
+package com.craftinginterpreters.lox;
+
+// Plain loops, and what ColumnKernels.select() gives by default. Also the
+// reference that VectorColumnKernels is checked against (see
+// BatchEvaluator's main).
+class ScalarColumnKernels implements ColumnKernels {
+    @Override
+    public void add(double[] a, double[] b, double[] out, int n) {
+        for (int i = 0; i < n; i++) out[i] = a[i] + b[i];
+    }
+
+    @Override
+    public void subtract(double[] a, double[] b, double[] out, int n) {
+        for (int i = 0; i < n; i++) out[i] = a[i] - b[i];
+    }
+
+    @Override
+    public void multiply(double[] a, double[] b, double[] out, int n) {
+        for (int i = 0; i < n; i++) out[i] = a[i] * b[i];
+    }
+
+    @Override
+    public void divide(double[] a, double[] b, double[] out, long[] errors, int n) {
+        divide(a, b, out, errors, 0, n);
+    }
+
+    // The range versions are also used by VectorColumnKernels for the rows
+    // left over after the last whole vector.
+    static void divide(double[] a, double[] b, double[] out, long[] errors,
+                       int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (b[i] == 0.0) {
+                out[i] = Double.NaN;
+                errors[i >>> 6] |= 1L << i;
+            } else {
+                out[i] = a[i] / b[i];
+            }
+        }
+    }
+
+    @Override
+    public void negate(double[] a, double[] out, int n) {
+        for (int i = 0; i < n; i++) out[i] = -a[i];
+    }
+
+    @Override
+    public void compare(TokenType operator, double[] a, double[] b, boolean[] out, int n) {
+        compare(operator, a, b, out, 0, n);
+    }
+
+    static void compare(TokenType operator, double[] a, double[] b, boolean[] out,
+                        int from, int to) {
+        switch (operator) {
+            case GREATER:
+                for (int i = from; i < to; i++) out[i] = a[i] > b[i];
+                break;
+            case GREATER_EQUAL:
+                for (int i = from; i < to; i++) out[i] = a[i] >= b[i];
+                break;
+            case LESS:
+                for (int i = from; i < to; i++) out[i] = a[i] < b[i];
+                break;
+            case LESS_EQUAL:
+                for (int i = from; i < to; i++) out[i] = a[i] <= b[i];
+                break;
+            case EQUAL_EQUAL:
+                for (int i = from; i < to; i++) out[i] = equal(a[i], b[i]);
+                break;
+            case BANG_EQUAL:
+                for (int i = from; i < to; i++) out[i] = !equal(a[i], b[i]);
+                break;
+            default:
+                throw new IllegalArgumentException("Not a comparison: " + operator);
+        }
+    }
+
+    // Double.equals() without the boxing.
+    private static boolean equal(double a, double b) {
+        return Double.doubleToLongBits(a) == Double.doubleToLongBits(b);
+    }
+
+    @Override
+    public void select(boolean[] mask, double[] ifTrue, double[] ifFalse, double[] out, int n) {
+        for (int i = 0; i < n; i++) out[i] = mask[i] ? ifTrue[i] : ifFalse[i];
+    }
+}
@@ -0,0 +1,21 @@
+package com.craftinginterpreters.lox;
+
+class ScalarSkipKernel implements SkipKernel {
+    @Override
+    public int indexOfAny(char[] chars, int from, int to, char a, char b, char c) {
+        for (int i = from; i < to; i++) {
+            char ch = chars[i];
+            if (ch == a || ch == b || ch == c) return i;
+        }
+        return to;
+    }
+
+    @Override
+    public int indexOfNonBlank(char[] chars, int from, int to) {
+        for (int i = from; i < to; i++) {
+            char ch = chars[i];
+            if (ch != ' ' && ch != '\t' && ch != '\r') return i;
+        }
+        return to;
+    }
+}
@@ -11,6 +11,7 @@ import static com.craftinginterpreters.lox.TokenType.*;
 
 class Scanner {
     private final String source;
+    private final List<Diagnostic> diagnostics;
 
     // The "<>()" is "the diamond"
     // https://docs.oracle.com/javase/tutorial/java/generics/types.html#diamond
@@ -20,8 +21,30 @@ class Scanner {
     private int line = 1;
     private int comment_block_count = 0;
 
+    // Skips comments, string bodies and blanks in bulk instead of one
+    // advance() at a time; see skipTo(). null means the original loops
+    // (ScannerBenchmark compares the two).
+    SkipKernel skipKernel = SKIP_KERNEL;
+    private static final SkipKernel SKIP_KERNEL = SkipKernel.best();
+    private char[] chunk = null;
+
     Scanner(String source) {
+        this(source, null);
+    }
+
+    // Collect errors into `diagnostics` instead of printing them.
+    Scanner(String source, List<Diagnostic> diagnostics) {
         this.source = source;
+        this.diagnostics = diagnostics;
+    }
+
+    // Starts part way into the source. `offset` has to be a spot where the
+    // scanner is between tokens (e.g. right after the end of a token), and
+    // `line` the line number there.
+    Scanner(String source, List<Diagnostic> diagnostics, int offset, int line) {
+        this(source, diagnostics);
+        this.current = offset;
+        this.line = line;
     }
 
     List<Token> scanTokens() {
@@ -31,10 +54,25 @@ class Scanner {
             scanToken();
         }
 
-        tokens.add(new Token(EOF, "", null, line));
+        tokens.add(new Token(EOF, "", null, line, current));
         return tokens;
     }
 
+    // Scans just far enough to produce one more token (skipping any
+    // whitespace and comments in front of it). Returns EOF at the end.
+    Token nextToken() {
+        int count = tokens.size();
+        while (!isAtEnd()) {
+            start = current;
+            scanToken();
+            if (tokens.size() > count) return tokens.get(count);
+        }
+
+        Token eof = new Token(EOF, "", null, line, current);
+        tokens.add(eof);
+        return eof;
+    }
+
     // This is the real "heart" of the scanner:
     private void scanToken() {
         char c = advance();
@@ -44,6 +82,8 @@ class Scanner {
             case ')': addToken(RIGHT_PAREN); break;
             case '{': addToken(LEFT_BRACE); break;
             case '}': addToken(RIGHT_BRACE); break;
+            case '[': addToken(LEFT_BRACKET); break;
+            case ']': addToken(RIGHT_BRACKET); break;
             case ',': addToken(COMMA); break;
             case '.': addToken(DOT); break;
             case '-': addToken(MINUS); break;
@@ -71,6 +111,9 @@ class Scanner {
             case '/':
                 if (match('/')) {
                     // A comment goes until the end of the line.
+                    if (skipKernel != null) {
+                        current = skipTo(current, '\n', '\n', '\n');
+                    }
                     while (peek() != '\n' && !isAtEnd()) advance();
                 } else if (match('*')) {
                     comment_block();
@@ -83,6 +126,7 @@ class Scanner {
             case '\r':
             case '\t':
                 // Ignore whitespace
+                if (skipKernel != null) current = skipBlanks(current);
                 break;
             
             case '\n':
@@ -98,7 +142,7 @@ class Scanner {
                 } else if (isAlpha(c)) {
                     identifier();
                 } else {
-                    Lox.error(line, "Unexpected character.");
+                    error("Unexpected character.");
                 }
                 break;
         }
@@ -114,13 +158,23 @@ class Scanner {
 
         comment_block_count++;
         while (comment_block_count > 0) {
-            // first iteration will be the char immediately after 
-            // the '*' of the opening comment block
-            char c = advance();
+            // Check before advancing: the source can end right after
+            // the opening '/*'.
             if (isAtEnd()) {
-                Lox.error(line, "Unterminated comment block.");
+                error("Unterminated comment block.");
+                comment_block_count = 0;
                 return;
             }
+
+            // Nothing but '\n', '/' and '*' matters in here.
+            if (skipKernel != null) {
+                current = skipTo(current, '\n', '/', '*');
+                if (isAtEnd()) continue;
+            }
+
+            // first iteration will be the char immediately after 
+            // the '*' of the opening comment block
+            char c = advance();
             if (c == '\n') line++;
             if (c == '/' && peek() == '*') comment_block_count++;
             if (c == '*' && peek() == '/') {
@@ -162,12 +216,16 @@ class Scanner {
         // If Lox supported escapce sequences like \n, then we'd
         // unescape those here.
         while (peek() != '"' && !isAtEnd()) {
+            if (skipKernel != null) {
+                current = skipTo(current, '"', '\n', '\n');
+                if (peek() != '\n') continue;
+            }
             if (peek() == '\n') line++;
             advance();
         }
 
         if (isAtEnd()) {
-            Lox.error(line, "Unterminated string.");
+            error("Unterminated string.");
             return;
         }
 
@@ -179,6 +237,49 @@ class Scanner {
         addToken(STRING, value);
     }
 
+    // Index of the first a, b or c at or after `from`, or the end of the
+    // source. The kernels work on a char[], so the source is copied into
+    // `chunk` a piece at a time; the pieces start small because most
+    // comments and strings are short.
+    private int skipTo(int from, char a, char b, char c) {
+        int end = source.length();
+        if (chunk == null) chunk = new char[4096];
+        int size = 64;
+        while (from < end) {
+            int n = Math.min(size, end - from);
+            source.getChars(from, from + n, chunk, 0);
+            int i = skipKernel.indexOfAny(chunk, 0, n, a, b, c);
+            if (i < n) return from + i;
+            from += n;
+            size = Math.min(size * 2, chunk.length);
+        }
+        return end;
+    }
+
+    // Same as skipTo(), for the end of a run of ' ', '\t' and '\r'.
+    private int skipBlanks(int from) {
+        int end = source.length();
+        if (chunk == null) chunk = new char[4096];
+        int size = 64;
+        while (from < end) {
+            int n = Math.min(size, end - from);
+            source.getChars(from, from + n, chunk, 0);
+            int i = skipKernel.indexOfNonBlank(chunk, 0, n);
+            if (i < n) return from + i;
+            from += n;
+            size = Math.min(size * 2, chunk.length);
+        }
+        return end;
+    }
+
+    private void error(String message) {
+        if (diagnostics != null) {
+            diagnostics.add(new Diagnostic(line, "", message));
+        } else {
+            Lox.error(line, message);
+        }
+    }
+
     private boolean match(char expected) {
         // match is like a conditional advance()
         // only advance if the character is what we expected
@@ -232,10 +333,11 @@ class Scanner {
 
     private void addToken(TokenType type, Object literal) {
         String text = source.substring(start, current);
-        tokens.add(new Token(type, text, literal, line));
+        tokens.add(new Token(type, text, literal, line, start));
     }
 
-    private static final Map<String, TokenType> keywords;
+    // Package-private so that ByteScanner can share it.
+    static final Map<String, TokenType> keywords;
 
     static {
         keywords = new HashMap<>();
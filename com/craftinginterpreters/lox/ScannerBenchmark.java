@@ -0,0 +1,117 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+
+// `ScannerBenchmark [megabytes=20] [seed=42]`: checks that Scanner gives
+// exactly the same tokens and errors with every SkipKernel as with the
+// original one-char-at-a-time loops (on random sources), then times the
+// three on comment-, string- and whitespace-heavy sources and on plain
+// code.
+class ScannerBenchmark {
+    public static void main(String[] args) {
+        int megabytes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        long seed = args.length > 1 ? Long.parseLong(args[1]) : 42;
+        Random random = new Random(seed);
+
+        List<SkipKernel> kernels = new ArrayList<>();
+        kernels.add(null);
+        kernels.add(new ScalarSkipKernel());
+        SkipKernel best = SkipKernel.best();
+        if (!(best instanceof ScalarSkipKernel)) kernels.add(best);
+
+        for (int i = 0; i < 20000; i++) {
+            String source = randomSource(random);
+            String expected = scan(source, null);
+            for (SkipKernel kernel : kernels) {
+                String actual = scan(source, kernel);
+                if (!expected.equals(actual)) {
+                    System.out.println("Mismatch with " + name(kernel) + " on '" + source + "':");
+                    System.out.println("expected: " + expected);
+                    System.out.println("actual:   " + actual);
+                    System.exit(1);
+                }
+            }
+        }
+        System.out.println("OK: random sources scan the same with every kernel.");
+
+        int size = megabytes * 1024 * 1024;
+        String line = "// a fairly long line comment, as in heavily commented code\n";
+        String block = "/* a block comment, like a license header:\n" +
+                       line.substring(3).repeat(20) + "*/\n";
+        String[][] sources = {
+            {"comments", build(size, line.repeat(10) + block + "1 + ")},
+            {"strings", build(size, "\"" + "a string literal long enough to be worth skipping ".repeat(5) +
+                                    "\" + ")},
+            {"whitespace", build(size, "1 +\n" + " ".repeat(60) + "\t\t  ")},
+            // Almost all tokens, so a lot slower: a quarter of the size.
+            {"code", build(size / 4, "(1 + 2) * 3 >= 4 ? -4 : 6 / 5, ")},
+        };
+        for (String[] source : sources) {
+            System.out.println(source[0] + " (" + source[1].length() / 1024 / 1024 + "MB):");
+            for (SkipKernel kernel : kernels) {
+                time(source[1], kernel);
+            }
+        }
+    }
+
+    private static String name(SkipKernel kernel) {
+        return kernel == null ? "char at a time" : kernel.getClass().getSimpleName();
+    }
+
+    private static String build(int size, String piece) {
+        StringBuilder builder = new StringBuilder(size + piece.length());
+        while (builder.length() < size) builder.append(piece);
+        builder.append("0");
+        return builder.toString();
+    }
+
+    private static void time(String source, SkipKernel kernel) {
+        for (int i = 0; i < 3; i++) scanTokens(source, kernel);
+        int repeats = 5;
+        long start = System.nanoTime();
+        int tokens = 0;
+        for (int i = 0; i < repeats; i++) tokens = scanTokens(source, kernel).size();
+        double ms = (System.nanoTime() - start) / 1e6 / repeats;
+        System.out.println(String.format("%10.2f ms  %10d tokens  %s", ms, tokens, name(kernel)));
+    }
+
+    private static List<Token> scanTokens(String source, SkipKernel kernel) {
+        Scanner scanner = new Scanner(source, new ArrayList<>());
+        scanner.skipKernel = kernel;
+        return scanner.scanTokens();
+    }
+
+    // Everything that could differ, as one string.
+    private static String scan(String source, SkipKernel kernel) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Scanner scanner = new Scanner(source, diagnostics);
+        scanner.skipKernel = kernel;
+        StringBuilder builder = new StringBuilder();
+        for (Token token : scanner.scanTokens()) {
+            builder.append(token.type).append(' ').append(token.lexeme).append(' ')
+                   .append(Objects.toString(token.literal)).append(' ')
+                   .append(token.line).append(' ').append(token.offset).append("; ");
+        }
+        for (Diagnostic diagnostic : diagnostics) builder.append(diagnostic).append("; ");
+        return builder.toString();
+    }
+
+    // Short random mixes of the pieces that the skip loops care about, so
+    // that chunk and vector boundaries land everywhere.
+    private static String randomSource(Random random) {
+        String[] pieces = {
+            " ", "  ", "\t", "\r", "\n", "//", "/*", "*/", "/", "*", "\"",
+            "x", "12", "+", "(", ")", "a long piece of text without specials ",
+            "                                        ",
+        };
+        StringBuilder builder = new StringBuilder();
+        int count = random.nextInt(40);
+        for (int i = 0; i < count; i++) {
+            builder.append(pieces[random.nextInt(pieces.length)]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,142 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// "jlox --bench N [--warmup W] script": runs the whole pipeline (scan,
+// parse, resolve, type check, evaluate) on the script W times to warm the
+// JIT up, then N more times while timing every phase, and reports whole
+// script runs per second, where the time went and what the GC did.
+//
+// Every run starts from scratch (new Resolver and Interpreter), so runs
+// don't see each other's variables. The value isn't printed.
+class ScriptBenchmark {
+    private static final String[] PHASES = {
+        "scan", "parse", "resolve", "types", "evaluate"
+    };
+
+    private final String source;
+    private final Budget budget;
+    private final long[] phaseNanos = new long[PHASES.length];
+
+    // Parse with Parser.lazy (so deferred regions are parsed during
+    // "evaluate", if at all).
+    boolean lazy = false;
+
+    ScriptBenchmark(String source, Budget budget) {
+        this.source = source;
+        this.budget = budget;
+    }
+
+    // Returns false (after printing the errors) if the script has syntax or
+    // runtime errors, which would make the numbers meaningless.
+    boolean run(int iterations, int warmup, PrintStream out) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Object value;
+        try {
+            value = runOnce(diagnostics);
+        } catch (RuntimeError error) {
+            Lox.runtimeError(error);
+            return false;
+        }
+        if (!diagnostics.isEmpty()) {
+            for (Diagnostic diagnostic : diagnostics) System.err.println(diagnostic);
+            return false;
+        }
+
+        for (int i = 1; i < warmup; i++) runOnce(null);
+        Arrays.fill(phaseNanos, 0);
+
+        long gcCount = gcCount();
+        long gcMillis = gcMillis();
+        long allocated = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) runOnce(null);
+        long total = System.nanoTime() - start;
+        gcCount = gcCount() - gcCount;
+        gcMillis = gcMillis() - gcMillis;
+        if (allocated >= 0) allocated = allocatedBytes() - allocated;
+
+        out.println(String.format("bench: %d chars, %d warmup + %d measured runs, value %s",
+            source.length(), warmup, iterations, describe(value)));
+        out.println(String.format("  %-10s %12.2f ops/sec  (%.3f ms/op)",
+            "total", iterations / (total / 1e9), total / 1e6 / iterations));
+        for (int i = 0; i < PHASES.length; i++) {
+            out.println(String.format("  %-10s %12.3f ms/op  %5.1f%%",
+                PHASES[i], phaseNanos[i] / 1e6 / iterations, 100.0 * phaseNanos[i] / total));
+        }
+        out.println(String.format("  %-10s %12d collections, %d ms (%.1f%% of the time)",
+            "gc", gcCount, gcMillis, 100.0 * gcMillis * 1e6 / total));
+        if (allocated >= 0) {
+            out.println(String.format("  %-10s %12.2f MB/op",
+                "allocated", allocated / 1048576.0 / iterations));
+        }
+        return true;
+    }
+
+    // One whole run. With `diagnostics`, syntax errors are collected there
+    // instead of being printed.
+    private Object runOnce(List<Diagnostic> diagnostics) {
+        long t0 = System.nanoTime();
+        List<Token> tokens = new Scanner(source, diagnostics).scanTokens();
+        long t1 = System.nanoTime();
+        Parser parser = new Parser(tokens, diagnostics);
+        parser.lazy = lazy;
+        Expr expr = parser.parse();
+        long t2 = System.nanoTime();
+        if (expr == null) return null;
+        new Resolver(diagnostics).resolve(expr);
+        long t3 = System.nanoTime();
+        new TypeChecker(null).check(expr);
+        long t4 = System.nanoTime();
+        if (diagnostics != null && !diagnostics.isEmpty()) return null;
+
+        Interpreter interpreter = new Interpreter();
+        Object value = budget == null ? interpreter.evaluate(expr)
+                                      : interpreter.evaluateWithin(expr, budget);
+        long t5 = System.nanoTime();
+
+        phaseNanos[0] += t1 - t0;
+        phaseNanos[1] += t2 - t1;
+        phaseNanos[2] += t3 - t2;
+        phaseNanos[3] += t4 - t3;
+        phaseNanos[4] += t5 - t4;
+        return value;
+    }
+
+    private static String describe(Object value) {
+        String text = value == null ? "nil" : value.toString();
+        if (text.length() > 30) text = text.substring(0, 27) + "...";
+        return text;
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long gcMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, gc.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Bytes allocated by this thread so far, or -1 if the JVM can't say
+    // (it's a HotSpot extension).
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (!(threads instanceof com.sun.management.ThreadMXBean)) return -1;
+        return ((com.sun.management.ThreadMXBean)threads)
+            .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
@@ -0,0 +1,254 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.Charset;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+// "jlox --run-all <directory or glob>": runs many scripts in one JVM, on
+// a pool of worker threads, instead of one JVM per script.
+//
+// None of Lox's static state is used here. Every script gets its own
+// Interpreter, its syntax errors are collected as Diagnostics, and what
+// "jlox script" would have printed to stdout and stderr (and its exit
+// status) is kept per script and printed in path order at the end of each
+// script's turn, so the output doesn't depend on the thread timing.
+//
+// Parsed (and resolved and type checked) trees are cached by the SHA-256
+// of the script, so identical scripts are only parsed once. The trees are
+// only read during evaluation, so threads can share them.
+class ScriptRunner {
+    // What the front end made of one source: a tree ready to evaluate, or
+    // the syntax errors.
+    private static class Compiled {
+        final Expr expr;
+        final List<Diagnostic> diagnostics;
+
+        Compiled(Expr expr, List<Diagnostic> diagnostics) {
+            this.expr = expr;
+            this.diagnostics = diagnostics;
+        }
+    }
+
+    private static class Result {
+        final Path path;
+        final int status;
+        final String stdout;
+        final String stderr;
+        final long nanos;
+
+        Result(Path path, int status, String stdout, String stderr, long nanos) {
+            this.path = path;
+            this.status = status;
+            this.stdout = stdout;
+            this.stderr = stderr;
+            this.nanos = nanos;
+        }
+    }
+
+    private final int jobs;
+    private final boolean virtualThreads;
+    private final boolean strictTypes;
+    private final Budget budget;
+
+    private final Map<String, CompletableFuture<Compiled>> cache = new ConcurrentHashMap<>();
+    private final AtomicInteger compiled = new AtomicInteger();
+
+    // `budget` (may be null) applies to every script's evaluation.
+    ScriptRunner(int jobs, boolean virtualThreads, boolean strictTypes, Budget budget) {
+        this.jobs = jobs;
+        this.virtualThreads = virtualThreads;
+        this.strictTypes = strictTypes;
+        this.budget = budget;
+    }
+
+    // Runs every script that `pattern` names and prints each one's output
+    // and the totals to `out`. Returns the worst exit status.
+    int runAll(String pattern, PrintStream out) throws IOException {
+        List<Path> paths = find(pattern);
+        if (paths.isEmpty()) {
+            out.println("No scripts match '" + pattern + "'.");
+            return 66;
+        }
+
+        long start = System.nanoTime();
+        ExecutorService executor = executor();
+        String threads = executor instanceof ThreadPoolExecutor
+            ? jobs + " platform threads" : "virtual threads";
+        List<Future<Result>> futures = new ArrayList<>();
+        for (Path path : paths) {
+            futures.add(executor.submit(() -> run(path)));
+        }
+
+        int worst = 0;
+        int[] byStatus = new int[3];
+        try {
+            for (Future<Result> future : futures) {
+                Result result = future.get();
+                print(result, out);
+                worst = Math.max(worst, result.status);
+                byStatus[result.status == 0 ? 0 : result.status == 65 ? 1 : 2]++;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException("Script runner failed", e);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        out.println(String.format("%d scripts in %d ms on %s: %d ok, %d with syntax errors, %d with runtime errors",
+            paths.size(), millis, threads, byStatus[0], byStatus[1], byStatus[2]));
+        out.println(String.format("%d distinct sources parsed, %d cache hits",
+            compiled.get(), paths.size() - compiled.get()));
+        return worst;
+    }
+
+    private ExecutorService executor() {
+        if (virtualThreads) {
+            // Executors.newVirtualThreadPerTaskExecutor() is only in JDK 21+.
+            try {
+                return (ExecutorService)Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("No virtual threads in this JVM, using platform threads.");
+            }
+        }
+        return Executors.newFixedThreadPool(jobs);
+    }
+
+    // A directory means every .jlox file under it; anything with glob
+    // characters is matched (as a glob) against the files under the part
+    // of it before the first glob character.
+    static List<Path> find(String pattern) throws IOException {
+        Path directory = Paths.get(pattern);
+        PathMatcher matcher;
+        if (Files.isDirectory(directory)) {
+            matcher = path -> path.toString().endsWith(".jlox");
+        } else {
+            int firstGlob = pattern.length();
+            for (char c : new char[] { '*', '?', '[', '{' }) {
+                int index = pattern.indexOf(c);
+                if (index >= 0) firstGlob = Math.min(firstGlob, index);
+            }
+            int slash = pattern.lastIndexOf('/', firstGlob);
+            Path base = Paths.get(slash < 0 ? "." : pattern.substring(0, slash + 1));
+            PathMatcher glob = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+            matcher = slash < 0 ? path -> glob.matches(base.relativize(path)) : glob;
+            directory = base;
+        }
+        if (!Files.isDirectory(directory)) return new ArrayList<>();
+
+        try (Stream<Path> files = Files.walk(directory)) {
+            return files.filter(Files::isRegularFile)
+                        .filter(matcher::matches)
+                        .sorted()
+                        .collect(Collectors.toList());
+        }
+    }
+
+    private Result run(Path path) {
+        long start = System.nanoTime();
+        StringBuilder stdout = new StringBuilder();
+        StringBuilder stderr = new StringBuilder();
+        int status = 0;
+        try {
+            byte[] bytes = Files.readAllBytes(path);
+            Compiled script = compile(hash(bytes), new String(bytes, Charset.defaultCharset()));
+            if (!script.diagnostics.isEmpty()) {
+                for (Diagnostic diagnostic : script.diagnostics) {
+                    stderr.append(diagnostic).append('\n');
+                }
+                status = 65;
+            } else {
+                Interpreter interpreter = new Interpreter();
+                try {
+                    Object value = budget == null
+                        ? interpreter.evaluate(script.expr)
+                        : interpreter.evaluateWithin(script.expr, budget);
+                    stdout.append(interpreter.stringify(value)).append('\n');
+                } catch (RuntimeError error) {
+                    stdout.append(Lox.describe(error)).append('\n');
+                    status = 70;
+                }
+            }
+        } catch (IOException e) {
+            stderr.append("Can't read ").append(path).append(": ").append(e.getMessage()).append('\n');
+            status = 66;
+        } catch (RuntimeException | StackOverflowError e) {
+            // A bug in jlox itself shouldn't take the other scripts down.
+            stderr.append("jlox crashed: ").append(e).append('\n');
+            status = 70;
+        }
+        return new Result(path, status, stdout.toString(), stderr.toString(),
+                          System.nanoTime() - start);
+    }
+
+    // The first thread to ask for a source parses it; any others asking
+    // for the same source meanwhile wait for that instead of parsing it too.
+    private Compiled compile(String hash, String source) {
+        CompletableFuture<Compiled> mine = new CompletableFuture<>();
+        CompletableFuture<Compiled> existing = cache.putIfAbsent(hash, mine);
+        if (existing != null) return existing.join();
+
+        try {
+            List<Diagnostic> diagnostics = new ArrayList<>();
+            List<Token> tokens = new Scanner(source, diagnostics).scanTokens();
+            Parser parser = new Parser(tokens, diagnostics);
+            parser.recover = false;
+            Expr expr = parser.parse();
+            if (expr != null) {
+                new Resolver(diagnostics).resolve(expr);
+                if (diagnostics.isEmpty()) {
+                    new TypeChecker(strictTypes ? diagnostics : null).check(expr);
+                }
+            }
+            compiled.incrementAndGet();
+            mine.complete(new Compiled(expr, diagnostics));
+        } catch (RuntimeException | StackOverflowError e) {
+            mine.completeExceptionally(e);
+            throw e;
+        }
+        return mine.join();
+    }
+
+    private static String hash(byte[] bytes) {
+        try {
+            StringBuilder hex = new StringBuilder();
+            for (byte b : MessageDigest.getInstance("SHA-256").digest(bytes)) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // Every JVM has to have SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void print(Result result, PrintStream out) {
+        out.println(String.format("=== %s: exit %d (%.2f ms)",
+            result.path, result.status, result.nanos / 1e6));
+        out.print(result.stdout);
+        for (String line : result.stderr.split("\n")) {
+            if (!line.isEmpty()) out.println("stderr: " + line);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package com.craftinginterpreters.lox;
+
+// The bulk-skip loops of Scanner: finding the end of a comment, a string
+// body or a run of blanks, many chars at a time. Like ColumnKernels there's
+// a plain version (ScalarSkipKernel) and a jdk.incubator.vector one
+// (VectorSkipKernel) that is only loaded when that module is available.
+interface SkipKernel {
+    // Index of the first char in chars[from, to) that is a, b or c, or
+    // `to` if there isn't one. Pass the same char more than once to look
+    // for fewer.
+    int indexOfAny(char[] chars, int from, int to, char a, char b, char c);
+
+    // Index of the first char in chars[from, to) that isn't ' ', '\t' or
+    // '\r', or `to`. Newlines stop it too, so Scanner can count lines.
+    int indexOfNonBlank(char[] chars, int from, int to);
+
+    static SkipKernel best() {
+        try {
+            Class<?> vector = Class.forName("com.craftinginterpreters.lox.VectorSkipKernel");
+            return (SkipKernel)vector.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return new ScalarSkipKernel();
+        }
+    }
+}
@@ -0,0 +1,480 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static com.craftinginterpreters.lox.Chunk.*;
+
+// Runs a Chunk: one loop over `code` with a switch on the opcode and an
+// array for the value stack, instead of a visit() call per node.
+//
+// Numbers are done right here. Everything else (strings, arrays, natives,
+// the errors) goes through the same Interpreter methods the tree walker
+// uses, and variables live in that Interpreter's Environment, so the two
+// can run the same code side by side and always agree. There are no
+// budgets here though ("--max-nodes" and so on).
+class StackVM {
+    final Interpreter interpreter;
+
+    StackVM(Interpreter interpreter) {
+        this.interpreter = interpreter;
+    }
+
+    // Lowers, optimizes and fuses `expr` with `fusions` (see Peephole).
+    static Chunk compile(Expr expr, int[] fusions) {
+        return Chunk.assemble(Peephole.fuse(Peephole.optimize(Lowering.lower(expr)), fusions));
+    }
+
+    Object run(Chunk chunk) {
+        return run(chunk, null);
+    }
+
+    // With `counts` (one per pc), also counts how often each instruction
+    // runs, for PairProfile.
+    Object run(Chunk chunk, long[] counts) {
+        final int[] code = chunk.code;
+        final Object[] constants = chunk.constants;
+        final Expr[] nodes = chunk.nodes;
+        final Environment environment = interpreter.environment;
+        Object[] stack = new Object[chunk.maxStack];
+        int sp = 0;
+        int pc = 0;
+
+        for (;;) {
+            if (counts != null) counts[pc]++;
+            switch (code[pc]) {
+                case CONSTANT:
+                    stack[sp++] = constants[code[pc + 1]];
+                    pc += 2;
+                    break;
+                case GET:
+                    stack[sp++] = get(environment, code[pc + 1], nodes[code[pc + 2]]);
+                    pc += 3;
+                    break;
+                case SET:
+                    environment.assign(code[pc + 1], ((Expr.Assign)nodes[code[pc + 2]]).name,
+                                       stack[sp - 1]);
+                    pc += 3;
+                    break;
+                case DEFINE:
+                    environment.define(code[pc + 1], stack[sp - 1]);
+                    pc += 2;
+                    break;
+                case POP:
+                    stack[--sp] = null;
+                    pc += 1;
+                    break;
+                case NEGATE: {
+                    Object right = stack[sp - 1];
+                    stack[sp - 1] = right instanceof Double
+                        ? -(double)right : interpreter.unary((Expr.Unary)nodes[code[pc + 1]], right);
+                    pc += 2;
+                    break;
+                }
+                case NOT:
+                    stack[sp - 1] = !interpreter.isTruthy(stack[sp - 1]);
+                    pc += 1;
+                    break;
+                case ADD:
+                case SUBTRACT:
+                case MULTIPLY:
+                case DIVIDE:
+                case GREATER:
+                case GREATER_EQUAL:
+                case LESS:
+                case LESS_EQUAL:
+                case EQUAL:
+                case NOT_EQUAL: {
+                    Object right = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = binary(code[pc], nodes[code[pc + 1]], stack[sp - 1], right);
+                    pc += 2;
+                    break;
+                }
+                case JUMP:
+                    pc = code[pc + 1];
+                    break;
+                case JUMP_IF_FALSE:
+                    pc = interpreter.isTruthy(stack[--sp]) ? pc + 2 : code[pc + 1];
+                    break;
+                case JUMP_IF_TRUE:
+                    pc = interpreter.isTruthy(stack[--sp]) ? code[pc + 1] : pc + 2;
+                    break;
+                case ELEMENT:
+                    interpreter.arrayElement((Expr.ArrayLiteral)nodes[code[pc + 1]], stack[sp - 1]);
+                    pc += 2;
+                    break;
+                case ARRAY: {
+                    // The elements have all been through ELEMENT already.
+                    int count = code[pc + 2];
+                    double[] values = new double[count];
+                    sp -= count;
+                    for (int i = 0; i < count; i++) {
+                        values[i] = (double)stack[sp + i];
+                        stack[sp + i] = null;
+                    }
+                    stack[sp++] = new LoxArray(values);
+                    pc += 3;
+                    break;
+                }
+                case FILL: {
+                    Object count = stack[--sp];
+                    stack[sp] = null;
+                    stack[sp - 1] = interpreter.fill((Expr.ArrayLiteral)nodes[code[pc + 1]],
+                                                     stack[sp - 1], count);
+                    pc += 2;
+                    break;
+                }
+                case CALL: {
+                    int count = code[pc + 2];
+                    sp -= count;
+                    Object first = count > 0 ? stack[sp] : null;
+                    Object second = count > 1 ? stack[sp + 1] : null;
+                    for (int i = 0; i < count; i++) stack[sp + i] = null;
+                    stack[sp++] = interpreter.call((Expr.Call)nodes[code[pc + 1]], first, second);
+                    pc += 3;
+                    break;
+                }
+                case EVAL:
+                    stack[sp++] = interpreter.evaluate(nodes[code[pc + 1]]);
+                    pc += 2;
+                    break;
+                case RETURN:
+                    return stack[sp - 1];
+
+                // Superinstructions: the same as their parts, one after
+                // the other, without going back around the loop.
+                case ADD_CONSTANT:
+                    stack[sp - 1] = binary(ADD, nodes[code[pc + 2]], stack[sp - 1], constants[code[pc + 1]]);
+                    pc += 3;
+                    break;
+                case SUBTRACT_CONSTANT:
+                    stack[sp - 1] = binary(SUBTRACT, nodes[code[pc + 2]], stack[sp - 1], constants[code[pc + 1]]);
+                    pc += 3;
+                    break;
+                case MULTIPLY_CONSTANT:
+                    stack[sp - 1] = binary(MULTIPLY, nodes[code[pc + 2]], stack[sp - 1], constants[code[pc + 1]]);
+                    pc += 3;
+                    break;
+                case DIVIDE_CONSTANT:
+                    stack[sp - 1] = binary(DIVIDE, nodes[code[pc + 2]], stack[sp - 1], constants[code[pc + 1]]);
+                    pc += 3;
+                    break;
+                case GET_ADD_CONSTANT:
+                    stack[sp++] = binary(ADD, nodes[code[pc + 4]],
+                        get(environment, code[pc + 1], nodes[code[pc + 2]]), constants[code[pc + 3]]);
+                    pc += 5;
+                    break;
+                case GET_SUBTRACT_CONSTANT:
+                    stack[sp++] = binary(SUBTRACT, nodes[code[pc + 4]],
+                        get(environment, code[pc + 1], nodes[code[pc + 2]]), constants[code[pc + 3]]);
+                    pc += 5;
+                    break;
+                case GET_MULTIPLY_CONSTANT:
+                    stack[sp++] = binary(MULTIPLY, nodes[code[pc + 4]],
+                        get(environment, code[pc + 1], nodes[code[pc + 2]]), constants[code[pc + 3]]);
+                    pc += 5;
+                    break;
+                case GET_DIVIDE_CONSTANT:
+                    stack[sp++] = binary(DIVIDE, nodes[code[pc + 4]],
+                        get(environment, code[pc + 1], nodes[code[pc + 2]]), constants[code[pc + 3]]);
+                    pc += 5;
+                    break;
+                case GET_GET:
+                    stack[sp++] = get(environment, code[pc + 1], nodes[code[pc + 2]]);
+                    stack[sp++] = get(environment, code[pc + 3], nodes[code[pc + 4]]);
+                    pc += 5;
+                    break;
+                case GET_GET_ADD: {
+                    Object left = get(environment, code[pc + 1], nodes[code[pc + 2]]);
+                    Object right = get(environment, code[pc + 3], nodes[code[pc + 4]]);
+                    stack[sp++] = binary(ADD, nodes[code[pc + 5]], left, right);
+                    pc += 6;
+                    break;
+                }
+                case GET_GET_SUBTRACT: {
+                    Object left = get(environment, code[pc + 1], nodes[code[pc + 2]]);
+                    Object right = get(environment, code[pc + 3], nodes[code[pc + 4]]);
+                    stack[sp++] = binary(SUBTRACT, nodes[code[pc + 5]], left, right);
+                    pc += 6;
+                    break;
+                }
+                case GET_GET_MULTIPLY: {
+                    Object left = get(environment, code[pc + 1], nodes[code[pc + 2]]);
+                    Object right = get(environment, code[pc + 3], nodes[code[pc + 4]]);
+                    stack[sp++] = binary(MULTIPLY, nodes[code[pc + 5]], left, right);
+                    pc += 6;
+                    break;
+                }
+                case SET_POP:
+                    environment.assign(code[pc + 1], ((Expr.Assign)nodes[code[pc + 2]]).name,
+                                       stack[--sp]);
+                    stack[sp] = null;
+                    pc += 3;
+                    break;
+                case DEFINE_POP:
+                    environment.define(code[pc + 1], stack[--sp]);
+                    stack[sp] = null;
+                    pc += 2;
+                    break;
+                case GREATER_JUMP:
+                case GREATER_EQUAL_JUMP:
+                case LESS_JUMP:
+                case LESS_EQUAL_JUMP:
+                case EQUAL_JUMP:
+                case NOT_EQUAL_JUMP: {
+                    Object right = stack[--sp];
+                    Object left = stack[--sp];
+                    stack[sp] = stack[sp + 1] = null;
+                    int op = PARTS[code[pc]][0];
+                    pc = test(op, nodes[code[pc + 1]], left, right) ? pc + 3 : code[pc + 2];
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("Unknown opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    private static Object get(Environment environment, int slot, Expr variable) {
+        return environment.get(slot, ((Expr.Variable)variable).name);
+    }
+
+    // `left op right` for the binary operators (ADD to NOT_EQUAL). Two
+    // numbers are done here; anything else (and dividing by zero, to get
+    // the error) goes to Interpreter.binary(). `op` is a constant at every
+    // call, so the JIT drops the switch.
+    private Object binary(int op, Expr node, Object left, Object right) {
+        if (op == EQUAL) return interpreter.isEqual(left, right);
+        if (op == NOT_EQUAL) return !interpreter.isEqual(left, right);
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+            switch (op) {
+                case ADD: return a + b;
+                case SUBTRACT: return a - b;
+                case MULTIPLY: return a * b;
+                case DIVIDE:
+                    if (b != 0.0) return a / b;
+                    break;
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                case LESS_EQUAL: return a <= b;
+            }
+        }
+        return interpreter.binary((Expr.Binary)node, left, right);
+    }
+
+    // Whether a comparison that feeds a JUMP_IF_FALSE holds, without
+    // boxing a Boolean for it.
+    private boolean test(int op, Expr node, Object left, Object right) {
+        if (op == EQUAL) return interpreter.isEqual(left, right);
+        if (op == NOT_EQUAL) return !interpreter.isEqual(left, right);
+        if (left instanceof Double && right instanceof Double) {
+            double a = (double)left;
+            double b = (double)right;
+            switch (op) {
+                case GREATER: return a > b;
+                case GREATER_EQUAL: return a >= b;
+                case LESS: return a < b;
+                default: return a <= b;
+            }
+        }
+        // Arrays compare element-wise, and an array is always truthy.
+        return interpreter.isTruthy(interpreter.binary((Expr.Binary)node, left, right));
+    }
+
+    // `StackVM [seed=42] [expressions=3000]`: evaluates random expressions
+    // (with variables, assignments, arrays, natives and errors) with the
+    // tree Interpreter and with the VM -- unoptimized, after Peephole, and
+    // with every superinstruction -- and checks that every value and error
+    // is the same. Also runs a tree 100000 levels deep.
+    public static void main(String[] args) {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : 3000;
+        Random random = new Random(seed);
+
+        int[] none = {};
+        int[] all = new int[OPCODES - ADD_CONSTANT];
+        for (int i = 0; i < all.length; i++) all[i] = ADD_CONSTANT + i;
+
+        Resolver resolver = new Resolver(new ArrayList<>());
+        Interpreter interpreter = new Interpreter();
+        StackVM vm = new StackVM(interpreter);
+        List<Expr> exprs = new ArrayList<>();
+        exprs.add(parse("var a = 1, var b = 2.5, var s = \"s\"", resolver));
+        for (int i = 0; i < count; i++) {
+            StringBuilder source = new StringBuilder();
+            randomExpr(source, random, 6);
+            if (random.nextInt(4) == 0) {
+                source.insert(0, random.nextBoolean() ? "a = " : "b = ");
+            }
+            Expr expr = parse(source.toString(), resolver);
+            if (expr != null) exprs.add(expr);
+        }
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < 100_000; i++) deep.append(i % 3 == 0 ? "-(" : i % 3 == 1 ? "(a + " : "(true ? ");
+        deep.append("1");
+        for (int i = 100_000 - 1; i >= 0; i--) deep.append(i % 3 == 2 ? " : 0)" : ")");
+        exprs.add(parse(deep.toString(), resolver));
+
+        // Ternaries nested 20000 deep in each other's predicates fold to
+        // one constant, in a pass or two rather than one pass per level.
+        int levels = 20_000;
+        String nested = "(".repeat(levels) + "true ? 1 : 2" + ") ? 3 : 4".repeat(levels);
+        long start = System.nanoTime();
+        List<Instruction> folded = Peephole.optimize(Lowering.lower(parse(nested, resolver)));
+        long millis = (System.nanoTime() - start) / 1_000_000;
+        if (folded.size() != 1 || folded.get(0).op != CONSTANT || !folded.get(0).constant.equals(3.0)) {
+            System.out.println("Nested predicates didn't fold to 3: " + folded.size() + " instructions");
+            System.exit(1);
+        }
+        System.out.println("Nested predicates folded in " + millis + " ms.");
+
+        // The variables change as they go, so each round is different;
+        // every way of running an expression starts from the same values.
+        long instructions = 0;
+        long optimized = 0;
+        long fused = 0;
+        for (int round = 0; round < 3; round++) {
+            for (Expr expr : exprs) {
+                Chunk lowered = Chunk.assemble(Lowering.lower(expr));
+                Chunk peephole = compile(expr, none);
+                Chunk superinstructions = compile(expr, all);
+                Object[] variables = save(interpreter, resolver);
+                String expected = describe(() -> interpreter.evaluate(expr), interpreter);
+                Object[] after = save(interpreter, resolver);
+                Chunk[] chunks = { lowered, peephole, superinstructions };
+                for (Chunk chunk : chunks) {
+                    restore(interpreter, variables);
+                    long[] counts = new long[chunk.code.length];
+                    String actual = describe(() -> vm.run(chunk, counts), interpreter);
+                    if (!expected.equals(actual) || !same(after, save(interpreter, resolver))) {
+                        System.out.println("Mismatch in round " + round + " on " +
+                            (expr == exprs.get(exprs.size() - 1) ? "the deep tree"
+                                                                  : new AstPrinter().print(expr)));
+                        System.out.println("expected: " + expected);
+                        System.out.println("actual:   " + actual);
+                        System.out.print(chunk);
+                        System.exit(1);
+                    }
+                    long run = 0;
+                    for (long n : counts) run += n;
+                    if (chunk == lowered) instructions += run;
+                    if (chunk == peephole) optimized += run;
+                    if (chunk == superinstructions) fused += run;
+                }
+            }
+        }
+        System.out.println("OK: " + exprs.size() + " expressions agree over 3 rounds.");
+        System.out.println(String.format("instructions run: %d lowered, %d after peephole (%.1f%%), %d with all superinstructions (%.1f%%)",
+            instructions, optimized, 100.0 * optimized / instructions,
+            fused, 100.0 * fused / instructions));
+    }
+
+    private interface Evaluation {
+        Object run();
+    }
+
+    private static String describe(Evaluation evaluation, Interpreter interpreter) {
+        try {
+            Object value = evaluation.run();
+            return (value == null ? "nil" : value.getClass().getSimpleName()) + " " +
+                   interpreter.stringify(value);
+        } catch (RuntimeError error) {
+            return "error at " + (error.token == null ? "?" : error.token.offset) +
+                   ": " + error.getMessage();
+        } catch (RuntimeException e) {
+            return "crash: " + e.getClass().getSimpleName();
+        }
+    }
+
+    private static Object[] save(Interpreter interpreter, Resolver resolver) {
+        Object[] values = new Object[resolver.slotCount()];
+        for (int slot = 0; slot < values.length; slot++) {
+            values[slot] = interpreter.environment.isDefined(slot)
+                ? interpreter.environment.get(slot, null) : UNDEFINED;
+        }
+        return values;
+    }
+
+    private static void restore(Interpreter interpreter, Object[] values) {
+        for (int slot = 0; slot < values.length; slot++) {
+            if (values[slot] != UNDEFINED) interpreter.environment.define(slot, values[slot]);
+        }
+    }
+
+    private static final Object UNDEFINED = new Object();
+
+    private static boolean same(Object[] a, Object[] b) {
+        if (a.length != b.length) return false;
+        Interpreter interpreter = new Interpreter();
+        for (int i = 0; i < a.length; i++) {
+            if (a[i] == UNDEFINED || b[i] == UNDEFINED ? a[i] != b[i] : !interpreter.isEqual(a[i], b[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Expr parse(String source, Resolver resolver) {
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Expr expr = new Parser(new Scanner(source, diagnostics).scanTokens(), diagnostics).parse();
+        if (expr == null || !diagnostics.isEmpty()) return null;
+        resolver.resolve(expr);
+        new TypeChecker(null).check(expr);
+        return expr;
+    }
+
+    private static void randomExpr(StringBuilder source, Random random, int depth) {
+        if (depth == 0 || random.nextInt(5) == 0) {
+            String[] leaves = { "1", "2.5", "0", "-0", "\"s\"", "true", "false", "nil", "a", "b", "s" };
+            source.append(leaves[random.nextInt(leaves.length)]);
+            return;
+        }
+        switch (random.nextInt(8)) {
+            case 0:
+                source.append(random.nextBoolean() ? "-" : "!");
+                randomExpr(source, random, depth - 1);
+                break;
+            case 1:
+            case 2:
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ? ");
+                randomExpr(source, random, depth - 1);
+                source.append(" : ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+            case 3:
+                // Natives, sometimes with the wrong number of arguments.
+                String[] functions = { "sqrt", "abs", "min", "pow", "len" };
+                source.append(functions[random.nextInt(functions.length)]).append("(");
+                int arguments = random.nextInt(3);
+                for (int i = 0; i < arguments; i++) {
+                    if (i > 0) source.append(", ");
+                    randomExpr(source, random, depth - 1);
+                }
+                source.append(")");
+                break;
+            case 4:
+                source.append("[");
+                randomExpr(source, random, depth - 1);
+                source.append(random.nextBoolean() ? ", " : "; ");
+                randomExpr(source, random, depth - 1);
+                source.append("]");
+                break;
+            default:
+                String[] operators = { "+", "-", "*", "/", "==", "!=", "<", "<=", ">", ">=" };
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ").append(operators[random.nextInt(operators.length)]).append(" ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+        }
+    }
+}
@@ -0,0 +1,536 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+// For embedding jlox where the same parsed expressions are evaluated over
+// and over (rules, formulas, filters...), next to lots that only run once.
+//
+// Every prepared expression starts in the tree-walking Interpreter (tier
+// 0), which costs nothing up front. Once it has been evaluated `threshold`
+// times it gets compiled in the background, on a "jlox-compiler" thread
+// instead of the caller's, into a tree of closures (tier 1). The caller
+// keeps using the interpreter until the compiled code is ready.
+//
+// The closures skip the visitor dispatch and the bookkeeping in
+// Interpreter.evaluate(), and where TypeChecker proved that a subtree only
+// deals in numbers they work on unboxed doubles. Everything else (operand
+// checks, errors, string concatenation) goes through the Interpreter's own
+// binary()/unary(), so both tiers give the same values and the same errors.
+//
+// Never promoted: trees deeper than MAX_COMPILED_DEPTH (the closures
+// recurse, and only the interpreter can switch to an explicit stack), and
+// evaluations with a Budget (only the interpreter counts nodes).
+//
+// Like Interpreter, it's meant to be used from one thread at a time. All
+// prepared expressions share one Environment, so they see each other's
+// variables.
+class TieredEvaluator {
+    static final int DEFAULT_THRESHOLD = 1000;
+    static final int MAX_COMPILED_DEPTH = 400;
+
+    // Tier 1 code for one node.
+    private interface Code {
+        Object run();
+    }
+
+    // ... for a node that TypeChecker proved evaluates to a number.
+    private interface NumberCode extends Code {
+        double number();
+
+        default Object run() {
+            return number();
+        }
+    }
+
+    // One expression, as the embedding code holds on to it.
+    class Prepared {
+        final Expr expr;
+        private long calls = 0;
+        private boolean promoted = false;
+        private volatile Code code = null;
+
+        private Prepared(Expr expr) {
+            this.expr = expr;
+        }
+
+        Object evaluate() {
+            Code compiled = code;
+            if (compiled != null) {
+                compiledEvaluations++;
+                return compiled.run();
+            }
+
+            interpretedEvaluations++;
+            if (++calls >= threshold && !promoted) {
+                promoted = true;
+                promote(this);
+            }
+            return interpreter.evaluate(expr);
+        }
+
+        // Always in the interpreter, which is the tier that counts nodes.
+        Object evaluateWithin(Budget budget) {
+            interpretedEvaluations++;
+            return interpreter.evaluateWithin(expr, budget);
+        }
+
+        int tier() {
+            return code == null ? 0 : 1;
+        }
+    }
+
+    // What happened so far, for monitoring.
+    static class Metrics {
+        final long interpretedEvaluations;
+        final long compiledEvaluations;
+        final long promoted;
+        final long compiled;
+        final long notCompiled;
+        final long compileNanos;
+
+        Metrics(long interpretedEvaluations, long compiledEvaluations, long promoted,
+                long compiled, long notCompiled, long compileNanos) {
+            this.interpretedEvaluations = interpretedEvaluations;
+            this.compiledEvaluations = compiledEvaluations;
+            this.promoted = promoted;
+            this.compiled = compiled;
+            this.notCompiled = notCompiled;
+            this.compileNanos = compileNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("tier 0: %d evaluations, tier 1: %d evaluations; " +
+                "%d promoted, %d compiled (%.2f ms), %d left in tier 0",
+                interpretedEvaluations, compiledEvaluations, promoted, compiled,
+                compileNanos / 1e6, notCompiled);
+        }
+    }
+
+    private final Interpreter interpreter = new Interpreter();
+    private final Environment environment = interpreter.environment;
+    private final int threshold;
+    private final ExecutorService compiler = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "jlox-compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    // Only touched by the caller's thread.
+    private long interpretedEvaluations = 0;
+    private long compiledEvaluations = 0;
+    private long promoted = 0;
+
+    // Also updated by the compiler thread.
+    private final AtomicLong compiled = new AtomicLong();
+    private final AtomicLong notCompiled = new AtomicLong();
+    private final AtomicLong compileNanos = new AtomicLong();
+
+    TieredEvaluator(int threshold) {
+        this.threshold = Math.max(1, threshold);
+    }
+
+    // `expr` has to be resolved (and should be type checked) already.
+    Prepared prepare(Expr expr) {
+        return new Prepared(expr);
+    }
+
+    Metrics metrics() {
+        return new Metrics(interpretedEvaluations, compiledEvaluations, promoted,
+                           compiled.get(), notCompiled.get(), compileNanos.get());
+    }
+
+    // Waits until everything promoted so far has been compiled (or not).
+    void awaitCompiler() throws InterruptedException {
+        try {
+            compiler.submit(() -> { }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    void shutdown() {
+        compiler.shutdownNow();
+    }
+
+    private void promote(Prepared prepared) {
+        promoted++;
+        compiler.execute(() -> {
+            long start = System.nanoTime();
+            if (depth(prepared.expr) > MAX_COMPILED_DEPTH) {
+                notCompiled.incrementAndGet();
+                return;
+            }
+            Code code = compile(prepared.expr);
+            compileNanos.addAndGet(System.nanoTime() - start);
+            compiled.incrementAndGet();
+            prepared.code = code;
+        });
+    }
+
+    private static int depth(Expr root) {
+        Deque<Expr> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        nodes.push(root);
+        depths.push(1);
+        int max = 0;
+        while (!nodes.isEmpty()) {
+            Expr node = nodes.pop();
+            int depth = depths.pop();
+            max = Math.max(max, depth);
+            if (max > MAX_COMPILED_DEPTH) return max;
+            for (Expr child : ExprWalker.children(node)) {
+                nodes.push(child);
+                depths.push(depth + 1);
+            }
+        }
+        return max;
+    }
+
+    private Code compile(Expr expr) {
+        if (expr.type == LoxType.NUMBER) return compileNumber(expr);
+        return compileGeneric(expr);
+    }
+
+    // Boxed values, whatever the node's type.
+    private Code compileGeneric(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            Object value = ((Expr.Literal)expr).value;
+            return () -> value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return compile(((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary) {
+            Expr.Unary unary = (Expr.Unary)expr;
+            Code right = compile(unary.right);
+            return () -> interpreter.unary(unary, right.run());
+        }
+        if (expr instanceof Expr.Binary) {
+            return compileBinary((Expr.Binary)expr);
+        }
+        if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            Code predicate = compile(ternary.predicate);
+            Code ifTrue = compile(ternary.if_true);
+            Code ifFalse = compile(ternary.if_false);
+            return () -> interpreter.isTruthy(predicate.run()) ? ifTrue.run() : ifFalse.run();
+        }
+        if (expr instanceof Expr.Variable) {
+            int slot = ((Expr.Variable)expr).slot;
+            Token name = ((Expr.Variable)expr).name;
+            return () -> environment.get(slot, name);
+        }
+        if (expr instanceof Expr.Assign) {
+            Expr.Assign assign = (Expr.Assign)expr;
+            Code value = compile(assign.value);
+            return () -> {
+                Object result = value.run();
+                environment.assign(assign.slot, assign.name, result);
+                return result;
+            };
+        }
+        if (expr instanceof Expr.Var) {
+            Expr.Var var = (Expr.Var)expr;
+            Code initializer = var.initializer == null ? () -> null : compile(var.initializer);
+            return () -> {
+                Object result = initializer.run();
+                environment.define(var.slot, result);
+                return result;
+            };
+        }
+        if (expr instanceof Expr.Sequence) {
+            List<Expr> expressions = ((Expr.Sequence)expr).expressions;
+            Code[] codes = new Code[expressions.size()];
+            for (int i = 0; i < codes.length; i++) codes[i] = compile(expressions.get(i));
+            return () -> {
+                Object result = null;
+                for (Code code : codes) result = code.run();
+                return result;
+            };
+        }
+
+        if (expr instanceof Expr.Call) {
+            Expr.Call call = (Expr.Call)expr;
+            Code[] arguments = new Code[call.arguments.size()];
+            for (int i = 0; i < arguments.length; i++) {
+                arguments[i] = compile(call.arguments.get(i));
+            }
+            return () -> {
+                Object first = null;
+                Object second = null;
+                for (int i = 0; i < arguments.length; i++) {
+                    Object argument = arguments[i].run();
+                    if (i == 0) first = argument;
+                    if (i == 1) second = argument;
+                }
+                return interpreter.call(call, first, second);
+            };
+        }
+
+        // Deferred regions (and anything new) stay in the interpreter.
+        return () -> interpreter.evaluate(expr);
+    }
+
+    private Code compileBinary(Expr.Binary binary) {
+        boolean numbers = binary.left.type == LoxType.NUMBER &&
+                          binary.right.type == LoxType.NUMBER;
+        if (numbers) {
+            NumberCode left = compileNumber(binary.left);
+            NumberCode right = compileNumber(binary.right);
+            switch (binary.operator.type) {
+                case GREATER:       return () -> left.number() > right.number();
+                case GREATER_EQUAL: return () -> left.number() >= right.number();
+                case LESS:          return () -> left.number() < right.number();
+                case LESS_EQUAL:    return () -> left.number() <= right.number();
+                // == and != compare Doubles with equals(), which isn't the
+                // same as on doubles for NaN and -0.
+                default:
+                    break;
+            }
+        }
+
+        Code left = compile(binary.left);
+        Code right = compile(binary.right);
+        return () -> {
+            Object a = left.run();
+            return interpreter.binary(binary, a, right.run());
+        };
+    }
+
+    private NumberCode compileNumber(Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            double value = (double)((Expr.Literal)expr).value;
+            return () -> value;
+        }
+        if (expr instanceof Expr.Grouping) {
+            return compileNumber(((Expr.Grouping)expr).expression);
+        }
+        if (expr instanceof Expr.Unary && ((Expr.Unary)expr).right.type == LoxType.NUMBER) {
+            NumberCode right = compileNumber(((Expr.Unary)expr).right);
+            return () -> -right.number();
+        }
+        if (expr instanceof Expr.Binary) {
+            Expr.Binary binary = (Expr.Binary)expr;
+            if (binary.left.type == LoxType.NUMBER && binary.right.type == LoxType.NUMBER) {
+                NumberCode left = compileNumber(binary.left);
+                NumberCode right = compileNumber(binary.right);
+                switch (binary.operator.type) {
+                    case PLUS:  return () -> left.number() + right.number();
+                    case MINUS: return () -> left.number() - right.number();
+                    case STAR:  return () -> left.number() * right.number();
+                    case SLASH:
+                        return () -> {
+                            double a = left.number();
+                            double b = right.number();
+                            // The interpreter throws the divide by zero error.
+                            if (b == 0.0) return (double)interpreter.binary(binary, a, b);
+                            return a / b;
+                        };
+                    default:
+                        break;
+                }
+            }
+        }
+        if (expr instanceof Expr.Ternary) {
+            Expr.Ternary ternary = (Expr.Ternary)expr;
+            Code predicate = compile(ternary.predicate);
+            NumberCode ifTrue = compileNumber(ternary.if_true);
+            NumberCode ifFalse = compileNumber(ternary.if_false);
+            return () -> interpreter.isTruthy(predicate.run()) ? ifTrue.number()
+                                                               : ifFalse.number();
+        }
+
+        if (expr instanceof Expr.Call) {
+            NumberCode call = compileNativeCall((Expr.Call)expr);
+            if (call != null) return call;
+        }
+
+        // Proven to be a number, but not something we do unboxed.
+        Code code = compileGeneric(expr);
+        return () -> (double)code.run();
+    }
+
+    // A native called with arguments that are all proven numbers goes
+    // straight to NativeFunction.invoke(), doubles in and out. How much of
+    // it the JIT inlines is up to NativeFunction (see there).
+    private NumberCode compileNativeCall(Expr.Call call) {
+        NativeFunction function = call.function;
+        if (function == null || call.arguments.size() != function.arity()) return null;
+        for (Expr argument : call.arguments) {
+            if (argument.type != LoxType.NUMBER) return null;
+        }
+
+        Token paren = call.paren;
+        switch (function.shape) {
+            case NO_ARGUMENTS:
+                return () -> function.invoke(paren);
+            case NUMBER: {
+                NumberCode a = compileNumber(call.arguments.get(0));
+                return () -> function.invoke(paren, a.number());
+            }
+            case TWO_NUMBERS: {
+                NumberCode a = compileNumber(call.arguments.get(0));
+                NumberCode b = compileNumber(call.arguments.get(1));
+                return () -> {
+                    double first = a.number();
+                    return function.invoke(paren, first, b.number());
+                };
+            }
+            default:
+                return null;
+        }
+    }
+
+    // `TieredEvaluator [seed=42] [evaluations=2000000]`: evaluates random
+    // expressions (with variables, assignments and errors) over and over
+    // through both tiers and checks every value and error against a plain
+    // Interpreter, then times a few typical expressions in each tier.
+    public static void main(String[] args) throws InterruptedException {
+        long seed = args.length > 0 ? Long.parseLong(args[0]) : 42;
+        int evaluations = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+        Random random = new Random(seed);
+
+        // One resolver for all of them, so they share variable slots.
+        List<Diagnostic> diagnostics = new ArrayList<>();
+        Resolver resolver = new Resolver(diagnostics);
+        TieredEvaluator tiered = new TieredEvaluator(5);
+        Interpreter reference = new Interpreter();
+        List<Expr> exprs = new ArrayList<>();
+        exprs.add(parse("var a = 1, var b = 2.5, var s = \"s\"", resolver, diagnostics));
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder source = new StringBuilder();
+            randomExpr(source, random, 6);
+            if (random.nextInt(4) == 0) {
+                source.insert(0, random.nextBoolean() ? "a = " : "b = ");
+            }
+            Expr expr = parse(source.toString(), resolver, diagnostics);
+            if (expr != null) exprs.add(expr);
+        }
+
+        List<Prepared> prepared = new ArrayList<>();
+        for (Expr expr : exprs) prepared.add(tiered.prepare(expr));
+        for (int round = 0; round < 12; round++) {
+            for (int i = 0; i < exprs.size(); i++) {
+                Expr expr = exprs.get(i);
+                String expected = describe(() -> reference.evaluate(expr));
+                String actual = describe(prepared.get(i)::evaluate);
+                if (!expected.equals(actual)) {
+                    System.out.println("Mismatch in round " + round + " (tier " +
+                        prepared.get(i).tier() + ") on " + new AstPrinter().print(expr));
+                    System.out.println("expected: " + expected);
+                    System.out.println("actual:   " + actual);
+                    System.exit(1);
+                }
+            }
+            // Let the compiler catch up, so the later rounds are in tier 1.
+            tiered.awaitCompiler();
+        }
+        System.out.println("OK: both tiers agree. " + tiered.metrics());
+        tiered.shutdown();
+
+        String[] benchmarks = {
+            "(1.5 * 2 + 3) / (4 - 1.5) > 2 ? 10 * 10 - 5 : 7 / 2",
+            "x * 2 + y / 3 - (x - y) * 0.5 > 10 ? x : y",
+            "x = x + 1, y = y * 0.5 + x, x > y",
+            "sqrt(abs(1.5 * 2 - 7)) + min(2.5, 3 * 1.5)",
+            "\"total: \" + x + \" of \" + y",
+        };
+        for (String source : benchmarks) {
+            Resolver benchResolver = new Resolver(diagnostics);
+            TieredEvaluator evaluator = new TieredEvaluator(DEFAULT_THRESHOLD);
+            evaluator.prepare(parse("var x = 3, var y = 4", benchResolver, diagnostics)).evaluate();
+            Prepared expr = evaluator.prepare(parse(source, benchResolver, diagnostics));
+
+            // Timed in tier 0 first, then promoted.
+            double interpreted = time(() -> evaluator.interpreter.evaluate(expr.expr), evaluations);
+            for (int i = 0; i < DEFAULT_THRESHOLD; i++) expr.evaluate();
+            evaluator.awaitCompiler();
+            double compiled = time(expr::evaluate, evaluations);
+            System.out.println(String.format("%-55s %7.1f ns tier 0, %7.1f ns tier 1 (%.1fx)",
+                source, interpreted, compiled, interpreted / compiled));
+            evaluator.shutdown();
+        }
+    }
+
+    private static Expr parse(String source, Resolver resolver, List<Diagnostic> diagnostics) {
+        diagnostics.clear();
+        Expr expr = new Parser(new Scanner(source, diagnostics).scanTokens(), diagnostics).parse();
+        if (expr == null || !diagnostics.isEmpty()) return null;
+        resolver.resolve(expr);
+        new TypeChecker(null).check(expr);
+        return diagnostics.isEmpty() ? expr : null;
+    }
+
+    private static String describe(Code code) {
+        try {
+            Object value = code.run();
+            return value == null ? "nil" : value.getClass().getSimpleName() + " " + value;
+        } catch (RuntimeError error) {
+            return "error at " + error.token.offset + ": " + error.getMessage();
+        } catch (RuntimeException e) {
+            return "crash: " + e.getClass().getSimpleName();
+        }
+    }
+
+    private static void randomExpr(StringBuilder source, Random random, int depth) {
+        if (depth == 0 || random.nextInt(5) == 0) {
+            String[] leaves = { "1", "2.5", "0", "-0", "\"s\"", "true", "nil", "a", "b", "s" };
+            source.append(leaves[random.nextInt(leaves.length)]);
+            return;
+        }
+        switch (random.nextInt(6)) {
+            case 0:
+                source.append(random.nextBoolean() ? "-" : "!");
+                randomExpr(source, random, depth - 1);
+                break;
+            case 5:
+                // Natives, sometimes with the wrong number of arguments.
+                String[] functions = { "sqrt", "abs", "floor", "min", "pow" };
+                source.append(functions[random.nextInt(functions.length)]).append("(");
+                int arguments = random.nextInt(3);
+                for (int i = 0; i < arguments; i++) {
+                    if (i > 0) source.append(", ");
+                    randomExpr(source, random, depth - 1);
+                }
+                source.append(")");
+                break;
+            case 1:
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ? ");
+                randomExpr(source, random, depth - 1);
+                source.append(" : ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+            default:
+                String[] operators = { "+", "-", "*", "/", "==", "!=", "<", ">=" };
+                source.append("(");
+                randomExpr(source, random, depth - 1);
+                source.append(" ").append(operators[random.nextInt(operators.length)]).append(" ");
+                randomExpr(source, random, depth - 1);
+                source.append(")");
+                break;
+        }
+    }
+
+    // Average ns per evaluation, best of 5 rounds.
+    private static double time(Code code, int evaluations) {
+        double best = Double.MAX_VALUE;
+        for (int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for (int i = 0; i < evaluations; i++) code.run();
+            best = Math.min(best, (System.nanoTime() - start) / (double)evaluations);
+        }
+        return best;
+    }
+}
@@ -5,12 +5,27 @@ class Token {
     final String lexeme;
     final Object literal;
     final int line;
+    // Index of the first character of the lexeme in the source, or -1 when
+    // the token wasn't made by a Scanner.
+    final int offset;
 
     Token(TokenType type, String lexeme, Object literal, int line) {
+        this(type, lexeme, literal, line, -1);
+    }
+
+    Token(TokenType type, String lexeme, Object literal, int line, int offset) {
         this.type = type;
         this.lexeme = lexeme;
         this.literal = literal;
         this.line = line;
+        this.offset = offset;
+    }
+
+    // The lexeme, for error messages. ByteScanner doesn't keep one for
+    // string literals (see there), so rebuild it from the value.
+    String text() {
+        if (lexeme == null) return "\"" + literal + "\"";
+        return lexeme;
     }
 
     public String toString() {
@@ -0,0 +1,209 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+import static com.craftinginterpreters.lox.LoxType.*;
+
+// Works out the static type of every node (bottom up) and stores it in
+// Expr.type. The Interpreter uses that to skip checkNumberOperands() and
+// friends when the operand types are already known, e.g. for literals and
+// the results of arithmetic.
+//
+// The type of a node is the type of its value *if evaluating it succeeds*,
+// so "!x" is a BOOLEAN even when x is unknown. Arithmetic on an unknown
+// operand is UNKNOWN though, since it could be a number or an array.
+//
+// The tree is walked bottom-up with ExprWalker (so deep trees are fine),
+// which means each visit method can just read the types of the children
+// from their `type` fields.
+//
+// With a diagnostics list, operations that can only ever fail (like -"a"
+// or true + 1) are reported as errors before anything runs.
+class TypeChecker implements Expr.Visitor<LoxType> {
+    private final List<Diagnostic> diagnostics;
+
+    TypeChecker(List<Diagnostic> diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
+    void check(Expr expr) {
+        ExprWalker.postOrder(expr, node -> node.type = node.accept(this));
+    }
+
+    @Override
+    public LoxType visitLiteralExpr(Expr.Literal expr) {
+        if (expr.value == null) return NIL;
+        if (expr.value instanceof Double) return NUMBER;
+        if (expr.value instanceof String) return STRING;
+        if (expr.value instanceof Utf8Literal) return STRING;
+        if (expr.value instanceof Boolean) return BOOLEAN;
+        return UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.type;
+    }
+
+    @Override
+    public LoxType visitUnaryExpr(Expr.Unary expr) {
+        LoxType right = expr.right.type;
+
+        switch (expr.operator.type) {
+            case BANG:
+                return BOOLEAN;
+            case MINUS:
+                if (known(right) && right != NUMBER && right != ARRAY) {
+                    report(expr.operator, "Operand must be a number.");
+                }
+                return right == NUMBER || right == ARRAY ? right : UNKNOWN;
+        }
+
+        return UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitBinaryExpr(Expr.Binary expr) {
+        LoxType left = expr.left.type;
+        LoxType right = expr.right.type;
+
+        switch (expr.operator.type) {
+            case BANG_EQUAL:
+            case EQUAL_EQUAL:
+                return BOOLEAN;
+            case GREATER:
+            case GREATER_EQUAL:
+            case LESS:
+            case LESS_EQUAL:
+                checkNumbers(expr.operator, left, right);
+                return numeric(left, right, BOOLEAN);
+            case MINUS:
+            case SLASH:
+            case STAR:
+                checkNumbers(expr.operator, left, right);
+                return numeric(left, right, NUMBER);
+            case PLUS:
+                if (left == NUMBER && right == NUMBER) return NUMBER;
+                if (left == STRING || right == STRING) return STRING;
+                if (isNumeric(left) && isNumeric(right)) return ARRAY;
+                if (known(left) && known(right)) {
+                    report(expr.operator, "Operands must both be " +
+                        "Numbers (or at least one must be a String).");
+                }
+                return UNKNOWN;
+        }
+
+        return UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitTernaryExpr(Expr.Ternary expr) {
+        LoxType ifTrue = expr.if_true.type;
+        LoxType ifFalse = expr.if_false.type;
+        return ifTrue == ifFalse ? ifTrue : UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitVariableExpr(Expr.Variable expr) {
+        // Could be anything that was ever assigned to it.
+        return UNKNOWN;
+    }
+
+    @Override
+    public LoxType visitAssignExpr(Expr.Assign expr) {
+        return expr.value.type;
+    }
+
+    @Override
+    public LoxType visitVarExpr(Expr.Var expr) {
+        return expr.initializer == null ? NIL : expr.initializer.type;
+    }
+
+    @Override
+    public LoxType visitSequenceExpr(Expr.Sequence expr) {
+        return expr.expressions.get(expr.expressions.size() - 1).type;
+    }
+
+    @Override
+    public LoxType visitArrayLiteralExpr(Expr.ArrayLiteral expr) {
+        for (Expr element : expr.elements) {
+            if (known(element.type) && element.type != NUMBER) {
+                report(expr.bracket, "Array elements must be numbers.");
+                break;
+            }
+        }
+        return ARRAY;
+    }
+
+    @Override
+    public LoxType visitCallExpr(Expr.Call expr) {
+        NativeFunction function = expr.function;
+        if (function == null) return UNKNOWN;
+        if (expr.arguments.size() != function.arity()) {
+            report(expr.paren, "Expected " + function.arity() + " arguments but got " +
+                expr.arguments.size() + ".");
+            return UNKNOWN;
+        }
+
+        switch (function.shape) {
+            case NUMBER:
+                // Applied element by element to an array.
+                LoxType argument = expr.arguments.get(0).type;
+                if (known(argument) && !isNumeric(argument)) {
+                    report(expr.paren, "Argument to '" + function.name +
+                        "' must be a number or an array.");
+                }
+                return argument == NUMBER || argument == ARRAY ? argument : UNKNOWN;
+            case TWO_NUMBERS:
+                for (Expr argumentExpr : expr.arguments) {
+                    if (known(argumentExpr.type) && argumentExpr.type != NUMBER) {
+                        report(expr.paren, "Arguments to '" + function.name +
+                            "' must be numbers.");
+                        break;
+                    }
+                }
+                return NUMBER;
+            case ARRAY:
+                LoxType array = expr.arguments.get(0).type;
+                if (known(array) && array != ARRAY) {
+                    report(expr.paren, "Argument to '" + function.name + "' must be an array.");
+                }
+                return NUMBER;
+            default:
+                return NUMBER;
+        }
+    }
+
+    @Override
+    public LoxType visitDeferredExpr(Expr.Deferred expr) {
+        // Not parsed yet.
+        return UNKNOWN;
+    }
+
+    private void checkNumbers(Token operator, LoxType left, LoxType right) {
+        if ((known(left) && !isNumeric(left)) || (known(right) && !isNumeric(right))) {
+            report(operator, "Operands must be numbers.");
+        }
+    }
+
+    // An arithmetic operator or comparison: `scalar` on two numbers, an
+    // element-wise ARRAY when an array is involved, and UNKNOWN when an
+    // operand could be either.
+    private static LoxType numeric(LoxType left, LoxType right, LoxType scalar) {
+        if (left == NUMBER && right == NUMBER) return scalar;
+        if (isNumeric(left) && isNumeric(right)) return ARRAY;
+        return UNKNOWN;
+    }
+
+    private static boolean isNumeric(LoxType type) {
+        return type == NUMBER || type == ARRAY;
+    }
+
+    private static boolean known(LoxType type) {
+        return type != UNKNOWN;
+    }
+
+    private void report(Token token, String message) {
+        if (diagnostics != null) diagnostics.add(Diagnostic.at(token, message));
+    }
+}
@@ -0,0 +1,28 @@
+package com.craftinginterpreters.lox;
+
+// The value of a string literal that ByteScanner found, still as UTF-8
+// bytes in the mapped file. It's only decoded into a String the first time
+// something asks for it (Interpreter.visitLiteralExpr(), or a printer), so
+// a script full of string data that is never used doesn't cost any heap.
+class Utf8Literal {
+    private final MappedSource source;
+    private final long start;
+    private final int length;
+    private String value = null;
+
+    Utf8Literal(MappedSource source, long start, int length) {
+        this.source = source;
+        this.start = start;
+        this.length = length;
+    }
+
+    String value() {
+        if (value == null) value = source.decode(start, length);
+        return value;
+    }
+
+    @Override
+    public String toString() {
+        return value();
+    }
+}
@@ -0,0 +1,123 @@
+package com.craftinginterpreters.lox;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the column kernels, using as many lanes as the CPU has
+// (SPECIES_PREFERRED). The rows that don't fill a whole vector at the end
+// are done with the scalar loops.
+//
+// This needs the incubator module, both to compile and to run:
+//   javac --add-modules jdk.incubator.vector ...
+//   java --add-modules jdk.incubator.vector ...
+// ColumnKernels.vector() only loads this class by name, so everything
+// else still compiles and runs without it.
+class VectorColumnKernels implements ColumnKernels {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public void add(double[] a, double[] b, double[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                .add(DoubleVector.fromArray(SPECIES, b, i))
+                .intoArray(out, i);
+        }
+        for (; i < n; i++) out[i] = a[i] + b[i];
+    }
+
+    @Override
+    public void subtract(double[] a, double[] b, double[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                .sub(DoubleVector.fromArray(SPECIES, b, i))
+                .intoArray(out, i);
+        }
+        for (; i < n; i++) out[i] = a[i] - b[i];
+    }
+
+    @Override
+    public void multiply(double[] a, double[] b, double[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i)
+                .mul(DoubleVector.fromArray(SPECIES, b, i))
+                .intoArray(out, i);
+        }
+        for (; i < n; i++) out[i] = a[i] * b[i];
+    }
+
+    @Override
+    public void divide(double[] a, double[] b, double[] out, long[] errors, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector divisor = DoubleVector.fromArray(SPECIES, b, i);
+            VectorMask<Double> zero = divisor.compare(VectorOperators.EQ, 0.0);
+            DoubleVector quotient = DoubleVector.fromArray(SPECIES, a, i).div(divisor);
+            quotient.blend(Double.NaN, zero).intoArray(out, i);
+
+            // i is a multiple of LANES (a power of two no bigger than 64),
+            // so all of these bits land in the same word.
+            if (zero.anyTrue()) errors[i >>> 6] |= zero.toLong() << i;
+        }
+        ScalarColumnKernels.divide(a, b, out, errors, i, n);
+    }
+
+    @Override
+    public void negate(double[] a, double[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector.fromArray(SPECIES, a, i).neg().intoArray(out, i);
+        }
+        for (; i < n; i++) out[i] = -a[i];
+    }
+
+    @Override
+    public void compare(TokenType operator, double[] a, double[] b, boolean[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            DoubleVector left = DoubleVector.fromArray(SPECIES, a, i);
+            DoubleVector right = DoubleVector.fromArray(SPECIES, b, i);
+            VectorMask<Double> result;
+            switch (operator) {
+                case GREATER:       result = left.compare(VectorOperators.GT, right); break;
+                case GREATER_EQUAL: result = left.compare(VectorOperators.GE, right); break;
+                case LESS:          result = left.compare(VectorOperators.LT, right); break;
+                case LESS_EQUAL:    result = left.compare(VectorOperators.LE, right); break;
+                case EQUAL_EQUAL:   result = equal(left, right); break;
+                case BANG_EQUAL:    result = equal(left, right).not(); break;
+                default:
+                    throw new IllegalArgumentException("Not a comparison: " + operator);
+            }
+            result.intoArray(out, i);
+        }
+        ScalarColumnKernels.compare(operator, a, b, out, i, n);
+    }
+
+    // Same as Double.equals(): the bits are the same, or both are NaN (NaNs
+    // can have different bits, but Double.equals() treats them all alike).
+    private static VectorMask<Double> equal(DoubleVector left, DoubleVector right) {
+        VectorMask<Double> sameBits = left.reinterpretAsLongs()
+            .compare(VectorOperators.EQ, right.reinterpretAsLongs())
+            .cast(SPECIES);
+        VectorMask<Double> bothNaN = left.test(VectorOperators.IS_NAN)
+            .and(right.test(VectorOperators.IS_NAN));
+        return sameBits.or(bothNaN);
+    }
+
+    @Override
+    public void select(boolean[] mask, double[] ifTrue, double[] ifFalse, double[] out, int n) {
+        int i = 0;
+        for (; i < SPECIES.loopBound(n); i += LANES) {
+            VectorMask<Double> take = VectorMask.fromArray(SPECIES, mask, i);
+            DoubleVector.fromArray(SPECIES, ifFalse, i)
+                .blend(DoubleVector.fromArray(SPECIES, ifTrue, i), take)
+                .intoArray(out, i);
+        }
+        for (; i < n; i++) out[i] = mask[i] ? ifTrue[i] : ifFalse[i];
+    }
+}
@@ -0,0 +1,43 @@
+package com.craftinginterpreters.lox;
+
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorSpecies;
+
+// Compares a whole vector of chars (16 of them with 256-bit registers)
+// against the targets at once and takes the first lane that matched. Needs
+// --add-modules jdk.incubator.vector, see VectorColumnKernels.
+class VectorSkipKernel implements SkipKernel {
+    private static final VectorSpecies<Short> SPECIES = ShortVector.SPECIES_PREFERRED;
+    private static final int LANES = SPECIES.length();
+
+    @Override
+    public int indexOfAny(char[] chars, int from, int to, char a, char b, char c) {
+        int i = from;
+        for (; i + LANES <= to; i += LANES) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> hit = v.eq((short)a).or(v.eq((short)b)).or(v.eq((short)c));
+            if (hit.anyTrue()) return i + hit.firstTrue();
+        }
+        for (; i < to; i++) {
+            char ch = chars[i];
+            if (ch == a || ch == b || ch == c) return i;
+        }
+        return to;
+    }
+
+    @Override
+    public int indexOfNonBlank(char[] chars, int from, int to) {
+        int i = from;
+        for (; i + LANES <= to; i += LANES) {
+            ShortVector v = ShortVector.fromCharArray(SPECIES, chars, i);
+            VectorMask<Short> blank = v.eq((short)' ').or(v.eq((short)'\t')).or(v.eq((short)'\r'));
+            if (!blank.allTrue()) return i + blank.not().firstTrue();
+        }
+        for (; i < to; i++) {
+            char ch = chars[i];
+            if (ch != ' ' && ch != '\t' && ch != '\r') return i;
+        }
+        return to;
+    }
+}
@@ -22,14 +22,40 @@ public class GenerateAst {
             "Grouping : Expr expression",
             "Literal  : Object value",
             "Unary    : Token operator, Expr right",
-            "Ternary  : Expr predicate, Expr if_true, Expr if_false"
+            "Ternary  : Expr predicate, Expr if_true, Expr if_false",
+            // Everything after a '|' is a mutable field that a later pass
+            // fills in (here: the slot Resolver gives each variable).
+            "Variable : Token name | int slot = -1",
+            "Assign   : Token name, Expr value | int slot = -1",
+            "Var      : Token name, Expr initializer | int slot = -1",
+            "Sequence : List<Expr> expressions",
+            // [a, b, c], or [value; count] when `count` isn't null (then
+            // `elements` is just the value).
+            "ArrayLiteral : Token bracket, List<Expr> elements, Expr count",
+            // name(arguments); Resolver binds `function` from its Natives.
+            "Call     : Token name, Token paren, List<Expr> arguments" +
+                " | NativeFunction function = null",
+            // tokens[start, end), not parsed until it's first evaluated
+            // (see Parser.lazy). Resolver records how to resolve it later.
+            // regionEnds is Parser.regionEnds(tokens), for the regions
+            // inside it.
+            "Deferred : List<Token> tokens, int[] regionEnds, int start, int end" +
+                " | volatile Expr parsed = null, Resolver resolver = null, int visibleSlots = 0"
+        ), Arrays.asList(
+            // Filled in by TypeChecker after parsing.
+            "LoxType type = LoxType.UNKNOWN"
+        ), Arrays.asList(
+            // The nodes that write a variable.
+            "Assign", "Var"
         ));
     }
 
     private static void defineAst(
             String outputDir,
             String baseName,
-            List<String> types
+            List<String> types,
+            List<String> baseFields,
+            List<String> writers
         ) throws IOException {
         String path = outputDir + "/" + baseName + ".java";
         PrintWriter writer = new PrintWriter(path, "UTF-8");
@@ -42,11 +68,24 @@ public class GenerateAst {
 
         defineVisitor(writer, baseName, types);
 
+        // Mutable fields every node has (annotations from later passes).
+        if (!baseFields.isEmpty()) {
+            writer.println();
+            for (String field : baseFields) {
+                writer.println("    " + field + ";");
+            }
+        }
+
+        defineDerived(writer, baseName);
+
         // The AST classes.
         for (String type : types) {
             String className = type.split(":")[0].trim();
-            String fields = type.split(":")[1].trim();
-            defineType(writer, baseName, className, fields);
+            String[] fieldParts = type.split(":")[1].split("\\|");
+            String fields = fieldParts[0].trim();
+            String mutableFields = fieldParts.length > 1 ? fieldParts[1].trim() : null;
+            defineType(writer, baseName, className, fields, mutableFields,
+                       writers.contains(className));
         }
 
         // The base accept() method.
@@ -74,11 +113,44 @@ public class GenerateAst {
     }
     
 
+    // Fields every constructor computes from the node's children, so they
+    // are known as soon as the parser has built a node.
+    private static void defineDerived(PrintWriter writer, String baseName) {
+        writer.println();
+        writer.println("    // Set by every constructor: how many nodes this subtree has, and");
+        writer.println("    // whether any of them writes a variable.");
+        writer.println("    int size;");
+        writer.println("    boolean writes;");
+        writer.println();
+        writer.println("    static int sizeOf(" + baseName + " node) {");
+        writer.println("        return node == null ? 0 : node.size;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    static int sizeOf(List<" + baseName + "> nodes) {");
+        writer.println("        int size = 0;");
+        writer.println("        for (" + baseName + " node : nodes) size += node.size;");
+        writer.println("        return size;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    static boolean writes(" + baseName + " node) {");
+        writer.println("        return node != null && node.writes;");
+        writer.println("    }");
+        writer.println();
+        writer.println("    static boolean writes(List<" + baseName + "> nodes) {");
+        writer.println("        for (" + baseName + " node : nodes) {");
+        writer.println("            if (node.writes) return true;");
+        writer.println("        }");
+        writer.println("        return false;");
+        writer.println("    }");
+    }
+
     private static void defineType(
             PrintWriter writer,
             String baseName,
             String className,
-            String fieldList
+            String fieldList,
+            String mutableFieldList,
+            boolean writesVariable
         ) {
         writer.println();
         writer.println("    static class " + className + " extends " +
@@ -94,6 +166,23 @@ public class GenerateAst {
             writer.println("            this." + name + " = " + name + ";");
         }
 
+        // Derived fields, from the fields that are child nodes.
+        StringBuilder size = new StringBuilder("1");
+        StringBuilder writes = new StringBuilder(writesVariable ? "true" : "false");
+        for (String field : fields) {
+            String type = field.split(" ")[0];
+            String name = field.split(" ")[1];
+            if (type.equals(baseName) || type.equals("List<" + baseName + ">")) {
+                size.append(" + sizeOf(").append(name).append(")");
+                if (!writesVariable) {
+                    writes.append(" || writes(").append(name).append(")");
+                }
+            }
+        }
+        writer.println("            this.size = " + size + ";");
+        writer.println("            this.writes = " +
+            writes.toString().replaceFirst("^false \\|\\| ", "") + ";");
+
         writer.println("        }");
 
         // Visitor pattern.
@@ -110,6 +199,11 @@ public class GenerateAst {
         for (String field : fields) {
             writer.println("        final " + field + ";");
         }
+        if (mutableFieldList != null) {
+            for (String field : mutableFieldList.split(", ")) {
+                writer.println("        " + field + ";");
+            }
+        }
 
         writer.println("    }");
     }
@@ -0,0 +1,257 @@
+package com.craftinginterpreters.tool;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+// Writes synthetic jlox scripts for "jlox --bench", so that throughput can
+// be measured on inputs of a known shape and size instead of on the tiny
+// scripts in jlox_test_scripts. The same kind, size and seed always give
+// the same script.
+//
+// Every script is valid and evaluates without a runtime error (divisors
+// are never zero, only numbers are used with arithmetic). Apart from
+// "deep", scripts are a long comma-separated list of small units, so the
+// work grows linearly with `size` (one long string concatenation, for
+// example, would be quadratic).
+public class GenerateWorkload {
+    private static final String[] KINDS = {
+        "deep", "wide", "strings", "numbers", "comments", "variables", "untaken", "formulas"
+    };
+
+    public static void main(String[] args) throws IOException {
+        if (args.length == 3 && args[0].equals("--corpus")) {
+            writeCorpus(Paths.get(args[1]), Long.parseLong(args[2]));
+            return;
+        }
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: generate_workload <kind> <size> [seed]");
+            System.err.println("       generate_workload --corpus <output directory> <seed>");
+            System.err.println("Kinds:");
+            System.err.println("  deep       one expression nested <size> levels deep");
+            System.err.println("  wide       <size> operands in chains of mixed-precedence operators");
+            System.err.println("  strings    <size> string literals, concatenated a few at a time");
+            System.err.println("  numbers    <size> number literals of all shapes, a few per unit");
+            System.err.println("  comments   <size> units, each with several line and block comments");
+            System.err.println("  variables  <size> var declarations, assignments and reads");
+            System.err.println("  untaken    ternaries whose big branches (<size> operands in all) are never taken");
+            System.err.println("  formulas   <size> updates mixing variables, constants, comparisons and ternaries");
+            System.exit(64);
+        }
+
+        String kind = args[0];
+        int size = Integer.parseInt(args[1]);
+        long seed = args.length > 2 ? Long.parseLong(args[2]) : 42;
+        PrintWriter writer = new PrintWriter(System.out);
+        generate(writer, kind, size, seed);
+        writer.flush();
+    }
+
+    // Every kind at three sizes, as <kind>_<size>.jlox.
+    private static void writeCorpus(Path directory, long seed) throws IOException {
+        Files.createDirectories(directory);
+        for (String kind : KINDS) {
+            for (int size : new int[] { 1_000, 10_000, 100_000 }) {
+                Path path = directory.resolve(kind + "_" + size + ".jlox");
+                try (PrintWriter writer = new PrintWriter(Files.newBufferedWriter(path))) {
+                    generate(writer, kind, size, seed);
+                }
+                System.out.println(path + ": " + Files.size(path) + " bytes");
+            }
+        }
+    }
+
+    private static void generate(PrintWriter writer, String kind, int size, long seed) {
+        Random random = new Random(seed);
+        switch (kind) {
+            case "deep":      deep(writer, random, size); break;
+            case "wide":      units(writer, size, 8, () -> wide(random, 8)); break;
+            case "strings":   units(writer, size, 4, () -> strings(random, 4)); break;
+            case "numbers":   units(writer, size, 6, () -> numbers(random, 6)); break;
+            case "comments":  units(writer, size, 1, () -> commented(random)); break;
+            case "variables": variables(writer, random, size); break;
+            case "untaken":   units(writer, size, 40, () -> untaken(random)); break;
+            case "formulas":  formulas(writer, random, size); break;
+            default:
+                System.err.println("Unknown kind '" + kind + "'.");
+                System.exit(64);
+        }
+        writer.println();
+    }
+
+    // `count` items in units of `perUnit`, one unit per line, separated by
+    // the comma operator.
+    private static void units(PrintWriter writer, int count, int perUnit,
+                              Supplier<String> unit) {
+        int units = Math.max(1, count / perUnit);
+        for (int i = 0; i < units; i++) {
+            if (i > 0) writer.println(",");
+            writer.print(unit.get());
+        }
+    }
+
+    // Nesting of every kind the parser and interpreter recurse on:
+    // groupings, unary minus, ternaries and right-nested operators. Written
+    // as an opening and a closing half so it doesn't need recursion here.
+    private static void deep(PrintWriter writer, Random random, int depth) {
+        StringBuilder opening = new StringBuilder();
+        List<String> closing = new ArrayList<>();
+        for (int i = 0; i < depth; i++) {
+            switch (random.nextInt(4)) {
+                case 0:
+                    opening.append("(");
+                    closing.add(")");
+                    break;
+                case 1:
+                    opening.append("-");
+                    break;
+                case 2:
+                    opening.append("(true ? ");
+                    closing.add(" : 0)");
+                    break;
+                default:
+                    opening.append("(").append(random.nextInt(9) + 1).append(" + ");
+                    closing.add(")");
+                    break;
+            }
+        }
+        writer.print(opening);
+        writer.print(random.nextInt(9) + 1);
+        for (int i = closing.size() - 1; i >= 0; i--) writer.print(closing.get(i));
+    }
+
+    private static String wide(Random random, int operands) {
+        String[] operators = { "+", "-", "*", "/" };
+        StringBuilder builder = new StringBuilder();
+        builder.append(random.nextInt(100));
+        for (int i = 1; i < operands; i++) {
+            builder.append(" ").append(operators[random.nextInt(operators.length)]).append(" ");
+            // Never zero, so "/" can't fail.
+            builder.append(random.nextInt(99) + 1);
+        }
+        return builder.toString();
+    }
+
+    // A small value behind a ternary whose other branch is a big
+    // expression that is never evaluated (for "jlox --lazy").
+    private static String untaken(Random random) {
+        String big = "(" + wide(random, 40) + ")";
+        int small = random.nextInt(100);
+        return random.nextBoolean() ? "false ? " + big + " : " + small
+                                    : "true ? " + small + " : " + big;
+    }
+
+    private static String strings(Random random, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(" + ");
+            builder.append('"');
+            int length = 5 + random.nextInt(40);
+            for (int c = 0; c < length; c++) {
+                builder.append((char)('a' + random.nextInt(26)));
+                if (random.nextInt(8) == 0) builder.append(' ');
+            }
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String numbers(Random random, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(i % 2 == 0 ? " * " : " + ");
+            switch (random.nextInt(3)) {
+                case 0: builder.append(random.nextInt(10)); break;
+                case 1: builder.append(random.nextInt(1_000_000)); break;
+                default:
+                    builder.append(random.nextInt(1000)).append('.')
+                           .append(random.nextInt(1_000_000));
+                    break;
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String commented(Random random) {
+        StringBuilder builder = new StringBuilder();
+        builder.append("// ").append(words(random, 8)).append("\n");
+        builder.append("/* ").append(words(random, 12)).append("\n   ")
+               .append(words(random, 12));
+        if (random.nextBoolean()) {
+            builder.append(" /* nested ").append(words(random, 4)).append(" */");
+        }
+        builder.append(" */\n");
+        builder.append(random.nextInt(100)).append(" + ")
+               .append(random.nextInt(100)).append(" // ").append(words(random, 5));
+        builder.append("\n");
+        return builder.toString();
+    }
+
+    private static String words(Random random, int count) {
+        String[] words = { "the", "scanner", "skips", "all", "of", "this", "text",
+                           "lox", "comment", "block", "line", "value" };
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append(' ');
+            builder.append(words[random.nextInt(words.length)]);
+        }
+        return builder.toString();
+    }
+
+    // Declares variables, then keeps updating random ones from others.
+    private static void variables(PrintWriter writer, Random random, int count) {
+        int names = Math.max(1, Math.min(count, 100));
+        for (int i = 0; i < names; i++) {
+            if (i > 0) writer.println(",");
+            writer.print("var v" + i + " = " + random.nextInt(100));
+        }
+        for (int i = names; i < count; i++) {
+            writer.println(",");
+            int target = random.nextInt(names);
+            writer.print("v" + target + " = v" + random.nextInt(names) +
+                         (random.nextBoolean() ? " + " : " - ") + "v" + random.nextInt(names));
+        }
+    }
+
+    // Like "variables", but the updates look more like real formulas:
+    // scaled and offset variables, and comparisons that pick a branch.
+    // Divisors are non-zero constants, so nothing can fail.
+    private static void formulas(PrintWriter writer, Random random, int count) {
+        int names = Math.max(1, Math.min(count, 50));
+        for (int i = 0; i < names; i++) {
+            if (i > 0) writer.println(",");
+            writer.print("var f" + i + " = " + random.nextInt(100));
+        }
+        String[] operators = { " + ", " - ", " * " };
+        String[] comparisons = { " < ", " > ", " <= ", " >= " };
+        for (int i = names; i < count; i++) {
+            writer.println(",");
+            String a = "f" + random.nextInt(names);
+            String b = "f" + random.nextInt(names);
+            String c = "f" + random.nextInt(names);
+            writer.print("f" + random.nextInt(names) + " = ");
+            switch (random.nextInt(3)) {
+                case 0:
+                    writer.print(a + comparisons[random.nextInt(comparisons.length)] + b +
+                                 " ? " + a + operators[random.nextInt(operators.length)] +
+                                 (random.nextInt(9) + 1) + " : " + b + " / " + (random.nextInt(9) + 1));
+                    break;
+                case 1:
+                    writer.print(a + " * " + (random.nextInt(9) + 1) + "." + random.nextInt(10) +
+                                 operators[random.nextInt(2)] + b + operators[random.nextInt(2)] + c);
+                    break;
+                default:
+                    writer.print("(" + a + " > " + random.nextInt(1000) + " ? " + a + " / " +
+                                 (random.nextInt(9) + 2) + " : " + a + " + " + b + ") - " +
+                                 random.nextInt(10));
+                    break;
+            }
+        }
+    }
+}